@@ -72,6 +72,16 @@ public class MongoDBPersistenceHandler extends AbstractPersistenceHandler
     {
     }
 
+    /**
+     * Method to invalidate any cached query results that read the specified collection, following a write to it.
+     * @param collectionName Name of the collection written to
+     * @param mconn The connection used for the write
+     */
+    protected void invalidateQueryResults(String collectionName, ManagedConnection mconn)
+    {
+        ((MongoDBStoreManager)storeMgr).getQueryResultCache().invalidate(collectionName, mconn);
+    }
+
     /* (non-Javadoc)
      * @see org.datanucleus.store.AbstractPersistenceHandler#insertObjects(org.datanucleus.store.ObjectProvider[])
      */
@@ -166,6 +176,7 @@ public class MongoDBPersistenceHandler extends AbstractPersistenceHandler
                         NucleusLogger.DATASTORE_NATIVE.debug("Persisting objects as " + StringUtils.objectArrayToString(dbObjects));
                     }
                     collection.insert(dbObjects, new WriteConcern(1));
+                    invalidateQueryResults(tableName, mconn);
                     if (ec.getStatistics() != null)
                     {
                         ec.getStatistics().incrementNumWrites();
@@ -222,6 +233,7 @@ public class MongoDBPersistenceHandler extends AbstractPersistenceHandler
 
             NucleusLogger.DATASTORE_NATIVE.debug("Persisting object " + op + " as " + dbObject);
             collection.insert(dbObject, new WriteConcern(1));
+            invalidateQueryResults(table.getName(), mconn);
             if (ec.getStatistics() != null)
             {
                 ec.getStatistics().incrementNumWrites();
@@ -483,6 +495,7 @@ public class MongoDBPersistenceHandler extends AbstractPersistenceHandler
                 NucleusLogger.DATASTORE_NATIVE.debug("Updating object " + op + " as " + dbObject);
             }
             collection.save(dbObject);
+            invalidateQueryResults(table.getName(), mconn);
             if (ec.getStatistics() != null)
             {
                 ec.getStatistics().incrementNumWrites();
@@ -559,6 +572,7 @@ public class MongoDBPersistenceHandler extends AbstractPersistenceHandler
                 NucleusLogger.DATASTORE_NATIVE.debug("Removing object " + op + " as " + dbObject);
             }
             collection.remove(dbObject);
+            invalidateQueryResults(table.getName(), mconn);
             if (ec.getStatistics() != null)
             {
                 ec.getStatistics().incrementNumWrites();
@@ -305,10 +305,44 @@ public class MongoDBSchemaHandler extends AbstractStoreSchemaHandler
                         collection.createIndex(query, idxName, idxmd.isUnique());
                     }
                 }
+
+                BasicDBObject geoIdxObj = getDBObjectForGeospatialIndex(mapping.getMemberMetaData(), column);
+                if (geoIdxObj != null)
+                {
+                    String idxName = column.getName() + "_" + geoIdxObj.get(column.getName());
+                    if (NucleusLogger.DATASTORE_SCHEMA.isDebugEnabled())
+                    {
+                        NucleusLogger.DATASTORE_SCHEMA.debug(Localiser.msg("MongoDB.Schema.CreateClassIndex", idxName, collectionName, geoIdxObj));
+                    }
+                    collection.createIndex(geoIdxObj, idxName, false);
+                }
             }
         }
     }
 
+    /**
+     * Convenience method to return the key of the geospatial index declared for a member using the extension
+     * "mongodb.geospatial.index" (with value "2d" or "2dsphere").
+     * @param mmd Metadata for the member
+     * @param column The column for the member
+     * @return The index key, or null if no (valid) geospatial index is declared
+     */
+    private BasicDBObject getDBObjectForGeospatialIndex(AbstractMemberMetaData mmd, Column column)
+    {
+        String geoIndexType = mmd.getValueForExtension(MongoDBStoreManager.GEOSPATIAL_INDEX_EXTENSION_NAME);
+        if (geoIndexType == null)
+        {
+            return null;
+        }
+        if (!geoIndexType.equals("2d") && !geoIndexType.equals("2dsphere"))
+        {
+            NucleusLogger.DATASTORE_SCHEMA.warn("Member " + mmd.getFullFieldName() + " has extension " + MongoDBStoreManager.GEOSPATIAL_INDEX_EXTENSION_NAME +
+                " with value " + geoIndexType + " but only 2d and 2dsphere are supported, so ignoring it");
+            return null;
+        }
+        return new BasicDBObject(column.getName(), geoIndexType);
+    }
+
     private DBObject getDBObjectForIndex(AbstractClassMetaData cmd, IndexMetaData idxmd, Table table)
     {
         BasicDBObject idxObj = new BasicDBObject();
@@ -406,6 +440,7 @@ public class MongoDBSchemaHandler extends AbstractStoreSchemaHandler
                         NucleusLogger.DATASTORE_SCHEMA.debug(Localiser.msg("MongoDB.SchemaDelete.Class", cmd.getFullClassName(), table.getName()));
                     }
                     collection.drop();
+                    ((MongoDBStoreManager)storeMgr).getQueryResultCache().invalidate(table.getName());
                 }
             }
         }
@@ -599,6 +634,28 @@ public class MongoDBSchemaHandler extends AbstractStoreSchemaHandler
                                     NucleusLogger.DATASTORE_SCHEMA.error(msg);
                                 }
                             }
+                            if (mmds[i].hasExtension(MongoDBStoreManager.GEOSPATIAL_INDEX_EXTENSION_NAME))
+                            {
+                                Column col = table.getMemberColumnMappingForMember(mmds[i]).getColumn(0);
+                                BasicDBObject geoIdxObj = getDBObjectForGeospatialIndex(mmds[i], col);
+                                if (geoIdxObj != null)
+                                {
+                                    String idxName = col.getName() + "_" + geoIdxObj.get(col.getName());
+                                    DBObject indexObj = getIndexObjectForIndex(indices, idxName, geoIdxObj, false);
+                                    if (indexObj != null)
+                                    {
+                                        msg = "Geospatial index for field=" + mmds[i].getFullFieldName() + " with name=" + idxName + " validated";
+                                        NucleusLogger.DATASTORE_SCHEMA.info(msg);
+                                        indices.remove(indexObj);
+                                    }
+                                    else
+                                    {
+                                        success = false;
+                                        msg = "Geospatial index missing for field=" + mmds[i].getFullFieldName() + " name=" + idxName + " key=" + geoIdxObj;
+                                        NucleusLogger.DATASTORE_SCHEMA.error(msg);
+                                    }
+                                }
+                            }
                             UniqueMetaData unimd = mmds[i].getUniqueMetaData();
                             if (unimd != null)
                             {
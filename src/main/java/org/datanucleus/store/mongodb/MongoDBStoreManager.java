@@ -23,6 +23,10 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.ExecutionContext;
@@ -40,9 +44,12 @@ import org.datanucleus.store.AbstractStoreManager;
 import org.datanucleus.store.StoreData;
 import org.datanucleus.store.StoreManager;
 import org.datanucleus.store.connection.ManagedConnection;
+import org.datanucleus.store.mongodb.query.MongoDBIndexAdvisor;
+import org.datanucleus.store.mongodb.query.MongoDBQueryResultCache;
 import org.datanucleus.store.schema.SchemaAwareStoreManager;
 import org.datanucleus.store.schema.table.CompleteClassTable;
 import org.datanucleus.util.Localiser;
+import org.datanucleus.util.NucleusLogger;
 
 import com.mongodb.DB;
 
@@ -55,6 +62,33 @@ public class MongoDBStoreManager extends AbstractStoreManager implements SchemaA
 
     public static final String CAPPED_SIZE_EXTENSION_NAME = "mongodb.capped.size";
 
+    /** Member extension declaring a geospatial index ("2d" or "2dsphere") on the member. */
+    public static final String GEOSPATIAL_INDEX_EXTENSION_NAME = "mongodb.geospatial.index";
+
+    public static final String MONGODB_QUERY_THREADS = "datanucleus.mongodb.queryThreads";
+
+    public static final String MONGODB_QUERY_RESULT_CACHE_MAX_ENTRIES = "datanucleus.mongodb.queryResultCache.maxEntries";
+
+    public static final String MONGODB_QUERY_RESULT_CACHE_MAX_BYTES = "datanucleus.mongodb.queryResultCache.maxBytes";
+
+    /**
+     * Ratio of documents examined to documents returned above which a warning is logged for a query cursor (also
+     * the query extension "scan-warning-ratio"). Checking a cursor runs explain(), which executes the query again,
+     * so it is only done on the first execution of each datastore compilation of a query.
+     */
+    public static final String MONGODB_QUERY_SCAN_WARNING_RATIO = "datanucleus.mongodb.queryScanWarningRatio";
+
+    public static final String MONGODB_INDEX_ADVISOR = "datanucleus.mongodb.indexAdvisor";
+
+    /** Executor for running the per-collection cursors of a query concurrently. Created when first needed. */
+    protected ExecutorService queryExecutor = null;
+
+    /** Cache of query results, for queries that enable it. Created when first needed. */
+    protected MongoDBQueryResultCache queryResultCache = null;
+
+    /** Advisor for the indexes needed by the queries, when enabled. */
+    protected MongoDBIndexAdvisor indexAdvisor = null;
+
     /**
      * Constructor.
      * @param clr ClassLoader resolver
@@ -71,9 +105,127 @@ public class MongoDBStoreManager extends AbstractStoreManager implements SchemaA
         schemaHandler = new MongoDBSchemaHandler(this);
         persistenceHandler = new MongoDBPersistenceHandler(this);
 
+        String indexAdvisorMode = getStringProperty(MONGODB_INDEX_ADVISOR);
+        if ("report".equalsIgnoreCase(indexAdvisorMode) || "create".equalsIgnoreCase(indexAdvisorMode))
+        {
+            indexAdvisor = new MongoDBIndexAdvisor();
+        }
+
         logConfiguration();
     }
 
+    /* (non-Javadoc)
+     * @see org.datanucleus.store.AbstractStoreManager#close()
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (queryExecutor != null)
+        {
+            queryExecutor.shutdownNow();
+            queryExecutor = null;
+        }
+        if (queryResultCache != null)
+        {
+            queryResultCache.clear();
+            queryResultCache = null;
+        }
+        if (indexAdvisor != null)
+        {
+            // Report (or create) the indexes suggested for the queries executed
+            ManagedConnection mconn = getConnection(-1);
+            try
+            {
+                DB db = (DB)mconn.getConnection();
+                if ("create".equalsIgnoreCase(getStringProperty(MONGODB_INDEX_ADVISOR)))
+                {
+                    indexAdvisor.createSuggestedIndexes(db);
+                }
+                else
+                {
+                    indexAdvisor.reportSuggestedIndexes(db);
+                }
+            }
+            catch (Exception e)
+            {
+                NucleusLogger.DATASTORE_SCHEMA.warn("Exception reporting indexes suggested by index advisor", e);
+            }
+            finally
+            {
+                mconn.release();
+            }
+            indexAdvisor = null;
+        }
+
+        super.close();
+    }
+
+    /**
+     * Accessor for the executor to use when executing the cursors of a query against multiple collections
+     * concurrently. The number of threads defaults to the number of processors and can be set using the
+     * persistence property "datanucleus.mongodb.queryThreads".
+     * @return The executor
+     */
+    public synchronized ExecutorService getQueryExecutor()
+    {
+        if (queryExecutor == null)
+        {
+            int numThreads = getIntProperty(MONGODB_QUERY_THREADS);
+            if (numThreads <= 0)
+            {
+                numThreads = Runtime.getRuntime().availableProcessors();
+            }
+            queryExecutor = Executors.newFixedThreadPool(numThreads, new ThreadFactory()
+            {
+                AtomicInteger threadNumber = new AtomicInteger(1);
+
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "DataNucleus-MongoDB-Query-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return queryExecutor;
+    }
+
+    /**
+     * Accessor for the cache of query results (identities), used by queries with the extension "results-cached".
+     * The cache size can be bounded using the persistence properties "datanucleus.mongodb.queryResultCache.maxEntries"
+     * (default 1000) and "datanucleus.mongodb.queryResultCache.maxBytes" (default 16Mb).
+     * @return The query result cache
+     */
+    public synchronized MongoDBQueryResultCache getQueryResultCache()
+    {
+        if (queryResultCache == null)
+        {
+            int maxEntries = getIntProperty(MONGODB_QUERY_RESULT_CACHE_MAX_ENTRIES);
+            if (maxEntries <= 0)
+            {
+                maxEntries = 1000;
+            }
+            int maxBytes = getIntProperty(MONGODB_QUERY_RESULT_CACHE_MAX_BYTES);
+            if (maxBytes <= 0)
+            {
+                maxBytes = 16 * 1024 * 1024;
+            }
+            queryResultCache = new MongoDBQueryResultCache(maxEntries, maxBytes);
+        }
+        return queryResultCache;
+    }
+
+    /**
+     * Accessor for the index advisor, which records the shapes of the queries executed and suggests indexes for them.
+     * Enabled by the persistence property "datanucleus.mongodb.indexAdvisor", with the suggestions logged ("report") or
+     * created ("create") when the store manager is closed, or on demand via the advisor.
+     * @return The index advisor, or null if not enabled
+     */
+    public MongoDBIndexAdvisor getIndexAdvisor()
+    {
+        return indexAdvisor;
+    }
+
     public Collection getSupportedOptions()
     {
         Set set = new HashSet();
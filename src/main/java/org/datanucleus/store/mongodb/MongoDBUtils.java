@@ -32,9 +32,11 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.bson.types.ObjectId;
 import org.datanucleus.ClassLoaderResolver;
@@ -56,12 +58,20 @@ import org.datanucleus.metadata.IdentityType;
 import org.datanucleus.metadata.MetaDataUtils;
 import org.datanucleus.metadata.RelationType;
 import org.datanucleus.metadata.VersionMetaData;
+import org.datanucleus.metadata.VersionStrategy;
 import org.datanucleus.state.ObjectProvider;
 import org.datanucleus.store.FieldValues;
 import org.datanucleus.store.StoreManager;
+import org.datanucleus.store.VersionHelper;
 import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.store.mongodb.fieldmanager.FetchFieldManager;
+import org.datanucleus.store.mongodb.query.ForwardOnlyQueryResult;
 import org.datanucleus.store.mongodb.query.LazyLoadQueryResult;
+import org.datanucleus.store.mongodb.query.MongoDBResult;
+import org.datanucleus.store.mongodb.query.expression.MongoAggregateExpression;
+import org.datanucleus.store.mongodb.query.expression.MongoExpression;
+import org.datanucleus.store.mongodb.query.expression.MongoFieldExpression;
+import org.datanucleus.store.mongodb.query.expression.MongoOperator;
 import org.datanucleus.store.query.Query;
 import org.datanucleus.store.schema.naming.ColumnType;
 import org.datanucleus.store.schema.table.MemberColumnMapping;
@@ -71,13 +81,20 @@ import org.datanucleus.store.types.converters.TypeConverter;
 import org.datanucleus.util.NucleusLogger;
 import org.datanucleus.util.TypeConversionHelper;
 
+import com.mongodb.AggregationOptions;
+import com.mongodb.AggregationOutput;
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.Cursor;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
 import com.mongodb.ReadPreference;
+import com.mongodb.WriteResult;
+import com.mongodb.util.JSON;
 
 import java.util.LinkedList;
 
@@ -95,11 +112,12 @@ public class MongoDBUtils
     {
         StoreManager storeMgr = ec.getStoreManager();
         long count = 0;
-        for (AbstractClassMetaData cmd : MetaDataUtils.getMetaDataForCandidates(candidateClass, subclasses, ec)) 
+        Map<String, BasicDBObject> queriesByCollectionName =
+            getQueriesByCollectionName(getClassesByCollectionName(candidateClass, subclasses, ec, db), filterObject, storeMgr);
+        for (Map.Entry<String, BasicDBObject> entry : queriesByCollectionName.entrySet())
         {
-            Table table = storeMgr.getStoreDataForClass(cmd.getFullClassName()).getTable();
-            String collectionName = table.getName();
-            count += db.getCollection(collectionName).count(filterObject);
+            // Count once per DBCollection, restricting to the candidate classes stored there
+            count += db.getCollection(entry.getKey()).count(entry.getValue());
         }
 
         List<Long> results = new LinkedList<Long>();
@@ -112,6 +130,676 @@ public class MongoDBUtils
         return results;
     }
 
+    /**
+     * Convenience method to perform a bulk update in the datastore, updating all matching documents of each
+     * DBCollection of the candidates with the provided modifier (with the surrogate/member version updated where
+     * the class is versioned). Any cached state of the candidate objects (L1, L2 and query results) is evicted.
+     * @param db The DB
+     * @param filterObject Optional filter object
+     * @param updateObject The modifier ($set, $unset, $inc)
+     * @param candidateClass The candidate class
+     * @param subclasses Whether to include subclasses
+     * @param ec ExecutionContext
+     * @param mconn The connection being used
+     * @return The number of documents updated
+     * @throws MongoException If an error occurs in the datastore
+     */
+    public static Long performMongoUpdate(DB db, BasicDBObject filterObject, BasicDBObject updateObject, Class candidateClass,
+            boolean subclasses, ExecutionContext ec, ManagedConnection mconn)
+    throws MongoException
+    {
+        MongoDBStoreManager storeMgr = (MongoDBStoreManager)ec.getStoreManager();
+        long count = 0;
+        Map<String, List<AbstractClassMetaData>> classesByCollectionName = getClassesByCollectionName(candidateClass, subclasses, ec, db);
+        Map<String, BasicDBObject> queriesByCollectionName = getQueriesByCollectionName(classesByCollectionName, filterObject, storeMgr);
+        for (Map.Entry<String, List<AbstractClassMetaData>> entry : classesByCollectionName.entrySet())
+        {
+            AbstractClassMetaData rootCmd = entry.getValue().get(0);
+            Table table = storeMgr.getStoreDataForClass(rootCmd.getFullClassName()).getTable();
+            BasicDBObject query = queriesByCollectionName.get(entry.getKey());
+
+            // Copy the modifier since the version (if any) is specific to the DBCollection
+            BasicDBObject modifier = new BasicDBObject();
+            for (Map.Entry<String, Object> updateEntry : updateObject.entrySet())
+            {
+                modifier.put(updateEntry.getKey(), new BasicDBObject((Map)updateEntry.getValue()));
+            }
+            VersionMetaData vermd = rootCmd.getVersionMetaDataForClass();
+            if (vermd != null && vermd.getVersionStrategy() != VersionStrategy.NONE)
+            {
+                String versionFieldName = null;
+                boolean intVersion = false;
+                if (vermd.getFieldName() != null)
+                {
+                    AbstractMemberMetaData verMmd = rootCmd.getMetaDataForMember(vermd.getFieldName());
+                    versionFieldName = table.getMemberColumnMappingForMember(verMmd).getColumn(0).getName();
+                    intVersion = (verMmd.getType() == int.class || verMmd.getType() == Integer.class);
+                }
+                else
+                {
+                    versionFieldName = table.getVersionColumn().getName();
+                }
+
+                String modifierName = (vermd.getVersionStrategy() == VersionStrategy.VERSION_NUMBER ? "$inc" : "$set");
+                Object versionValue = (vermd.getVersionStrategy() == VersionStrategy.VERSION_NUMBER ?
+                    (intVersion ? (Object)Integer.valueOf(1) : (Object)Long.valueOf(1)) : VersionHelper.getNextVersion(vermd.getVersionStrategy(), null));
+                BasicDBObject versionModifier = (BasicDBObject)modifier.get(modifierName);
+                if (versionModifier == null)
+                {
+                    versionModifier = new BasicDBObject();
+                    modifier.put(modifierName, versionModifier);
+                }
+                versionModifier.put(versionFieldName, versionValue);
+            }
+
+            if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_NATIVE.debug("Performing update() on collection " + entry.getKey() + " with query=" + query + " and modifier=" + modifier);
+            }
+            WriteResult writeResult = db.getCollection(entry.getKey()).update(query, modifier, false, true);
+            if (writeResult.wasAcknowledged())
+            {
+                count += writeResult.getN();
+            }
+            storeMgr.getQueryResultCache().invalidate(entry.getKey(), mconn);
+            if (ec.getStatistics() != null)
+            {
+                // Add to statistics
+                ec.getStatistics().incrementNumWrites();
+            }
+        }
+
+        // Evict any cached state of the candidates since it may now be out of date
+        ec.evictObjects(candidateClass, subclasses);
+        ec.getNucleusContext().getLevel2Cache().evictAll(candidateClass, subclasses);
+
+        return Long.valueOf(count);
+    }
+
+    /**
+     * Convenience method to perform a bulk delete in the datastore, removing all matching documents of each
+     * DBCollection of the candidates. This is only possible when deleting a candidate object has no effect beyond
+     * its own document, so returns null if any candidate class has a member that would need cascading or
+     * relation management on deletion (dependent, or mapped by another object). Any cached state of the candidate
+     * objects (L1, L2 and query results) is evicted.
+     * @param db The DB
+     * @param filterObject Optional filter object
+     * @param candidateClass The candidate class
+     * @param subclasses Whether to include subclasses
+     * @param ec ExecutionContext
+     * @param mconn The connection being used
+     * @return The number of documents deleted, or null if the delete needs processing of the objects
+     * @throws MongoException If an error occurs in the datastore
+     */
+    public static Long performMongoDelete(DB db, BasicDBObject filterObject, Class candidateClass, boolean subclasses,
+            ExecutionContext ec, ManagedConnection mconn)
+    throws MongoException
+    {
+        Map<String, List<AbstractClassMetaData>> classesByCollectionName = getClassesByCollectionName(candidateClass, subclasses, ec, db);
+        for (List<AbstractClassMetaData> cmdsForCollection : classesByCollectionName.values())
+        {
+            for (AbstractClassMetaData cmd : cmdsForCollection)
+            {
+                if (!isDeletableInDatastore(cmd))
+                {
+                    return null;
+                }
+            }
+        }
+
+        MongoDBStoreManager storeMgr = (MongoDBStoreManager)ec.getStoreManager();
+        long count = 0;
+        Map<String, BasicDBObject> queriesByCollectionName = getQueriesByCollectionName(classesByCollectionName, filterObject, storeMgr);
+        for (Map.Entry<String, BasicDBObject> entry : queriesByCollectionName.entrySet())
+        {
+            BasicDBObject query = entry.getValue();
+
+            if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_NATIVE.debug("Performing remove() on collection " + entry.getKey() + " with query=" + query);
+            }
+            WriteResult writeResult = db.getCollection(entry.getKey()).remove(query);
+            if (writeResult.wasAcknowledged())
+            {
+                count += writeResult.getN();
+            }
+            storeMgr.getQueryResultCache().invalidate(entry.getKey(), mconn);
+            if (ec.getStatistics() != null)
+            {
+                // Add to statistics
+                ec.getStatistics().incrementNumWrites();
+            }
+        }
+
+        // Evict any cached state of the candidates since they may no longer exist
+        ec.evictObjects(candidateClass, subclasses);
+        ec.getNucleusContext().getLevel2Cache().evictAll(candidateClass, subclasses);
+
+        return Long.valueOf(count);
+    }
+
+    /**
+     * Accessor for whether objects of the specified class can be deleted by just removing their documents, meaning
+     * that there are no members that are dependent (so would cascade the delete) or mapped by another object (so
+     * would need the other side of the relation updating).
+     * @param cmd Metadata for the class
+     * @return Whether the documents can be removed directly
+     */
+    static boolean isDeletableInDatastore(AbstractClassMetaData cmd)
+    {
+        int[] memberPositions = cmd.getAllMemberPositions();
+        for (int i=0;i<memberPositions.length;i++)
+        {
+            AbstractMemberMetaData mmd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(memberPositions[i]);
+            if (mmd.isDependent() || mmd.getMappedBy() != null)
+            {
+                return false;
+            }
+            else if (mmd.hasCollection() && mmd.getCollection().isDependentElement())
+            {
+                return false;
+            }
+            else if (mmd.hasArray() && mmd.getArray().isDependentElement())
+            {
+                return false;
+            }
+            else if (mmd.hasMap() && (mmd.getMap().isDependentKey() || mmd.getMap().isDependentValue()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Convenience method to evaluate a result made up of aggregates (and optionally grouping fields) in the datastore,
+     * using the aggregation framework ($match then $group) on each DBCollection of the candidates, and combining the
+     * partial values of each group from each DBCollection. When grouping, any having filter is applied (with a $project
+     * to the final aggregate values then a $match) in the datastore, which is only possible when the candidates are
+     * stored in a single DBCollection.
+     * @param db The DB
+     * @param filterObject Optional filter object
+     * @param resultObject The (aggregate/grouped) result
+     * @param candidateClass The candidate class
+     * @param subclasses Whether to include subclasses
+     * @param ec ExecutionContext
+     * @return List of the result rows (the value when a single component, otherwise Object[]), or null if the
+     *     result cannot be evaluated in the datastore
+     * @throws MongoException If an error occurs in the datastore
+     */
+    public static List performMongoAggregate(DB db, BasicDBObject filterObject, MongoDBResult resultObject, Class candidateClass,
+            boolean subclasses, ExecutionContext ec)
+    throws MongoException
+    {
+        Map<String, List<AbstractClassMetaData>> classesByCollectionName = getClassesByCollectionName(candidateClass, subclasses, ec, db);
+        BasicDBObject havingObject = resultObject.getHavingObject();
+        if (havingObject != null && classesByCollectionName.size() > 1)
+        {
+            // Having filter applies to the combined groups, so can't be applied to each DBCollection
+            return null;
+        }
+
+        List<MongoAggregateExpression> aggregates = resultObject.getAggregates();
+        List<MongoFieldExpression> groupingFields = resultObject.getGroupingFields();
+        BasicDBObject groupId = null;
+        if (groupingFields != null)
+        {
+            groupId = new BasicDBObject();
+            for (int i=0;i<groupingFields.size();i++)
+            {
+                groupId.append("g" + i, "$" + groupingFields.get(i).getPropertyName());
+            }
+        }
+        BasicDBObject group = new BasicDBObject("_id", groupId);
+        for (int i=0;i<aggregates.size();i++)
+        {
+            aggregates.get(i).addToGroup(group, "a" + i);
+        }
+
+        StoreManager storeMgr = ec.getStoreManager();
+        Map<String, List<DBObject>> partialsByGroup = new LinkedHashMap<String, List<DBObject>>();
+        Map<String, BasicDBObject> queriesByCollectionName = getQueriesByCollectionName(classesByCollectionName, filterObject, storeMgr);
+        for (Map.Entry<String, BasicDBObject> entry : queriesByCollectionName.entrySet())
+        {
+            BasicDBObject query = entry.getValue();
+
+            List<DBObject> pipeline = new ArrayList<DBObject>();
+            if (!query.isEmpty())
+            {
+                pipeline.add(new BasicDBObject("$match", query));
+            }
+            pipeline.add(new BasicDBObject("$group", group));
+            if (havingObject != null)
+            {
+                // Project the final value of each aggregate as "v{n}", and filter on them
+                BasicDBObject project = new BasicDBObject("_id", 1);
+                for (int i=0;i<aggregates.size();i++)
+                {
+                    project.append("a" + i, 1);
+                    MongoAggregateExpression aggregate = aggregates.get(i);
+                    if (aggregate.getFunction().equals("sum") || aggregate.getFunction().equals("avg"))
+                    {
+                        project.append("a" + i + "_n", 1);
+                    }
+                    project.append("v" + i, aggregate.getValueExpression("a" + i));
+                }
+                pipeline.add(new BasicDBObject("$project", project));
+                pipeline.add(new BasicDBObject("$match", havingObject));
+            }
+            if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_NATIVE.debug("Performing aggregate() on collection " + entry.getKey() + " with pipeline=" + pipeline);
+            }
+
+            DBCollection dbColl = db.getCollection(entry.getKey());
+            if (groupingFields != null)
+            {
+                // Any number of groups, so use a cursor rather than a single result document
+                Cursor cursor = dbColl.aggregate(pipeline, AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).build());
+                try
+                {
+                    while (cursor.hasNext())
+                    {
+                        addAggregatePartial(partialsByGroup, cursor.next());
+                    }
+                }
+                finally
+                {
+                    cursor.close();
+                }
+            }
+            else
+            {
+                AggregationOutput output = dbColl.aggregate(pipeline);
+                for (DBObject partial : output.results())
+                {
+                    addAggregatePartial(partialsByGroup, partial);
+                }
+            }
+            if (ec.getStatistics() != null)
+            {
+                // Add to statistics
+                ec.getStatistics().incrementNumReads();
+            }
+        }
+
+        if (groupingFields == null && partialsByGroup.isEmpty())
+        {
+            // Without grouping there is always one result row, even when there are no documents
+            partialsByGroup.put("null", new ArrayList<DBObject>());
+        }
+
+        List<MongoExpression> components = resultObject.getComponents();
+        List results = new LinkedList();
+        for (List<DBObject> partials : partialsByGroup.values())
+        {
+            DBObject groupIdValue = (partials.isEmpty() ? null : (DBObject)partials.get(0).get("_id"));
+            Object[] row = new Object[components.size()];
+            for (int i=0;i<components.size();i++)
+            {
+                MongoExpression component = components.get(i);
+                if (component instanceof MongoAggregateExpression)
+                {
+                    row[i] = ((MongoAggregateExpression)component).getResult(partials, "a" + aggregates.indexOf(component), ec);
+                }
+                else
+                {
+                    MongoFieldExpression fieldExpr = (MongoFieldExpression)component;
+                    Object value = (groupIdValue != null ? groupIdValue.get("g" + groupingFields.indexOf(fieldExpr)) : null);
+                    row[i] = getFieldValueFromStored(ec, fieldExpr.getMemberMetaData(), value, FieldRole.ROLE_FIELD);
+                }
+            }
+            results.add(row.length == 1 ? row[0] : row);
+        }
+        return results;
+    }
+
+    /**
+     * Convenience method to evaluate the distinct values of a single field of the candidates in the datastore, using
+     * the distinct command on each DBCollection of the candidates, and merging the values from each DBCollection.
+     * Since null values are not stored (and so are not returned by the distinct command), null is added when any
+     * candidate document does not have the field.
+     * @param db The DB
+     * @param filterObject Optional filter object
+     * @param fieldExpr The field
+     * @param candidateClass The candidate class
+     * @param subclasses Whether to include subclasses
+     * @param ec ExecutionContext
+     * @return List of the distinct values
+     * @throws MongoException If an error occurs in the datastore
+     */
+    public static List performMongoDistinct(DB db, BasicDBObject filterObject, MongoFieldExpression fieldExpr, Class candidateClass,
+            boolean subclasses, ExecutionContext ec)
+    throws MongoException
+    {
+        StoreManager storeMgr = ec.getStoreManager();
+        String fieldName = fieldExpr.getPropertyName();
+        Set<String> storedValueKeys = new HashSet<String>();
+        List results = new LinkedList();
+        boolean hasNull = false;
+        Map<String, BasicDBObject> queriesByCollectionName =
+            getQueriesByCollectionName(getClassesByCollectionName(candidateClass, subclasses, ec, db), filterObject, storeMgr);
+        for (Map.Entry<String, BasicDBObject> entry : queriesByCollectionName.entrySet())
+        {
+            BasicDBObject query = entry.getValue();
+
+            DBCollection dbColl = db.getCollection(entry.getKey());
+            if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_NATIVE.debug("Performing distinct() on collection " + entry.getKey() + " for field " + fieldName + " with query=" + query);
+            }
+            for (Object storedValue : dbColl.distinct(fieldName, query))
+            {
+                // Merge values across DBCollections using their stored form
+                if (storedValue == null)
+                {
+                    hasNull = true;
+                }
+                else if (storedValueKeys.add(JSON.serialize(storedValue)))
+                {
+                    results.add(getFieldValueFromStored(ec, fieldExpr.getMemberMetaData(), storedValue, FieldRole.ROLE_FIELD));
+                }
+            }
+
+            if (!hasNull)
+            {
+                // Check for any document without a value for the field
+                List<DBObject> nullConditions = new ArrayList<DBObject>();
+                nullConditions.add(query);
+                nullConditions.add(new BasicDBObject(fieldName, null));
+                hasNull = (dbColl.findOne(new BasicDBObject("$and", nullConditions), new BasicDBObject("_id", 1)) != null);
+            }
+            if (ec.getStatistics() != null)
+            {
+                // Add to statistics
+                ec.getStatistics().incrementNumReads();
+            }
+        }
+        if (hasNull)
+        {
+            results.add(null);
+        }
+        return results;
+    }
+
+    /**
+     * Method to find the identities of the objects of the candidate class (and optionally subclasses) that match the
+     * filter, in the String form that relations to them are stored in (see IdentityUtils.getPersistableIdentityForId).
+     * Only the identity fields (and discriminator) of the matching documents are retrieved, and no objects are created.
+     * @param db The DB
+     * @param filterObject The filter
+     * @param candidateClass The candidate class
+     * @param subclasses Whether to include subclasses
+     * @param ec ExecutionContext
+     * @param maxIds The maximum number of identities to return
+     * @return The identities, or null if there are more than the maximum (or the identities cannot be determined)
+     */
+    public static List<String> getPersistableIdentitiesForFilter(DB db, BasicDBObject filterObject, Class candidateClass, boolean subclasses,
+            ExecutionContext ec, int maxIds)
+    throws MongoException
+    {
+        StoreManager storeMgr = ec.getStoreManager();
+        List<String> ids = new ArrayList<String>();
+        Map<String, List<AbstractClassMetaData>> classesByCollectionName = getClassesByCollectionName(candidateClass, subclasses, ec, db);
+        Map<String, BasicDBObject> queriesByCollectionName = getQueriesByCollectionName(classesByCollectionName, filterObject, storeMgr);
+        for (Map.Entry<String, List<AbstractClassMetaData>> entry : classesByCollectionName.entrySet())
+        {
+            AbstractClassMetaData rootCmd = entry.getValue().get(0);
+            Table table = storeMgr.getStoreDataForClass(rootCmd.getFullClassName()).getTable();
+            BasicDBObject query = queriesByCollectionName.get(entry.getKey());
+
+            BasicDBObject fieldsSelection = new BasicDBObject("_id", 1);
+            if (rootCmd.getIdentityType() == IdentityType.APPLICATION)
+            {
+                for (int pkPosition : rootCmd.getPKMemberPositions())
+                {
+                    MemberColumnMapping mapping = table.getMemberColumnMappingForMember(rootCmd.getMetaDataForManagedMemberAtAbsolutePosition(pkPosition));
+                    for (int i=0;i<mapping.getNumberOfColumns();i++)
+                    {
+                        fieldsSelection.append(mapping.getColumn(i).getName(), 1);
+                    }
+                }
+            }
+            else if (rootCmd.getIdentityType() == IdentityType.DATASTORE)
+            {
+                if (table.getDatastoreIdColumn() != null)
+                {
+                    fieldsSelection.append(table.getDatastoreIdColumn().getName(), 1);
+                }
+            }
+            else
+            {
+                // Nondurable identity so cannot be referred to
+                return null;
+            }
+            if (rootCmd.hasDiscriminatorStrategy())
+            {
+                fieldsSelection.append(table.getDiscriminatorColumn().getName(), 1);
+            }
+
+            DBCollection dbColl = db.getCollection(entry.getKey());
+            if (NucleusLogger.DATASTORE_NATIVE.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_NATIVE.debug("Performing find() of identities on collection " + entry.getKey() + " with filter=" + query);
+            }
+            DBCursor curs = dbColl.find(query, fieldsSelection).limit(maxIds + 1 - ids.size());
+            if (ec.getStatistics() != null)
+            {
+                // Add to statistics
+                ec.getStatistics().incrementNumReads();
+            }
+            try
+            {
+                while (curs.hasNext())
+                {
+                    if (ids.size() == maxIds)
+                    {
+                        return null;
+                    }
+                    ids.add(IdentityUtils.getPersistableIdentityForId(getIdentityForDBObject(curs.next(), rootCmd, ec)));
+                }
+            }
+            finally
+            {
+                curs.close();
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Convenience method to return the identity of the object stored in the provided DBObject.
+     * @param dbObject The DBObject
+     * @param cmd Metadata for the (root) class stored in the DBCollection
+     * @param ec ExecutionContext
+     * @return The identity
+     */
+    private static Object getIdentityForDBObject(DBObject dbObject, AbstractClassMetaData cmd, ExecutionContext ec)
+    {
+        StoreManager storeMgr = ec.getStoreManager();
+        Table table = storeMgr.getStoreDataForClass(cmd.getFullClassName()).getTable();
+        if (cmd.hasDiscriminatorStrategy())
+        {
+            // Determine the class from the discriminator property
+            String discValue = (String)dbObject.get(table.getDiscriminatorColumn().getName());
+            String clsName = ec.getMetaDataManager().getClassNameFromDiscriminatorValue(discValue, cmd.getDiscriminatorMetaData());
+            if (!cmd.getFullClassName().equals(clsName) && clsName != null)
+            {
+                cmd = ec.getMetaDataManager().getMetaDataForClass(clsName, ec.getClassLoaderResolver());
+                table = storeMgr.getStoreDataForClass(cmd.getFullClassName()).getTable();
+            }
+        }
+
+        if (cmd.getIdentityType() == IdentityType.APPLICATION)
+        {
+            return IdentityUtils.getApplicationIdentityForResultSetRow(ec, cmd, null, false, new FetchFieldManager(ec, dbObject, cmd, table));
+        }
+
+        Object idKey = null;
+        if (storeMgr.isStrategyDatastoreAttributed(cmd, -1))
+        {
+            idKey = dbObject.get("_id");
+            if (idKey instanceof ObjectId)
+            {
+                idKey = ((ObjectId)idKey).toString();
+            }
+        }
+        else
+        {
+            idKey = dbObject.get(table.getDatastoreIdColumn().getName());
+        }
+        return ec.getNucleusContext().getIdentityManager().getDatastoreId(cmd.getFullClassName(), idKey);
+    }
+
+    /**
+     * Convenience method to add a $group result (from one DBCollection) to the partial values of its group.
+     * @param partialsByGroup The partial values, keyed by the (serialised) group _id
+     * @param partial The $group result
+     */
+    private static void addAggregatePartial(Map<String, List<DBObject>> partialsByGroup, DBObject partial)
+    {
+        String groupKey = JSON.serialize(partial.get("_id"));
+        List<DBObject> partials = partialsByGroup.get(groupKey);
+        if (partials == null)
+        {
+            partials = new ArrayList<DBObject>();
+            partialsByGroup.put(groupKey, partials);
+        }
+        partials.add(partial);
+    }
+
+    /**
+     * Convenience method to find the DBCollections that the candidate class (and optionally subclasses) are stored in,
+     * returning the (instantiable) candidate classes stored in each DBCollection, keyed by collection name.
+     * Makes sure that the schema exists for all candidate classes.
+     * @param candidateClass The candidate class
+     * @param subclasses Whether to include subclasses
+     * @param ec ExecutionContext
+     * @param db The DB
+     * @return The candidate classes keyed by collection name
+     */
+    public static Map<String, List<AbstractClassMetaData>> getClassesByCollectionName(Class candidateClass, boolean subclasses, ExecutionContext ec, DB db)
+    {
+        StoreManager storeMgr = ec.getStoreManager();
+        Map<String, List<AbstractClassMetaData>> classesByCollectionName = new HashMap();
+        for (AbstractClassMetaData cmd : MetaDataUtils.getMetaDataForCandidates(candidateClass, subclasses, ec))
+        {
+            if (cmd instanceof ClassMetaData && ((ClassMetaData)cmd).isAbstract())
+            {
+                // Omit any classes that are not instantiable (e.g abstract)
+            }
+            else
+            {
+                if (!storeMgr.managesClass(cmd.getFullClassName()))
+                {
+                    // Make sure schema exists, using this connection
+                    ((MongoDBStoreManager)storeMgr).manageClasses(new String[] {cmd.getFullClassName()}, ec.getClassLoaderResolver(), db);
+                }
+                Table table = storeMgr.getStoreDataForClass(cmd.getFullClassName()).getTable();
+                String collectionName = table.getName();
+                List<AbstractClassMetaData> cmdsForCollection = classesByCollectionName.get(collectionName);
+                if (cmdsForCollection == null)
+                {
+                    cmdsForCollection = new ArrayList();
+                    classesByCollectionName.put(collectionName, cmdsForCollection);
+                }
+                cmdsForCollection.add(cmd);
+            }
+        }
+        return classesByCollectionName;
+    }
+
+    /**
+     * Convenience method to return the query to use for each DBCollection that the candidates are stored in, being
+     * (a copy of) the filter with the restrictions for the candidate classes stored in that DBCollection added
+     * (see addRestrictionsForClasses).
+     * @param classesByCollectionName The candidate classes keyed by collection name (see getClassesByCollectionName)
+     * @param filterObject Optional filter object
+     * @param storeMgr StoreManager
+     * @return The query keyed by collection name
+     */
+    public static Map<String, BasicDBObject> getQueriesByCollectionName(Map<String, List<AbstractClassMetaData>> classesByCollectionName,
+            BasicDBObject filterObject, StoreManager storeMgr)
+    {
+        Map<String, BasicDBObject> queriesByCollectionName = new LinkedHashMap<String, BasicDBObject>();
+        for (Map.Entry<String, List<AbstractClassMetaData>> entry : classesByCollectionName.entrySet())
+        {
+            List<AbstractClassMetaData> cmdsForCollection = entry.getValue();
+            Table table = storeMgr.getStoreDataForClass(cmdsForCollection.get(0).getFullClassName()).getTable();
+            BasicDBObject query = new BasicDBObject();
+            if (filterObject != null)
+            {
+                for (Map.Entry<String, Object> filterEntry : filterObject.entrySet())
+                {
+                    query.put(filterEntry.getKey(), filterEntry.getValue());
+                }
+            }
+            addRestrictionsForClasses(query, cmdsForCollection, table, storeMgr);
+            queriesByCollectionName.put(entry.getKey(), query);
+        }
+        return queriesByCollectionName;
+    }
+
+    /**
+     * Convenience method to add restrictions to a query of a DBCollection so that it only returns documents for
+     * the specified classes stored in that DBCollection, namely the discriminator (when the classes use one) and
+     * the multitenancy discriminator (when in use).
+     * @param query The query to add the restrictions to
+     * @param cmdsForCollection The candidate classes stored in the DBCollection
+     * @param table Table for the first of the classes
+     * @param storeMgr StoreManager
+     */
+    public static void addRestrictionsForClasses(BasicDBObject query, List<AbstractClassMetaData> cmdsForCollection, Table table, StoreManager storeMgr)
+    {
+        AbstractClassMetaData rootCmd = cmdsForCollection.get(0);
+        if (rootCmd.hasDiscriminatorStrategy())
+        {
+            // Discriminator present : Add restriction on the discriminator value of all candidate classes for this DBCollection
+            List<Object> discValues = new ArrayList<Object>();
+            for (AbstractClassMetaData cmd : cmdsForCollection)
+            {
+                Object discValue = cmd.getDiscriminatorValue();
+                if (discValue == null)
+                {
+                    // No value for this class so can't restrict
+                    discValues = null;
+                    break;
+                }
+                if (!discValues.contains(discValue))
+                {
+                    discValues.add(discValue);
+                }
+            }
+            if (discValues != null)
+            {
+                String discFieldName = table.getDiscriminatorColumn().getName();
+                if (discValues.size() == 1)
+                {
+                    query.put(discFieldName, discValues.get(0));
+                }
+                else
+                {
+                    query.put(discFieldName, new BasicDBObject("$in", discValues));
+                }
+            }
+        }
+
+        if (storeMgr.getStringProperty(PropertyNames.PROPERTY_MAPPING_TENANT_ID) != null)
+        {
+            // Multitenancy discriminator present : Add restriction for this tenant
+            if ("true".equalsIgnoreCase(rootCmd.getValueForExtension("multitenancy-disable")))
+            {
+                // Don't bother with multitenancy for this class
+            }
+            else
+            {
+                String fieldName = table.getMultitenancyColumn().getName();
+                String value = storeMgr.getStringProperty(PropertyNames.PROPERTY_MAPPING_TENANT_ID);
+                query.put(fieldName, value);
+            }
+        }
+    }
+
     public static boolean isMemberNested(AbstractMemberMetaData mmd)
     {
         boolean nested = true;
@@ -450,48 +1138,68 @@ public class MongoDBUtils
      * @param db Mongo DB
      * @param filterObject Optional filter object
      * @param orderingObject Optional ordering object
-     * @param options Set of options for controlling this query
+     * @param options Set of options for controlling this query. The option "explain" (a List) receives the explain output
+     * of the cursor for each collection, and the option "scan-warning-ratio" (an Integer) logs a warning for a cursor that
+     * does a collection scan or examines more than that many times the documents it returns
      * @param skip Number of records to skip
      * @param limit Max number of records to return
      * @return List of all candidate objects (implements QueryResult)
      */
     public static List getObjectsOfCandidateType(Query q, DB db, BasicDBObject filterObject, BasicDBObject orderingObject, Map<String, Object> options, Integer skip, Integer limit)
     {
-        LazyLoadQueryResult qr = new LazyLoadQueryResult(q);
+        LazyLoadQueryResult qr = null;
+        if (options != null && options.get("forward-only") == Boolean.TRUE)
+        {
+            // Stream the results, not retaining any of them
+            qr = new ForwardOnlyQueryResult(q);
+        }
+        else
+        {
+            qr = new LazyLoadQueryResult(q);
+        }
+        List<MongoFieldExpression> resultFields = (options != null ? (List<MongoFieldExpression>)options.get("result-fields") : null);
+        if (resultFields != null)
+        {
+            // Result rows built directly from the documents, so only need the result fields
+            qr.setResultFields(resultFields);
+        }
 
         // Find the DBCollections we need to query
         ExecutionContext ec = q.getExecutionContext();
         StoreManager storeMgr = ec.getStoreManager();
         ClassLoaderResolver clr = ec.getClassLoaderResolver();
-        List<AbstractClassMetaData> cmds = MetaDataUtils.getMetaDataForCandidates(q.getCandidateClass(), q.isSubclasses(), ec);
+        Map<String, List<AbstractClassMetaData>> classesByCollectionName = getClassesByCollectionName(q.getCandidateClass(), q.isSubclasses(), ec, db);
 
-        Map<String, List<AbstractClassMetaData>> classesByCollectionName = new HashMap();
-        for (AbstractClassMetaData cmd : cmds)
+        // The range can only be applied in the datastore if there is no ordering, or the ordering is also applied in the datastore
+        boolean rangeApplicable = (q.getOrdering() == null || orderingObject != null);
+
+        // With multiple DBCollections, merge the (individually sorted and limited) DBCursors when ordering or range is required
+        boolean mergeCursors = classesByCollectionName.size() > 1 && rangeApplicable &&
+            (orderingObject != null || (skip != null && skip > 0) || (limit != null && limit > 0));
+
+        // Keyset pagination, continuing after the sort keys of the continuation token rather than skipping, for an ordered
+        // query of a single DBCollection. The ordering ends with _id so that it is unique
+        Object continuationToken = q.getExtension("continuation-token");
+        BasicDBObject keysetOrdering = null;
+        if ((continuationToken != null || q.getBooleanExtensionProperty("keyset-pagination", false)) &&
+            orderingObject != null && classesByCollectionName.size() == 1)
         {
-            if (cmd instanceof ClassMetaData && ((ClassMetaData)cmd).isAbstract())
-            {
-                // Omit any classes that are not instantiable (e.g abstract)
-            }
-            else
+            keysetOrdering = new BasicDBObject(orderingObject);
+            if (!keysetOrdering.containsField("_id"))
             {
-                if (!storeMgr.managesClass(cmd.getFullClassName()))
-                {
-                    // Make sure schema exists, using this connection
-                    ((MongoDBStoreManager)storeMgr).manageClasses(new String[] {cmd.getFullClassName()}, ec.getClassLoaderResolver(), db);
-                }
-                Table table = storeMgr.getStoreDataForClass(cmd.getFullClassName()).getTable();
-                String collectionName = table.getName();
-                List<AbstractClassMetaData> cmdsForCollection = classesByCollectionName.get(collectionName);
-                if (cmdsForCollection == null)
-                {
-                    cmdsForCollection = new ArrayList();
-                    classesByCollectionName.put(collectionName, cmdsForCollection);
-                }
-                cmdsForCollection.add(cmd);
+                keysetOrdering.append("_id", 1);
             }
+            qr.setContinuationOrdering(keysetOrdering);
+        }
+        else if (continuationToken != null)
+        {
+            NucleusLogger.QUERY.warn("Query has continuation token but keyset pagination is only supported for a query ordered in the datastore" +
+                " against a single collection, so ignoring it");
+            continuationToken = null;
         }
 
         // Add a query for each DBCollection we need
+        Map<String, BasicDBObject> queriesByCollectionName = getQueriesByCollectionName(classesByCollectionName, filterObject, storeMgr);
         Iterator<Map.Entry<String, List<AbstractClassMetaData>>> iter = classesByCollectionName.entrySet().iterator();
         while (iter.hasNext())
         {
@@ -503,7 +1211,14 @@ public class MongoDBUtils
             Table rootTable = storeMgr.getStoreDataForClass(rootCmd.getFullClassName()).getTable();
             int[] fpMembers = q.getFetchPlan().getFetchPlanForClass(rootCmd).getMemberNumbers();
             BasicDBObject fieldsSelection = new BasicDBObject();
-            if (fpMembers != null && fpMembers.length > 0)
+            if (resultFields != null)
+            {
+                for (MongoFieldExpression resultField : resultFields)
+                {
+                    fieldsSelection.append(resultField.getPropertyName(), 1);
+                }
+            }
+            else if (fpMembers != null && fpMembers.length > 0)
             {
                 fieldsSelection = new BasicDBObject();
                 for (int i=0;i<fpMembers.length;i++)
@@ -534,11 +1249,12 @@ public class MongoDBUtils
                     }
                 }
             }
-            if (rootCmd.getIdentityType() == IdentityType.DATASTORE)
+            // Identity, version and discriminator are only needed when creating the objects
+            if (resultFields == null && rootCmd.getIdentityType() == IdentityType.DATASTORE)
             {
                 fieldsSelection.append(rootTable.getDatastoreIdColumn().getName(), 1);
             }
-            if (rootCmd.isVersioned())
+            if (resultFields == null && rootCmd.isVersioned())
             {
                 VersionMetaData vermd = rootCmd.getVersionMetaDataForClass();
                 if (vermd.getFieldName() != null)
@@ -552,42 +1268,36 @@ public class MongoDBUtils
                     fieldsSelection.append(rootTable.getVersionColumn().getName(), 1);
                 }
             }
-            if (rootCmd.hasDiscriminatorStrategy())
+            if (resultFields == null && rootCmd.hasDiscriminatorStrategy())
             {
                 fieldsSelection.append(rootTable.getDiscriminatorColumn().getName(), 1);
             }
-
-            BasicDBObject query = new BasicDBObject();
-            if (filterObject != null)
+            if ((mergeCursors || keysetOrdering != null) && orderingObject != null && !fieldsSelection.isEmpty())
             {
-                Iterator<Map.Entry<String, Object>> filterEntryIter = filterObject.entrySet().iterator();
-                while (filterEntryIter.hasNext())
+                // Make sure the ordering fields are returned so that the cursors can be merged (or the continuation token generated)
+                for (String orderFieldName : orderingObject.keySet())
                 {
-                    Map.Entry<String, Object> filterEntry = filterEntryIter.next();
-                    query.put(filterEntry.getKey(), filterEntry.getValue());
+                    boolean selected = false;
+                    for (String selectedFieldName : fieldsSelection.keySet())
+                    {
+                        if (orderFieldName.equals(selectedFieldName) || orderFieldName.startsWith(selectedFieldName + "."))
+                        {
+                            selected = true;
+                            break;
+                        }
+                    }
+                    if (!selected)
+                    {
+                        fieldsSelection.append(orderFieldName, 1);
+                    }
                 }
             }
 
-            if (rootCmd.hasDiscriminatorStrategy() && cmdsForCollection.size() == 1)
-            {
-                // TODO Add this restriction on *all* possible cmds for this DBCollection
-                // Discriminator present : Add restriction on the discriminator value for this class
-                query.put(rootTable.getDiscriminatorColumn().getName(), rootCmd.getDiscriminatorValue());
-            }
-
-            if (storeMgr.getStringProperty(PropertyNames.PROPERTY_MAPPING_TENANT_ID) != null)
+            BasicDBObject query = queriesByCollectionName.get(collectionName);
+            if (continuationToken != null)
             {
-                // Multitenancy discriminator present : Add restriction for this tenant
-                if ("true".equalsIgnoreCase(rootCmd.getValueForExtension("multitenancy-disable")))
-                {
-                    // Don't bother with multitenancy for this class
-                }
-                else
-                {
-                    String fieldName = rootTable.getMultitenancyColumn().getName();
-                    String value = storeMgr.getStringProperty(PropertyNames.PROPERTY_MAPPING_TENANT_ID);
-                    query.put(fieldName, value);
-                }
+                BasicDBObject keysetObject = getKeysetConditionForContinuationToken(keysetOrdering, continuationToken.toString());
+                query = new BasicDBObject(MongoOperator.OP_AND.getValue(), new BasicDBObject[] {query, keysetObject});
             }
 
             DBCollection dbColl = db.getCollection(collectionName);
@@ -603,43 +1313,358 @@ public class MongoDBUtils
                     " for fields=" + fieldsSelection + " with filter=" + query + " and ordering=" + orderingObject);
             }
             DBCursor curs = dbColl.find(query, fieldsSelection);
+            int fetchSize = q.getFetchPlan().getFetchSize();
+            if (fetchSize > 0)
+            {
+                // Limit the number of documents held in each batch of the cursor
+                curs = curs.batchSize(fetchSize);
+            }
+            applyCursorOptionsForQuery(q, curs);
             if (ec.getStatistics() != null)
             {
                 // Add to statistics
                 ec.getStatistics().incrementNumReads();
             }
 
+            boolean sortPushedDown = false;
+            boolean rangePushedDown = false;
             if (classesByCollectionName.size() == 1)
             {
                 if (orderingObject != null)
                 {
-                    curs = curs.sort(orderingObject);
+                    curs = curs.sort(keysetOrdering != null ? keysetOrdering : orderingObject);
                     qr.setOrderProcessed(true);
+                    sortPushedDown = true;
                 }
 
                 // We have a single DBCursor so apply the range specification directly to this DBCursor
-                if (skip != null && skip > 0)
+                // (where continuing from a continuation token, the token replaces the start of the range)
+                if (continuationToken != null)
+                {
+                    qr.setRangeProcessed(true);
+                    rangePushedDown = true;
+                }
+                else if (rangeApplicable && skip != null && skip > 0)
                 {
                     curs = curs.skip(skip);
                     qr.setRangeProcessed(true);
+                    rangePushedDown = true;
                 }
-                if (limit != null && limit > 0)
+                if (rangeApplicable && limit != null && limit > 0)
                 {
                     curs = curs.limit(limit);
                     qr.setRangeProcessed(true);
+                    rangePushedDown = true;
+                }
+            }
+            else if (mergeCursors)
+            {
+                // Sort each DBCursor, and merge them in the QueryResult
+                if (orderingObject != null)
+                {
+                    curs = curs.sort(orderingObject);
+                    sortPushedDown = true;
+                }
+
+                // Each DBCursor can provide at most (skip + limit) of the results, with the range applied when merging
+                if (limit != null && limit > 0)
+                {
+                    long cursorLimit = (long)limit + (skip != null && skip > 0 ? skip : 0);
+                    if (cursorLimit <= Integer.MAX_VALUE)
+                    {
+                        curs = curs.limit((int)cursorLimit);
+                        rangePushedDown = true;
+                    }
+                }
+            }
+
+            List<DBObject> explanations = (options != null ? (List<DBObject>)options.get("explain") : null);
+            Integer scanWarningRatio = (options != null ? (Integer)options.get("scan-warning-ratio") : null);
+            if (explanations != null || scanWarningRatio != null)
+            {
+                // Explain the cursor (which runs the query in the datastore, without returning the documents)
+                DBObject plan = curs.explain();
+                BasicDBObject explanation = getSummaryForExplain(plan);
+                if (explanations != null)
+                {
+                    BasicDBObject explained = new BasicDBObject("collection", collectionName);
+                    explained.append("filter", query);
+                    explained.append("ordering", orderingObject);
+                    explained.append("sortPushedDown", sortPushedDown);
+                    explained.append("rangePushedDown", rangePushedDown);
+                    explained.putAll((DBObject)explanation);
+                    explained.append("plan", plan);
+                    explanations.add(explained);
+                }
+                if (scanWarningRatio != null)
+                {
+                    checkScanForExplain(q, collectionName, filterObject, explanation, scanWarningRatio);
                 }
             }
 
-            if (curs.hasNext())
+            // Add to our QueryResult, which only opens the cursor when the results are read
+            qr.addCandidateResult(rootCmd, curs, fpMembers);
+        }
+
+        if (mergeCursors)
+        {
+            if (orderingObject != null)
             {
-                // Contains result(s) so add it to our QueryResult
-                qr.addCandidateResult(rootCmd, curs, fpMembers);
+                qr.setMergeOrdering(orderingObject);
             }
+            if ((skip != null && skip > 0) || (limit != null && limit > 0))
+            {
+                qr.setRange((skip != null && skip > 0) ? skip : 0, (limit != null && limit > 0) ? limit : -1);
+            }
+        }
+        if (classesByCollectionName.size() > 1)
+        {
+            // Run the query against all collections concurrently when read, processing each as it completes
+            qr.setConcurrentExecutor(((MongoDBStoreManager)storeMgr).getQueryExecutor());
         }
 
         return qr;
     }
 
+    /**
+     * Convenience method to return the condition for the documents after the continuation token in the keyset ordering,
+     * i.e for ordering {a:1, b:-1, _id:1} and token values (va, vb, vid) this is
+     * <pre>{$or : [{a:{$gt:va}}, {a:va, b:{$lt:vb}}, {a:va, b:null}, {a:va, b:vb, _id:{$gt:vid}}]}</pre>
+     * A null (or missing) value sorts before all others, so in ascending order the documents after a null value are those
+     * with a non-null value, and in descending order the documents after a non-null value include those with a null value.
+     * @param ordering The keyset ordering (ending with _id)
+     * @param token The continuation token (from LazyLoadQueryResult.getContinuationToken)
+     * @return The condition
+     * @throws NucleusUserException if the token is not for this ordering
+     */
+    public static BasicDBObject getKeysetConditionForContinuationToken(BasicDBObject ordering, String token)
+    {
+        Object tokenObject = null;
+        try
+        {
+            tokenObject = JSON.parse(token);
+        }
+        catch (RuntimeException e)
+        {
+            throw new NucleusUserException("Continuation token " + token + " is invalid", e);
+        }
+        if (!(tokenObject instanceof DBObject) || !new ArrayList<String>(((DBObject)tokenObject).keySet()).equals(new ArrayList<String>(ordering.keySet())))
+        {
+            throw new NucleusUserException("Continuation token " + token + " is not for a query with ordering " + ordering);
+        }
+        DBObject tokenValues = (DBObject)tokenObject;
+
+        BasicDBList orOptions = new BasicDBList();
+        BasicDBObject previousEqual = new BasicDBObject();
+        for (String fieldName : ordering.keySet())
+        {
+            Object value = tokenValues.get(fieldName);
+            boolean descending = (((Number)ordering.get(fieldName)).intValue() < 0);
+            BasicDBObject after = new BasicDBObject(previousEqual);
+            if (value == null)
+            {
+                if (!descending)
+                {
+                    after.append(fieldName, new BasicDBObject(MongoOperator.OP_NOTEQ.getValue(), null));
+                    orOptions.add(after);
+                }
+            }
+            else
+            {
+                after.append(fieldName, new BasicDBObject(descending ? MongoOperator.OP_LT.getValue() : MongoOperator.OP_GT.getValue(), value));
+                orOptions.add(after);
+                if (descending)
+                {
+                    // Null/missing values sort after all others when descending
+                    BasicDBObject afterNull = new BasicDBObject(previousEqual);
+                    afterNull.append(fieldName, null);
+                    orOptions.add(afterNull);
+                }
+            }
+            previousEqual.append(fieldName, value);
+        }
+        return new BasicDBObject(MongoOperator.OP_OR.getValue(), orOptions);
+    }
+
+    /**
+     * Convenience method to apply the cursor options specified by extensions of the query to the cursor. Supports
+     * "hint" (index name, or key pattern as JSON), "max-time-ms", "comment", "snapshot", "no-cursor-timeout" and
+     * "max-scan". The datastore read timeout of the query is used as the maximum time when "max-time-ms" isn't specified.
+     * @param q The query
+     * @param curs The cursor
+     */
+    private static void applyCursorOptionsForQuery(Query q, DBCursor curs)
+    {
+        Object hint = getIndexHint(q.getExtension("hint"));
+        if (hint instanceof DBObject)
+        {
+            curs.hint((DBObject)hint);
+        }
+        else if (hint != null)
+        {
+            curs.hint((String)hint);
+        }
+
+        int maxTimeMillis = q.getIntExtensionProperty("max-time-ms", 0);
+        if (maxTimeMillis <= 0 && q.getDatastoreReadTimeoutMillis() != null)
+        {
+            maxTimeMillis = q.getDatastoreReadTimeoutMillis();
+        }
+        if (maxTimeMillis > 0)
+        {
+            curs.maxTime(maxTimeMillis, TimeUnit.MILLISECONDS);
+        }
+
+        Object comment = q.getExtension("comment");
+        if (comment != null)
+        {
+            curs.comment(comment.toString());
+        }
+        if (q.getBooleanExtensionProperty("snapshot", false))
+        {
+            curs.snapshot();
+        }
+        if (q.getBooleanExtensionProperty("no-cursor-timeout", false))
+        {
+            curs.addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+        }
+        int maxScan = q.getIntExtensionProperty("max-scan", 0);
+        if (maxScan > 0)
+        {
+            curs.maxScan(maxScan);
+        }
+    }
+
+    /**
+     * Convenience method to return the index to hint for the value of the "hint" extension, either the key pattern
+     * of the index (a DBObject, or JSON starting with "{") or the name of the index.
+     * @param hint Value of the extension
+     * @return The key pattern (DBObject) or index name (String), or null if no hint
+     */
+    static Object getIndexHint(Object hint)
+    {
+        if (hint == null || hint instanceof DBObject)
+        {
+            return hint;
+        }
+        String hintStr = hint.toString().trim();
+        if (hintStr.startsWith("{"))
+        {
+            // Key pattern of the index
+            return JSON.parse(hintStr);
+        }
+        return hintStr;
+    }
+
+    /**
+     * Convenience method to summarise the output of explain() for a cursor, as "index" (the index used, or COLLSCAN
+     * when scanning the collection), "docsExamined" and "docsReturned". Handles both the query planner output
+     * (MongoDB 3.0+) and the legacy output.
+     * @param plan The explain output
+     * @return The summary (with null for anything not present in the output)
+     */
+    public static BasicDBObject getSummaryForExplain(DBObject plan)
+    {
+        String index = null;
+        Object examined = null;
+        Object returned = null;
+        Object queryPlanner = plan.get("queryPlanner");
+        if (queryPlanner instanceof DBObject)
+        {
+            index = getIndexForPlanStage(((DBObject)queryPlanner).get("winningPlan"));
+            Object stats = plan.get("executionStats");
+            if (stats instanceof DBObject)
+            {
+                examined = ((DBObject)stats).get("totalDocsExamined");
+                returned = ((DBObject)stats).get("nReturned");
+            }
+        }
+        else
+        {
+            String cursorType = (String)plan.get("cursor");
+            if (cursorType != null)
+            {
+                if (cursorType.startsWith("BasicCursor"))
+                {
+                    index = "COLLSCAN";
+                }
+                else
+                {
+                    index = cursorType.startsWith("BtreeCursor ") ? cursorType.substring(12) : cursorType;
+                }
+            }
+            examined = plan.get("nscannedObjects");
+            returned = plan.get("n");
+        }
+
+        BasicDBObject summary = new BasicDBObject("index", index);
+        summary.append("docsExamined", examined);
+        summary.append("docsReturned", returned);
+        return summary;
+    }
+
+    private static String getIndexForPlanStage(Object stage)
+    {
+        if (!(stage instanceof DBObject))
+        {
+            return null;
+        }
+        DBObject stageObject = (DBObject)stage;
+        String stageName = (String)stageObject.get("stage");
+        if ("IXSCAN".equals(stageName))
+        {
+            return (String)stageObject.get("indexName");
+        }
+        else if ("COLLSCAN".equals(stageName))
+        {
+            return stageName;
+        }
+        else if (stageObject.get("inputStage") != null)
+        {
+            return getIndexForPlanStage(stageObject.get("inputStage"));
+        }
+        else if (stageObject.get("inputStages") instanceof List)
+        {
+            // e.g OR of multiple index scans
+            StringBuilder indexes = new StringBuilder();
+            for (Object inputStage : (List)stageObject.get("inputStages"))
+            {
+                String index = getIndexForPlanStage(inputStage);
+                if (index != null)
+                {
+                    indexes.append(indexes.length() > 0 ? "," : "").append(index);
+                }
+            }
+            return indexes.length() > 0 ? indexes.toString() : null;
+        }
+        return null;
+    }
+
+    /**
+     * Convenience method to log a warning when the explained cursor of a query does a collection scan
+     * (for a filtered query) or examines more than the specified ratio of the documents it returns.
+     * @param q The query
+     * @param collectionName Name of the collection queried
+     * @param filterObject The filter of the query (if any)
+     * @param summary Summary of the explain output of the cursor (see getSummaryForExplain)
+     * @param ratio Maximum ratio of documents examined to documents returned
+     */
+    private static void checkScanForExplain(Query q, String collectionName, BasicDBObject filterObject, BasicDBObject summary, int ratio)
+    {
+        long examined = (summary.get("docsExamined") instanceof Number ? ((Number)summary.get("docsExamined")).longValue() : 0);
+        long returned = (summary.get("docsReturned") instanceof Number ? ((Number)summary.get("docsReturned")).longValue() : 0);
+        if ("COLLSCAN".equals(summary.get("index")) && filterObject != null && !filterObject.isEmpty())
+        {
+            NucleusLogger.QUERY.warn("Query \"" + q + "\" does a collection scan of " + collectionName + " for filter " + filterObject +
+                " (examining " + examined + " documents to return " + returned + "). Consider adding an index");
+        }
+        else if (examined > (long)ratio * Math.max(returned, 1))
+        {
+            NucleusLogger.QUERY.warn("Query \"" + q + "\" examines " + examined + " documents of " + collectionName + " to return " + returned +
+                " using index " + summary.get("index") + ". Consider adding a more selective index");
+        }
+    }
+
     /**
      * Convenience method that takes the provided DBObject and the details of the candidate that it is an instance of, and converts it into the associated POJO.
      * @param dbObject The DBObject
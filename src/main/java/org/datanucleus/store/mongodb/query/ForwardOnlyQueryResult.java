@@ -0,0 +1,215 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query;
+
+import java.io.NotSerializableException;
+import java.io.ObjectStreamException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.store.query.AbstractQueryResultIterator;
+import org.datanucleus.store.query.Query;
+import org.datanucleus.util.Localiser;
+
+/**
+ * QueryResult for MongoDB queries that streams the results from the provided DBCursor(s) in a single forward pass.
+ * No materialised results are retained by this object, so the only memory used is that of the current cursor batch
+ * (controllable via the fetch size of the query). Consequently the results can only be iterated once, and
+ * random access operations (get, size, contains) are not supported.
+ * Unlike LazyLoadQueryResult, the remaining results are never loaded when the connection is closed, since the
+ * MongoDB cursors are independent of the DataNucleus managed connection; the results must though be consumed before
+ * the ExecutionContext is closed.
+ */
+public class ForwardOnlyQueryResult extends LazyLoadQueryResult
+{
+    /** Whether the (one and only) iterator has been returned. */
+    protected boolean iteratorReturned = false;
+
+    public ForwardOnlyQueryResult(Query q)
+    {
+        super(q);
+
+        // Never retain any of the results
+        items = null;
+        itemsByIndex = null;
+    }
+
+    /* (non-Javadoc)
+     * @see org.datanucleus.store.mongodb.query.LazyLoadQueryResult#cacheResult(java.lang.Object)
+     */
+    @Override
+    protected void cacheResult(Object pojo)
+    {
+        // Results are not retained
+    }
+
+    /* (non-Javadoc)
+     * @see org.datanucleus.store.mongodb.query.LazyLoadQueryResult#closingConnection()
+     */
+    @Override
+    protected void closingConnection()
+    {
+        // Nothing to do since we never load the remaining results
+    }
+
+    /* (non-Javadoc)
+     * @see org.datanucleus.store.mongodb.query.LazyLoadQueryResult#closeResults()
+     */
+    @Override
+    protected void closeResults()
+    {
+        // Cursors are released when exhausted or when this result is closed
+    }
+
+    /* (non-Javadoc)
+     * @see org.datanucleus.store.mongodb.query.LazyLoadQueryResult#getSizeUsingMethod()
+     */
+    @Override
+    protected int getSizeUsingMethod()
+    {
+        if (resultSizeMethod.equalsIgnoreCase("LAST"))
+        {
+            throw new UnsupportedOperationException("Size of a forward-only query result is not available using method LAST. Use method COUNT");
+        }
+        return super.getSizeUsingMethod();
+    }
+
+    /* (non-Javadoc)
+     * @see org.datanucleus.store.mongodb.query.LazyLoadQueryResult#get(int)
+     */
+    @Override
+    public Object get(int index)
+    {
+        throw new UnsupportedOperationException("Forward-only query results do not support random access");
+    }
+
+    /* (non-Javadoc)
+     * @see org.datanucleus.store.mongodb.query.LazyLoadQueryResult#contains(java.lang.Object)
+     */
+    @Override
+    public boolean contains(Object o)
+    {
+        throw new UnsupportedOperationException("Forward-only query results do not support contains()");
+    }
+
+    /* (non-Javadoc)
+     * @see org.datanucleus.store.mongodb.query.LazyLoadQueryResult#containsAll(java.util.Collection)
+     */
+    @Override
+    public boolean containsAll(Collection c)
+    {
+        throw new UnsupportedOperationException("Forward-only query results do not support containsAll()");
+    }
+
+    /* (non-Javadoc)
+     * @see org.datanucleus.store.mongodb.query.LazyLoadQueryResult#iterator()
+     */
+    @Override
+    public synchronized Iterator iterator()
+    {
+        if (iteratorReturned)
+        {
+            throw new NucleusUserException("Forward-only query results can only be iterated once");
+        }
+        iteratorReturned = true;
+        return new ForwardOnlyQueryResultIterator();
+    }
+
+    /* (non-Javadoc)
+     * @see org.datanucleus.store.mongodb.query.LazyLoadQueryResult#listIterator()
+     */
+    @Override
+    public ListIterator listIterator()
+    {
+        return (ListIterator)iterator();
+    }
+
+    private class ForwardOnlyQueryResultIterator extends AbstractQueryResultIterator
+    {
+        @Override
+        public boolean hasNext()
+        {
+            synchronized (ForwardOnlyQueryResult.this)
+            {
+                if (!isOpen())
+                {
+                    // Spec 14.6.7 Calling hasNext() on closed Query will return false
+                    return false;
+                }
+
+                return hasNextResult();
+            }
+        }
+
+        @Override
+        public Object next()
+        {
+            synchronized (ForwardOnlyQueryResult.this)
+            {
+                if (!isOpen())
+                {
+                    // Spec 14.6.7 Calling next() on closed Query will throw NoSuchElementException
+                    throw new NoSuchElementException(Localiser.msg("052600"));
+                }
+
+                if (hasNextResult())
+                {
+                    return getNextObject();
+                }
+                throw new NoSuchElementException(Localiser.msg("052602"));
+            }
+        }
+
+        @Override
+        public boolean hasPrevious()
+        {
+            throw new UnsupportedOperationException("Forward-only query results cannot be navigated backwards");
+        }
+
+        @Override
+        public int nextIndex()
+        {
+            return numResultsRead;
+        }
+
+        @Override
+        public Object previous()
+        {
+            throw new UnsupportedOperationException("Forward-only query results cannot be navigated backwards");
+        }
+
+        @Override
+        public int previousIndex()
+        {
+            return numResultsRead - 1;
+        }
+    }
+
+    /**
+     * Forward-only results cannot be serialised since they are not retained.
+     * @return Never returns
+     * @throws ObjectStreamException Always thrown
+     */
+    protected Object writeReplace() throws ObjectStreamException
+    {
+        throw new NotSerializableException("Forward-only query results cannot be serialised");
+    }
+}
@@ -19,12 +19,10 @@ package org.datanucleus.store.mongodb.query;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.datanucleus.ExecutionContext;
-import org.datanucleus.exceptions.NucleusException;
 import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.query.evaluator.JDOQLEvaluator;
@@ -32,8 +30,8 @@ import org.datanucleus.query.evaluator.JavaQueryEvaluator;
 import org.datanucleus.store.StoreManager;
 import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.store.connection.ManagedConnectionResourceListener;
+import org.datanucleus.store.mongodb.MongoDBStoreManager;
 import org.datanucleus.store.mongodb.MongoDBUtils;
-import org.datanucleus.store.mongodb.query.expression.MongoBooleanExpression;
 import org.datanucleus.store.query.AbstractJDOQLQuery;
 import org.datanucleus.store.query.AbstractQueryResult;
 import org.datanucleus.store.query.QueryManager;
@@ -41,7 +39,6 @@ import org.datanucleus.store.query.QueryResult;
 import org.datanucleus.util.Localiser;
 import org.datanucleus.util.NucleusLogger;
 
-import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 
 /**
@@ -251,20 +248,18 @@ public class JDOQLQuery extends AbstractJDOQLQuery
 
     protected Object performExecute(Map parameters)
     {
+        long startTime = System.currentTimeMillis();
         ManagedConnection mconn = getStoreManager().getConnection(ec);
         try
         {
             DB db = (DB)mconn.getConnection();
 
-            long startTime = System.currentTimeMillis();
             if (NucleusLogger.QUERY.isDebugEnabled())
             {
                 NucleusLogger.QUERY.debug(Localiser.msg("021046", "JDOQL", getSingleStringQuery(), null));
             }
 
-            boolean filterInMemory = true;
-            Boolean orderInMemory = (ordering != null);
-            Boolean rangeInMemory = (range != null);
+            MongoDBQueryExecution execution = new MongoDBQueryExecution(this, datastoreCompilation);
             List candidates = null;
             if (candidateCollection != null)
             {
@@ -276,56 +271,17 @@ public class JDOQLQuery extends AbstractJDOQLQuery
             }
             else
             {
-                BasicDBObject filterObject = null;
-                MongoBooleanExpression filterExpr = datastoreCompilation.getFilterExpression();
-                if (filterExpr != null)
+                Object datastoreResult = execution.execute(db, mconn, parameters);
+                if (datastoreResult != null)
                 {
-                    filterObject = filterExpr.getDBObject();
-                }
-
-                MongoDBResult resultObject = datastoreCompilation.getResult();
-                // TODO properly support GROUP BY
-                if (resultObject != null && resultObject.isCountOnly() && datastoreCompilation.isFilterComplete() && grouping == null) 
-                {
-                    return MongoDBUtils.performMongoCount(db, filterObject, candidateClass, subclasses, ec);
-                }
-
-                Map<String, Object> options = new HashMap();
-                if (getBooleanExtensionProperty("slave-ok", false))
-                {
-                    options.put("slave-ok", true);
-                }
-
-                if (filter == null || datastoreCompilation.isFilterComplete())
-                {
-                    filterInMemory = false;
-                }
-
-                if (filterInMemory || result != null || resultClass != null)
-                {
-                    candidates = MongoDBUtils.getObjectsOfCandidateType(this, db, filterObject, options);
-                }
-                else
-                {
-                    // Execute as much as possible in the datastore
-                    BasicDBObject orderingObject = datastoreCompilation.getOrdering();
-                    candidates = MongoDBUtils.getObjectsOfCandidateType(this, db, filterObject, orderingObject, options,
-                        (int) this.fromInclNo, (int) (this.toExclNo - this.fromInclNo));
-                    if (orderInMemory && ((LazyLoadQueryResult)candidates).getOrderProcessed())
-                    {
-                        // Order processed when getting candidates
-                        orderInMemory = false;
-                    }
-                    if (rangeInMemory && ((LazyLoadQueryResult)candidates).getRangeProcessed())
-                    {
-                        // Range processed when getting candidates
-                        rangeInMemory = false;
-                    }
+                    return datastoreResult;
                 }
+                candidates = execution.getCandidates();
             }
 
             Collection results = candidates;
-            if (filterInMemory || result != null || resultClass != null || rangeInMemory || orderInMemory)
+            if (execution.isFilterInMemory() || execution.isResultInMemory() || resultClass != null ||
+                execution.isRangeInMemory() || execution.isOrderInMemory())
             {
                 if (candidates instanceof QueryResult)
                 {
@@ -335,7 +291,8 @@ public class JDOQLQuery extends AbstractJDOQLQuery
 
                 JavaQueryEvaluator resultMapper = new JDOQLEvaluator(this, candidates, compilation,
                     parameters, ec.getClassLoaderResolver());
-                results = resultMapper.execute(filterInMemory, orderInMemory, result != null, resultClass != null, rangeInMemory);
+                results = resultMapper.execute(execution.isFilterInMemory(), execution.isOrderInMemory(),
+                    execution.isResultInMemory(), resultClass != null, execution.isRangeInMemory());
             }
 
             if (NucleusLogger.QUERY.isDebugEnabled())
@@ -357,7 +314,7 @@ public class JDOQLQuery extends AbstractJDOQLQuery
             }
             else if (type == BULK_UPDATE)
             {
-                throw new NucleusException("Bulk Update is not yet supported");
+                throw new NucleusUserException("Bulk Update is only supported when the filter and update clause can be evaluated in the datastore");
             }
 
             if (results instanceof QueryResult)
@@ -422,10 +379,16 @@ public class JDOQLQuery extends AbstractJDOQLQuery
         mapper.compile();
         datastoreCompilation.setFilterComplete(mapper.isFilterComplete());
         datastoreCompilation.setFilterExpression(mapper.getFilterExpression());
+        datastoreCompilation.setFilterParameterised(mapper.isFilterParameterised());
         datastoreCompilation.setOrdering(mapper.getOrderingObject());
         datastoreCompilation.setResultComplete(mapper.isResultComplete());
         datastoreCompilation.setResult(mapper.getResultObject());
+        datastoreCompilation.setUpdate(mapper.getUpdateObject());
         datastoreCompilation.setPrecompilable(mapper.isPrecompilable());
+        if (((MongoDBStoreManager)getStoreManager()).getIndexAdvisor() != null)
+        {
+            datastoreCompilation.setQueryShape(mapper.getQueryShape());
+        }
 
         if (candidateCollection != null)
         {
@@ -17,25 +17,23 @@ Contributors :
 ***********************************************************************/
 package org.datanucleus.store.mongodb.query;
 
-import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.datanucleus.ExecutionContext;
-import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.query.evaluator.JPQLEvaluator;
 import org.datanucleus.query.evaluator.JavaQueryEvaluator;
 import org.datanucleus.store.StoreManager;
 import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.store.connection.ManagedConnectionResourceListener;
+import org.datanucleus.store.mongodb.MongoDBStoreManager;
 import org.datanucleus.store.mongodb.MongoDBUtils;
-import org.datanucleus.store.mongodb.query.expression.MongoBooleanExpression;
 import org.datanucleus.store.query.AbstractJPQLQuery;
 import org.datanucleus.store.query.AbstractQueryResult;
 import org.datanucleus.store.query.QueryManager;
@@ -225,20 +223,18 @@ public class JPQLQuery extends AbstractJPQLQuery
     
     protected Object performExecute(Map parameters)
     {
+        long startTime = System.currentTimeMillis();
         ManagedConnection mconn = getStoreManager().getConnection(ec);
         try
         {
             DB db = (DB)mconn.getConnection();
 
-            long startTime = System.currentTimeMillis();
             if (NucleusLogger.QUERY.isDebugEnabled())
             {
                 NucleusLogger.QUERY.debug(Localiser.msg("021046", "JPQL", getSingleStringQuery(), null));
             }
 
-            boolean filterInMemory = true;
-            boolean orderInMemory = (ordering != null);
-            boolean rangeInMemory = (range != null);
+            MongoDBQueryExecution execution = new MongoDBQueryExecution(this, datastoreCompilation);
             List candidates = null;
             if (candidateCollection != null)
             {
@@ -250,57 +246,17 @@ public class JPQLQuery extends AbstractJPQLQuery
             }
             else
             {
-                BasicDBObject filterObject = null;
-                MongoBooleanExpression filterExpr = datastoreCompilation.getFilterExpression();
-                if (filterExpr != null)
+                Object datastoreResult = execution.execute(db, mconn, parameters);
+                if (datastoreResult != null)
                 {
-                    filterObject = filterExpr.getDBObject();
-                }
-                
-                MongoDBResult resultObject = datastoreCompilation.getResult();
-                // TODO properly support GROUP BY
-                if (resultObject != null && resultObject.isCountOnly() && datastoreCompilation.isFilterComplete() && 
-                    grouping == null) 
-                {
-                    return MongoDBUtils.performMongoCount(db, filterObject, candidateClass, subclasses, ec);
-                } 
-
-                Map<String, Object> options = new HashMap();
-                if (getBooleanExtensionProperty("slave-ok", false))
-                {
-                    options.put("slave-ok", true);
-                }
-
-                if (filter == null || datastoreCompilation.isFilterComplete())
-                {
-                    filterInMemory = false;
-                }
-
-                if (filterInMemory || result != null || resultClass != null)
-                {
-                    candidates = MongoDBUtils.getObjectsOfCandidateType(this, db, filterObject, options);
-                }
-                else
-                {
-                    // Execute as much as possible in the datastore
-                    BasicDBObject orderingObject = datastoreCompilation.getOrdering();
-                    candidates = MongoDBUtils.getObjectsOfCandidateType(this, db, filterObject, orderingObject, options,
-                        (int) this.fromInclNo, (int) (this.toExclNo - this.fromInclNo));
-                    if (orderInMemory && ((LazyLoadQueryResult)candidates).getOrderProcessed())
-                    {
-                        // Order processed when getting candidates
-                        orderInMemory = false;
-                    }
-                    if (rangeInMemory && ((LazyLoadQueryResult)candidates).getRangeProcessed())
-                    {
-                        // Range processed when getting candidates
-                        rangeInMemory = false;
-                    }
+                    return datastoreResult;
                 }
+                candidates = execution.getCandidates();
             }
 
             Collection results = candidates;
-            if (filterInMemory || result != null || resultClass != null || rangeInMemory || orderInMemory)
+            if (execution.isFilterInMemory() || execution.isResultInMemory() || resultClass != null ||
+                execution.isRangeInMemory() || execution.isOrderInMemory())
             {
                 if (results instanceof QueryResult)
                 {
@@ -311,7 +267,8 @@ public class JPQLQuery extends AbstractJPQLQuery
                 // Perform any additional evaluation in-memory
                 JavaQueryEvaluator resultMapper = new JPQLEvaluator(this, candidates, compilation, 
                     parameters, ec.getClassLoaderResolver());
-                results = resultMapper.execute(filterInMemory, orderInMemory, result != null, resultClass != null, rangeInMemory);
+                results = resultMapper.execute(execution.isFilterInMemory(), execution.isOrderInMemory(),
+                    execution.isResultInMemory(), resultClass != null, execution.isRangeInMemory());
             }
 
             if (NucleusLogger.QUERY.isDebugEnabled())
@@ -333,7 +290,7 @@ public class JPQLQuery extends AbstractJPQLQuery
             }
             else if (type == BULK_UPDATE)
             {
-                throw new NucleusException("Bulk Update is not yet supported");
+                throw new NucleusUserException("Bulk Update is only supported when the filter and update clause can be evaluated in the datastore");
             }
 
             if (results instanceof QueryResult)
@@ -400,9 +357,16 @@ public class JPQLQuery extends AbstractJPQLQuery
         mapper.compile();
         datastoreCompilation.setFilterComplete(mapper.isFilterComplete());
         datastoreCompilation.setFilterExpression(mapper.getFilterExpression());
+        datastoreCompilation.setFilterParameterised(mapper.isFilterParameterised());
+        datastoreCompilation.setOrdering(mapper.getOrderingObject());
         datastoreCompilation.setResultComplete(mapper.isResultComplete());
         datastoreCompilation.setResult(mapper.getResultObject());
+        datastoreCompilation.setUpdate(mapper.getUpdateObject());
         datastoreCompilation.setPrecompilable(mapper.isPrecompilable());
+        if (((MongoDBStoreManager)getStoreManager()).getIndexAdvisor() != null)
+        {
+            datastoreCompilation.setQueryShape(mapper.getQueryShape());
+        }
 
         if (candidateCollection != null)
         {
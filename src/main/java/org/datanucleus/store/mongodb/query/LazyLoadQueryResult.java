@@ -18,18 +18,37 @@ Contributors:
 package org.datanucleus.store.mongodb.query;
 
 import java.io.ObjectStreamException;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.datanucleus.ExecutionContext;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.FieldRole;
 import org.datanucleus.store.mongodb.MongoDBUtils;
+import org.datanucleus.store.mongodb.query.expression.MongoFieldExpression;
 import org.datanucleus.store.query.AbstractQueryResult;
 import org.datanucleus.store.query.AbstractQueryResultIterator;
 import org.datanucleus.store.query.Query;
@@ -39,8 +58,11 @@ import org.datanucleus.util.SoftValueMap;
 import org.datanucleus.util.StringUtils;
 import org.datanucleus.util.WeakValueMap;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.util.JSON;
 
 /**
  * QueryResult for MongoDB queries that tries to lazy load results from the provided DBCursor(s)
@@ -53,20 +75,100 @@ public class LazyLoadQueryResult extends AbstractQueryResult
     /** Candidate results for this query that have not been (completely) processed yet. */
     protected List<CandidateClassResult> candidateResults = new ArrayList<CandidateClassResult>();
 
-    /** Iterator for the DBCursor that is being processed (if any). */
-    protected Iterator<DBObject> currentCursorIterator = null;
+    /** Executor to run the cursors on concurrently when the results are first read (if required). */
+    protected ExecutorService concurrentExecutor = null;
 
-    /** Map of object, keyed by the index (0, 1, etc). */
+    /** Candidate results whose cursors are being executed concurrently, provided in order of completion. */
+    protected CompletionService<CandidateClassResult> pendingResults = null;
+
+    /** Number of candidate results still to be taken from "pendingResults". */
+    protected int numPendingResults = 0;
+
+    /** All candidate results being executed concurrently, so that their cursors can be released on close. */
+    protected List<CandidateClassResult> concurrentResults = null;
+
+    /** Tasks executing the cursors of "concurrentResults" (in the same order), so that close can wait for them. */
+    protected List<Future<CandidateClassResult>> concurrentTasks = null;
+
+    /** Comparator used to merge the (individually sorted) cursors when the query is ordered across multiple cursors. */
+    protected Comparator<DBObject> mergeComparator = null;
+
+    /** Candidate results ordered by their next DBObject, when merging. Created when the results are first read. */
+    protected PriorityQueue<CandidateClassResult> mergeQueue = null;
+
+    /** Number of DBObjects to skip across all cursors before the first result. */
+    protected int rangeSkip = 0;
+
+    /** Maximum number of results across all cursors (or -1 if no limit). */
+    protected int rangeLimit = -1;
+
+    /** Number of DBObjects read so far across all cursors (including those skipped). */
+    protected int numDBObjectsRead = 0;
+
+    /** Number of results materialised so far. */
+    protected int numResultsRead = 0;
+
+    /** The candidate result that the last DBObject was read from. */
+    protected CandidateClassResult currentResult = null;
+
+    /** Results retained when using a "strong" cache, in the order read (the first "numResultsRead" elements). */
+    protected Object[] items = null;
+
+    /** Results retained when using a "soft" or "weak" cache, keyed by the index (0, 1, etc). */
     protected Map<Integer, Object> itemsByIndex = null;
 
+    /**
+     * Set of the results retained in "items", built when first needed by contains(). For candidate results this is
+     * an identity set, since the ExecutionContext has a single object for each identity, so this avoids calling
+     * equals/hashCode of the persistable classes. Result rows of field values use equals.
+     */
+    protected Set<Object> itemsSet = null;
+
     boolean rangeProcessed = false;
 
     boolean orderProcessed = false;
 
+    /** Cache to add the results to once all have been read (if caching the results). */
+    protected MongoDBQueryResultCache resultCache = null;
+
+    /** Key for the results in the result cache. */
+    protected List<Object> resultCacheKey = null;
+
+    /** Generations of the collections read, from when the results were registered for caching. */
+    protected Map<String, Long> resultCacheGenerations = null;
+
+    /** Identities of the results read so far (if caching the results). */
+    protected List<Object> resultIds = null;
+
+    /** Class names of the results read so far (if caching the results). */
+    protected List<String> resultClassNames = null;
+
+    /** Index advisor to record the execution of the query with, once the cursors are exhausted or released. */
+    protected MongoDBIndexAdvisor indexAdvisor = null;
+
+    /** Shape of the query to record with the index advisor. */
+    protected MongoDBIndexAdvisor.QueryShape indexAdvisorShape = null;
+
+    /** Time at which the query started executing (when recording the execution with the index advisor). */
+    protected long executionStartTime = 0;
+
+    /** Fields making up each result row, when the results are built directly from the DBObjects rather than as objects. */
+    protected List<MongoFieldExpression> resultFields = null;
+
+    /** Whether to ignore the L1 cache when materialising objects (held here since the query is released on disconnect). */
+    protected boolean ignoreCache = false;
+
+    /** Ordering (ending with _id) of the keyset used for the continuation token, when the query uses keyset pagination. */
+    protected BasicDBObject continuationOrdering = null;
+
+    /** The last DBObject read, when the query uses keyset pagination. */
+    protected DBObject lastDBObject = null;
+
     public LazyLoadQueryResult(Query q)
     {
         super(q);
         this.ec = q.getExecutionContext();
+        this.ignoreCache = q.getIgnoreCache();
 
         // Process any supported extensions
         String cacheType = query.getStringExtensionProperty("cacheType", "strong");
@@ -82,7 +184,7 @@ public class LazyLoadQueryResult extends AbstractQueryResult
             }
             else if (cacheType.equalsIgnoreCase("strong"))
             {
-                itemsByIndex = new HashMap();
+                items = new Object[16];
             }
             else if (cacheType.equalsIgnoreCase("none"))
             {
@@ -99,11 +201,13 @@ public class LazyLoadQueryResult extends AbstractQueryResult
         }
     }
 
-    private static class CandidateClassResult
+    protected static class CandidateClassResult
     {
         AbstractClassMetaData cmd;
         DBCursor cursor;
         int[] fpMembers;
+        /** Next DBObject of the cursor, when merging cursors. */
+        DBObject next;
         public CandidateClassResult(AbstractClassMetaData cmd, DBCursor curs, int[] fpMemberPositions)
         {
             this.cmd = cmd;
@@ -118,31 +222,406 @@ public class LazyLoadQueryResult extends AbstractQueryResult
     }
 
     /**
-     * Allow the creator to signify that the query range was processed when generating this QueryResult
-     * @param processed Whether the range was processed when the query was executed
+     * Method to specify that the results are rows of the values of the provided fields, built directly from the
+     * DBObjects without creating the candidate objects (the value itself when a single field, otherwise Object[]).
+     * @param fields The fields of each result row
      */
-    public void setRangeProcessed(boolean processed)
+    public void setResultFields(List<MongoFieldExpression> fields)
     {
-        this.rangeProcessed = processed;
+        this.resultFields = fields;
     }
 
-    public boolean getRangeProcessed()
+    /**
+     * Method to specify that the identities of the results are to be added to the provided cache once all results
+     * have been read. Must be called before any results are read.
+     * @param cache The query result cache
+     * @param key Key for the results in the cache
+     */
+    public synchronized void setResultCache(MongoDBQueryResultCache cache, List<Object> key)
     {
-        return rangeProcessed;
+        Set<String> collectionNames = new HashSet<String>();
+        for (CandidateClassResult result : candidateResults)
+        {
+            collectionNames.add(result.cursor.getCollection().getName());
+        }
+
+        this.resultCache = cache;
+        this.resultCacheKey = key;
+        this.resultCacheGenerations = cache.getGenerations(collectionNames);
+        this.resultIds = new ArrayList<Object>();
+        this.resultClassNames = new ArrayList<String>();
     }
 
     /**
-     * Allow the creator to signify that the query order was processed when generating this QueryResult
-     * @param processed Whether the order was processed when the query was executed
+     * Method to specify that the execution of the query is to be recorded with the provided index advisor, with the
+     * time taken until the cursors are exhausted (or released when this result is closed).
+     * @param advisor The index advisor
+     * @param shape The shape of the query
+     * @param startTime Time at which the query started executing
      */
-    public void setOrderProcessed(boolean processed)
+    public synchronized void setIndexAdvisor(MongoDBIndexAdvisor advisor, MongoDBIndexAdvisor.QueryShape shape, long startTime)
+    {
+        this.indexAdvisor = advisor;
+        this.indexAdvisorShape = shape;
+        this.executionStartTime = startTime;
+    }
+
+    private void recordExecution()
     {
-        this.orderProcessed = processed;
+        if (indexAdvisor != null)
+        {
+            indexAdvisor.recordExecution(indexAdvisorShape, System.currentTimeMillis() - executionStartTime);
+            indexAdvisor = null;
+            indexAdvisorShape = null;
+        }
     }
 
-    public boolean getOrderProcessed()
+    /**
+     * Method to specify that the cursors of this result are each sorted using the provided ordering, and so need
+     * merging to give the overall ordering. The results are merged as they are read, holding only the next
+     * DBObject of each cursor.
+     * @param ordering The sort specification applied to each cursor
+     */
+    public void setMergeOrdering(BasicDBObject ordering)
     {
-        return orderProcessed;
+        this.mergeComparator = new MongoDBOrderingComparator(ordering);
+        this.orderProcessed = true;
+    }
+
+    /**
+     * Method to specify that the results provide a continuation token, for the next range of the query to continue
+     * after the last result (see getContinuationToken).
+     * @param ordering The ordering of the cursor, ending with _id to make it unique
+     */
+    public void setContinuationOrdering(BasicDBObject ordering)
+    {
+        this.continuationOrdering = ordering;
+    }
+
+    /**
+     * Accessor for the continuation token of these results, being the values of the sort keys (and _id) of the last
+     * result. Providing this as the query extension "continuation-token" when executing the query for the next range
+     * continues after this result using a condition on the sort keys rather than skipping documents.
+     * Reads all results (unless forward-only, where it applies to the last result read so far).
+     * @return The continuation token, or null if the query doesn't use keyset pagination or there are no results
+     */
+    public String getContinuationToken()
+    {
+        if (continuationOrdering == null)
+        {
+            return null;
+        }
+        if (retainsResults())
+        {
+            loadRemainingResults();
+        }
+        if (lastDBObject == null)
+        {
+            return null;
+        }
+
+        BasicDBObject token = new BasicDBObject();
+        for (String fieldName : continuationOrdering.keySet())
+        {
+            token.append(fieldName, MongoDBOrderingComparator.getValueForPath(lastDBObject, fieldName));
+        }
+        return JSON.serialize(token);
+    }
+
+    /**
+     * Method to specify a range to apply across all cursors of this result, for use where there are multiple
+     * cursors. Each cursor should be limited to (skip + limit) documents so that the range is honoured.
+     * @param skip Number of DBObjects to skip
+     * @param limit Maximum number of results (or -1 if no limit)
+     */
+    public void setRange(int skip, int limit)
+    {
+        this.rangeSkip = skip;
+        this.rangeLimit = limit;
+        this.rangeProcessed = true;
+    }
+
+    /**
+     * Method to specify that the cursors of all candidate results are to be executed concurrently using the provided
+     * executor. The cursors are started when the results are first read (not when the query is executed), and each
+     * task only runs the query and retrieves the first batch of its cursor; the objects themselves are
+     * materialised on the calling thread as the results are read. The candidate results are then processed in
+     * the order in which their cursors complete, so the latency of the query is that of the slowest collection
+     * rather than the sum over all collections.
+     * @param executor The executor to run the cursors on
+     */
+    public synchronized void setConcurrentExecutor(ExecutorService executor)
+    {
+        this.concurrentExecutor = executor;
+    }
+
+    /**
+     * Method to start the cursors of all candidate results on the concurrent executor (if specified).
+     */
+    private void startConcurrentExecution()
+    {
+        ExecutorService executor = concurrentExecutor;
+        concurrentExecutor = null;
+        if (candidateResults.size() < 2)
+        {
+            // Nothing to gain
+            return;
+        }
+
+        pendingResults = new ExecutorCompletionService<CandidateClassResult>(executor);
+        concurrentResults = new ArrayList<CandidateClassResult>(candidateResults);
+        concurrentTasks = new ArrayList<Future<CandidateClassResult>>(candidateResults.size());
+        for (final CandidateClassResult result : candidateResults)
+        {
+            concurrentTasks.add(pendingResults.submit(new Callable<CandidateClassResult>()
+            {
+                public CandidateClassResult call()
+                {
+                    // Run the query and retrieve the first batch
+                    result.cursor.hasNext();
+                    return result;
+                }
+            }));
+            numPendingResults++;
+        }
+        candidateResults.clear();
+    }
+
+    /**
+     * Method to wait for the next of the concurrently executing cursors to complete, returning its candidate result.
+     * @return The candidate result
+     */
+    private CandidateClassResult takeCompletedResult()
+    {
+        try
+        {
+            CandidateClassResult result = pendingResults.take().get();
+            numPendingResults--;
+            return result;
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new NucleusException("Interrupted while waiting for the results of query " + query, ie);
+        }
+        catch (ExecutionException ee)
+        {
+            numPendingResults--;
+            Throwable cause = ee.getCause();
+            if (cause instanceof MongoException)
+            {
+                throw new NucleusDataStoreException("Exception thrown executing query " + query, cause);
+            }
+            else if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            throw new NucleusException("Exception thrown executing query " + query, cause);
+        }
+    }
+
+    /**
+     * Method to wait for a concurrently executing cursor to complete, when releasing the results. Any exception
+     * thrown by the task is ignored since its cursor is about to be closed.
+     * @param task The task executing the cursor
+     */
+    private void waitForTask(Future<CandidateClassResult> task)
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                task.get();
+                break;
+            }
+            catch (InterruptedException ie)
+            {
+                // Keep waiting, since the cursor must not be closed while in use, and restore the interrupt after
+                interrupted = true;
+            }
+            catch (ExecutionException ee)
+            {
+                NucleusLogger.QUERY.debug("Exception thrown executing query " + query + " when closing its results", ee.getCause());
+                break;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Method to return whether there is another result available, skipping the start of any range and releasing
+     * the cursors when the end of the range is reached.
+     * @return Whether there is another result available
+     */
+    protected boolean hasNextResult()
+    {
+        if (candidateResults == null)
+        {
+            return false;
+        }
+
+        boolean hasNext = positionNextResult();
+        if (!hasNext)
+        {
+            if (resultIds != null)
+            {
+                // All results read, so add them to the result cache
+                resultCache.putResults(resultCacheKey, resultCacheGenerations, resultIds, resultClassNames);
+                resultIds = null;
+                resultClassNames = null;
+            }
+            recordExecution();
+        }
+        return hasNext;
+    }
+
+    /**
+     * Method to position on the next result (if any), skipping the start of any range and releasing the cursors
+     * when the end of the range is reached.
+     * @return Whether there is another result available
+     */
+    private boolean positionNextResult()
+    {
+        if (rangeLimit >= 0 && numDBObjectsRead >= rangeSkip + rangeLimit)
+        {
+            // Reached the end of the range, so release the cursors
+            releaseCandidateResults();
+            return false;
+        }
+
+        while (numDBObjectsRead < rangeSkip)
+        {
+            // Skip over the start of the range without materialising objects
+            if (!hasNextDBObject())
+            {
+                return false;
+            }
+            nextDBObject();
+        }
+        return hasNextDBObject();
+    }
+
+    /**
+     * Method to return whether there is another DBObject available from the cursors, positioning on the
+     * next cursor with a DBObject available, releasing any cursors that are exhausted, and waiting for concurrently
+     * executing cursors where needed.
+     * @return Whether there is another DBObject available
+     */
+    private boolean hasNextDBObject()
+    {
+        if (concurrentExecutor != null)
+        {
+            startConcurrentExecution();
+        }
+
+        if (mergeComparator != null)
+        {
+            if (mergeQueue == null)
+            {
+                // Wait for all cursors and order them by their first DBObject
+                while (numPendingResults > 0)
+                {
+                    candidateResults.add(takeCompletedResult());
+                }
+                mergeQueue = new PriorityQueue<CandidateClassResult>(Math.max(1, candidateResults.size()), new Comparator<CandidateClassResult>()
+                {
+                    public int compare(CandidateClassResult result1, CandidateClassResult result2)
+                    {
+                        return mergeComparator.compare(result1.next, result2.next);
+                    }
+                });
+                Iterator<CandidateClassResult> resultIter = candidateResults.iterator();
+                while (resultIter.hasNext())
+                {
+                    CandidateClassResult result = resultIter.next();
+                    if (result.cursor.hasNext())
+                    {
+                        result.next = result.cursor.next();
+                        mergeQueue.add(result);
+                    }
+                    else
+                    {
+                        result.cursor.close();
+                        resultIter.remove();
+                    }
+                }
+            }
+            return !mergeQueue.isEmpty();
+        }
+
+        while (true)
+        {
+            if (candidateResults.isEmpty())
+            {
+                if (numPendingResults == 0)
+                {
+                    // No more results
+                    return false;
+                }
+                candidateResults.add(takeCompletedResult());
+            }
+
+            CandidateClassResult result = candidateResults.get(0);
+            if (result.cursor.hasNext())
+            {
+                return true;
+            }
+
+            // Reached end of cursor, so close it and move on to the next result
+            result.cursor.close();
+            candidateResults.remove(0);
+        }
+    }
+
+    /**
+     * Method to read the next DBObject from the cursors, setting "currentResult" to the candidate result that it came from.
+     * Must only be called after "hasNextDBObject" has returned true.
+     * @return The DBObject
+     */
+    private DBObject nextDBObject()
+    {
+        numDBObjectsRead++;
+        if (mergeComparator != null)
+        {
+            // Take the lowest of the cursors, and advance that cursor
+            currentResult = mergeQueue.poll();
+            DBObject dbObject = currentResult.next;
+            if (currentResult.cursor.hasNext())
+            {
+                currentResult.next = currentResult.cursor.next();
+                mergeQueue.add(currentResult);
+            }
+            else
+            {
+                currentResult.next = null;
+                currentResult.cursor.close();
+                candidateResults.remove(currentResult);
+            }
+            return dbObject;
+        }
+
+        currentResult = candidateResults.get(0);
+        return currentResult.cursor.next();
+    }
+
+    /**
+     * Method to release the cursors of all candidate results that are not yet exhausted.
+     */
+    private void releaseCandidateResults()
+    {
+        for (CandidateClassResult result : candidateResults)
+        {
+            result.cursor.close();
+        }
+        candidateResults.clear();
+        if (mergeQueue != null)
+        {
+            mergeQueue.clear();
+        }
     }
 
     /* (non-Javadoc)
@@ -151,7 +630,7 @@ public class LazyLoadQueryResult extends AbstractQueryResult
     @Override
     protected void closingConnection()
     {
-        if (loadResultsAtCommit && isOpen() && !candidateResults.isEmpty())
+        if (loadResultsAtCommit && isOpen() && hasNextResult())
         {
             // Query connection closing message
             NucleusLogger.QUERY.info(Localiser.msg("052606", query.toString()));
@@ -162,40 +641,13 @@ public class LazyLoadQueryResult extends AbstractQueryResult
 
     private void loadRemainingResults()
     {
-        if (isOpen() && !candidateResults.isEmpty())
+        if (isOpen())
         {
             synchronized (this)
             {
-                if (currentCursorIterator != null)
-                {
-                    // Finish off the current cursor
-                    CandidateClassResult result = candidateResults.get(0);
-                    while (currentCursorIterator.hasNext())
-                    {
-                        DBObject dbObject = currentCursorIterator.next();
-                        Object pojo = MongoDBUtils.getPojoForDBObjectForCandidate(dbObject, ec, result.cmd, result.fpMembers, query.getIgnoreCache());
-                        itemsByIndex.put(itemsByIndex.size(), pojo);
-                    }
-                    result.cursor.close();
-                    candidateResults.remove(result);
-                    currentCursorIterator = null;
-                }
-
-                // Process remaining cursors
-                Iterator<CandidateClassResult> candidateResultsIter = candidateResults.iterator();
-                while (candidateResultsIter.hasNext())
+                while (getNextObject() != null)
                 {
-                    CandidateClassResult result = candidateResultsIter.next();
-                    currentCursorIterator = result.cursor.iterator();
-                    while (currentCursorIterator.hasNext())
-                    {
-                        DBObject dbObject = currentCursorIterator.next();
-                        Object pojo = MongoDBUtils.getPojoForDBObjectForCandidate(dbObject, ec, result.cmd, result.fpMembers, query.getIgnoreCache());
-                        itemsByIndex.put(itemsByIndex.size(), pojo);
-                    }
-                    result.cursor.close();
-                    candidateResultsIter.remove();
-                    currentCursorIterator = null;
+                    // Keep loading until all cursors are exhausted
                 }
             }
         }
@@ -207,10 +659,43 @@ public class LazyLoadQueryResult extends AbstractQueryResult
     @Override
     public synchronized void close()
     {
-        itemsByIndex.clear();
-        itemsByIndex = null;
+        items = null;
+        itemsSet = null;
+        resultIds = null;
+        resultClassNames = null;
+        if (itemsByIndex != null)
+        {
+            itemsByIndex.clear();
+            itemsByIndex = null;
+        }
 
-        candidateResults = null;
+        if (candidateResults != null)
+        {
+            // Release any cursors that were not read to the end
+            releaseCandidateResults();
+            candidateResults = null;
+        }
+        mergeQueue = null;
+        currentResult = null;
+        if (concurrentResults != null)
+        {
+            // Release the cursors of any concurrently executed results still pending. A cursor can't be closed while
+            // its task is using it on another thread, so cancel the tasks not yet started and wait for the others
+            for (int i=0;i<concurrentResults.size();i++)
+            {
+                Future<CandidateClassResult> task = concurrentTasks.get(i);
+                if (!task.cancel(false))
+                {
+                    waitForTask(task);
+                }
+                concurrentResults.get(i).cursor.close();
+            }
+            concurrentResults = null;
+            concurrentTasks = null;
+            pendingResults = null;
+            numPendingResults = 0;
+        }
+        recordExecution();
 
         super.close();
     }
@@ -221,7 +706,7 @@ public class LazyLoadQueryResult extends AbstractQueryResult
     @Override
     protected void closeResults()
     {
-        // TODO Cache any query results if required
+        // Results are added to the query result cache (if required) when all have been read
     }
 
     /* (non-Javadoc)
@@ -233,15 +718,11 @@ public class LazyLoadQueryResult extends AbstractQueryResult
         if (resultSizeMethod.equalsIgnoreCase("LAST"))
         {
             // Just load all results and the size is the number we have
-            while (true)
+            while (getNextObject() != null)
             {
-                getNextObject();
-                if (candidateResults.isEmpty())
-                {
-                    size = itemsByIndex.size();
-                    return size;
-                }
             }
+            size = numResultsRead;
+            return size;
         }
 
         return super.getSizeUsingMethod();
@@ -258,114 +739,212 @@ public class LazyLoadQueryResult extends AbstractQueryResult
             throw new IndexOutOfBoundsException("Index must be 0 or higher");
         }
 
-        if (itemsByIndex != null && itemsByIndex.containsKey(index))
+        if (!retainsResults())
         {
-            return itemsByIndex.get(index);
+            throw new UnsupportedOperationException("Random access is not supported for query results with cacheType \"none\"");
+        }
+        if (index < numResultsRead)
+        {
+            return getRetainedResult(index);
         }
 
         // Load next object continually until we find it
         while (true)
         {
             Object nextPojo = getNextObject();
-            if (itemsByIndex.size() == (index+1))
+            if (numResultsRead == (index+1))
             {
                 return nextPojo;
             }
-            if (candidateResults.isEmpty())
+            if (nextPojo == null)
+            {
+                throw new IndexOutOfBoundsException("Beyond size of the results (" + numResultsRead + ")");
+            }
+        }
+    }
+
+    /**
+     * Method to register a result that has just been materialised from a cursor, with index "numResultsRead".
+     * By default the result is retained (according to the cacheType) so that it can be accessed by index later.
+     * @param pojo The result
+     */
+    protected void cacheResult(Object pojo)
+    {
+        if (items != null)
+        {
+            if (numResultsRead == items.length)
+            {
+                // Grow by 50%
+                items = Arrays.copyOf(items, numResultsRead + (numResultsRead >> 1) + 1);
+            }
+            items[numResultsRead] = pojo;
+            if (itemsSet != null)
             {
-                throw new IndexOutOfBoundsException("Beyond size of the results (" + itemsByIndex.size() + ")");
+                itemsSet.add(pojo);
             }
         }
+        else if (itemsByIndex != null)
+        {
+            itemsByIndex.put(numResultsRead, pojo);
+        }
+    }
+
+    /**
+     * Accessor for whether the results are retained once read, so can be accessed by index.
+     * @return Whether results are retained
+     */
+    protected boolean retainsResults()
+    {
+        return items != null || itemsByIndex != null;
+    }
+
+    /**
+     * Accessor for a result that has already been read. Returns null if the result was not retained (or, for
+     * a soft/weak cache, has since been garbage collected).
+     * @param index Index of the result (less than "numResultsRead")
+     * @return The result
+     */
+    protected Object getRetainedResult(int index)
+    {
+        if (items != null)
+        {
+            return items[index];
+        }
+        else if (itemsByIndex != null)
+        {
+            return itemsByIndex.get(index);
+        }
+        return null;
     }
 
     /**
      * Method to extract the next object from the candidateResults (if there is one).
-     * If a result is present, this puts it into "itemsByIndex".
+     * If a result is present, this passes it to "cacheResult".
      * Returns null if no more results.
      * @return The next result (or null if no more).
      */
     protected Object getNextObject()
     {
-        if (candidateResults.isEmpty())
+        if (!hasNextResult())
         {
             // Already exhausted
             return null;
         }
 
-        Object pojo = null;
-        CandidateClassResult result = candidateResults.get(0);
-
-        if (currentCursorIterator != null)
+        DBObject dbObject = nextDBObject();
+        if (continuationOrdering != null)
+        {
+            lastDBObject = dbObject;
+        }
+        if (resultFields != null)
         {
-            // Continue the current cursor iterator
-            DBObject dbObject = currentCursorIterator.next();
-            pojo = MongoDBUtils.getPojoForDBObjectForCandidate(dbObject, ec, result.cmd,
-                result.fpMembers, query.getIgnoreCache());
-            itemsByIndex.put(itemsByIndex.size(), pojo);
+            Object row = getResultRowForDBObject(dbObject, resultFields, ec);
+            cacheResult(row);
+            numResultsRead++;
+            return row;
+        }
+
+        Object pojo = MongoDBUtils.getPojoForDBObjectForCandidate(dbObject, ec, currentResult.cmd, currentResult.fpMembers, ignoreCache);
+        cacheResult(pojo);
+        numResultsRead++;
 
-            if (!currentCursorIterator.hasNext())
+        if (resultIds != null)
+        {
+            Object id = ec.getApiAdapter().getIdForObject(pojo);
+            if (id == null)
             {
-                // Reached end of Cursor, so close the current iterator/cursor and remove the result
-                result.cursor.close();
-                currentCursorIterator = null;
-                candidateResults.remove(result);
+                // Cannot cache results without identity
+                resultIds = null;
+                resultClassNames = null;
+            }
+            else
+            {
+                resultIds.add(id);
+                resultClassNames.add(pojo.getClass().getName());
             }
         }
-        else
+        return pojo;
+    }
+
+    /**
+     * Method to build a result row from the values of the result fields in the provided DBObject.
+     * @param dbObject The DBObject
+     * @param resultFields The result fields
+     * @param ec ExecutionContext
+     * @return The result row (the value when a single field, otherwise Object[])
+     */
+    static Object getResultRowForDBObject(DBObject dbObject, List<MongoFieldExpression> resultFields, ExecutionContext ec)
+    {
+        Object[] row = new Object[resultFields.size()];
+        for (int i=0;i<row.length;i++)
         {
-            // Start next candidate result
-            boolean noNextResult = true;
-            while (noNextResult)
+            MongoFieldExpression fieldExpr = resultFields.get(i);
+            AbstractMemberMetaData mmd = fieldExpr.getMemberMetaData();
+            Object value = MongoDBOrderingComparator.getValueForPath(dbObject, fieldExpr.getPropertyName());
+            if (value == null && mmd.getType().isPrimitive())
             {
-                currentCursorIterator = result.cursor.iterator();
-                if (currentCursorIterator.hasNext())
-                {
-                    DBObject dbObject = currentCursorIterator.next();
-                    pojo = MongoDBUtils.getPojoForDBObjectForCandidate(dbObject, ec, result.cmd,
-                        result.fpMembers, query.getIgnoreCache());
-                    itemsByIndex.put(itemsByIndex.size(), pojo);
-                    noNextResult = false;
-
-                    if (!currentCursorIterator.hasNext())
-                    {
-                        // Reached end of Cursor, so close the current iterator/cursor and remove the result
-                        result.cursor.close();
-                        currentCursorIterator = null;
-                        candidateResults.remove(result);
-                    }
-                }
-                else
-                {
-                    // Cursor had no results so close and move on
-                    result.cursor.close();
-                    currentCursorIterator = null;
-                    candidateResults.remove(result);
-                    if (candidateResults.isEmpty())
-                    {
-                        // Break out since no more results
-                        noNextResult = false;
-                        pojo = null;
-                    }
-                    else
-                    {
-                        // Move on to next result
-                        result = candidateResults.get(0);
-                    }
-                }
+                // Not stored, so use the default for the primitive type
+                row[i] = Array.get(Array.newInstance(mmd.getType(), 1), 0);
+            }
+            else
+            {
+                row[i] = MongoDBUtils.getFieldValueFromStored(ec, mmd, value, FieldRole.ROLE_FIELD);
             }
         }
+        return row.length == 1 ? row[0] : row;
+    }
 
-        return pojo;
+    /**
+     * Method to return whether there are no results. Only reads as far as the first result, so only opens the
+     * cursors needed to find one.
+     * @return Whether there are no results
+     */
+    @Override
+    public synchronized boolean isEmpty()
+    {
+        if (!isOpen())
+        {
+            throw new NucleusUserException(Localiser.msg("052600"));
+        }
+        if (numResultsRead > 0)
+        {
+            return false;
+        }
+        return !hasNextResult();
     }
 
     /* (non-Javadoc)
      * @see org.datanucleus.store.query.AbstractQueryResult#contains(java.lang.Object)
      */
     @Override
-    public boolean contains(Object o)
+    public synchronized boolean contains(Object o)
     {
         loadRemainingResults();
-        return itemsByIndex.containsValue(o);
+        if (items != null)
+        {
+            if (itemsSet == null)
+            {
+                // Index the results so that contains() is constant time
+                if (resultFields != null)
+                {
+                    itemsSet = new HashSet<Object>(Math.max(16, (int)(numResultsRead / .75f) + 1));
+                }
+                else
+                {
+                    itemsSet = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>(Math.max(16, numResultsRead)));
+                }
+                for (int i=0;i<numResultsRead;i++)
+                {
+                    itemsSet.add(items[i]);
+                }
+            }
+            return itemsSet.contains(o);
+        }
+        else if (itemsByIndex != null)
+        {
+            return itemsByIndex.containsValue(o);
+        }
+        throw new UnsupportedOperationException("contains() is not supported for query results with cacheType \"none\"");
     }
 
     /* (non-Javadoc)
@@ -374,10 +953,9 @@ public class LazyLoadQueryResult extends AbstractQueryResult
     @Override
     public boolean containsAll(Collection c)
     {
-        loadRemainingResults();
         for (Object o : c)
         {
-            if (!itemsByIndex.containsKey(o))
+            if (!contains(o))
             {
                 return false;
             }
@@ -418,12 +996,12 @@ public class LazyLoadQueryResult extends AbstractQueryResult
                     return false;
                 }
 
-                if (nextRowNum < itemsByIndex.size())
+                if (retainsResults() && nextRowNum < numResultsRead)
                 {
                     return true;
                 }
 
-                return !candidateResults.isEmpty();
+                return hasNextResult();
             }
         }
 
@@ -438,13 +1016,13 @@ public class LazyLoadQueryResult extends AbstractQueryResult
                     throw new NoSuchElementException(Localiser.msg("052600"));
                 }
 
-                if (nextRowNum < itemsByIndex.size())
+                if (retainsResults() && nextRowNum < numResultsRead)
                 {
-                    Object pojo = itemsByIndex.get(nextRowNum);
+                    Object pojo = getRetainedResult(nextRowNum);
                     ++nextRowNum;
                     return pojo;
                 }
-                else if (!candidateResults.isEmpty())
+                else if (hasNextResult())
                 {
                     Object pojo = getNextObject();
                     ++nextRowNum;
@@ -518,9 +1096,9 @@ public class LazyLoadQueryResult extends AbstractQueryResult
     {
         disconnect();
         List list = new ArrayList();
-        for (int i=0;i<itemsByIndex.size();i++)
+        for (int i=0;i<numResultsRead;i++)
         {
-            list.add(itemsByIndex.get(i));
+            list.add(getRetainedResult(i));
         }
         return list;
     }
@@ -0,0 +1,408 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import org.datanucleus.store.mongodb.query.expression.MongoParameter;
+import org.datanucleus.util.NucleusLogger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Advisor for the indexes needed by the queries executed against MongoDB. Records the shape of each query that is
+ * executed in the datastore (candidate collection, fields compared for equality, sort keys, fields compared by range)
+ * with the number of executions and cumulative time. Each shape has a suggested compound index, with the equality
+ * fields first, then the sort keys, then a range field. Shapes whose suggested index isn't supported by any existing
+ * index of the collection (as returned by getIndexInfo) are reported, and the suggested indexes can be created.
+ */
+public class MongoDBIndexAdvisor
+{
+    /** Statistics for each query shape. */
+    final Map<QueryShape, ShapeStatistics> statistics = new HashMap<QueryShape, ShapeStatistics>();
+
+    static class ShapeStatistics
+    {
+        long numExecutions;
+        long totalMillis;
+    }
+
+    /**
+     * Shape of a query against a collection, being the fields that it filters and sorts on (not their values).
+     */
+    public static class QueryShape
+    {
+        final String collectionName;
+
+        final Set<String> equalityFields;
+
+        final LinkedHashMap<String, Integer> sortFields;
+
+        final Set<String> rangeFields;
+
+        public QueryShape(String collectionName, Set<String> equalityFields, LinkedHashMap<String, Integer> sortFields, Set<String> rangeFields)
+        {
+            this.collectionName = collectionName;
+            this.equalityFields = equalityFields;
+            this.sortFields = sortFields;
+            this.rangeFields = rangeFields;
+        }
+
+        public String getCollectionName()
+        {
+            return collectionName;
+        }
+
+        /**
+         * Accessor for the suggested index for this shape, with the equality fields, then the sort keys, then the first
+         * range field (since only one range field can bound the index scan).
+         * @return The key pattern of the suggested index
+         */
+        public BasicDBObject getSuggestedIndex()
+        {
+            BasicDBObject index = new BasicDBObject();
+            for (String fieldName : equalityFields)
+            {
+                index.append(fieldName, 1);
+            }
+            for (Map.Entry<String, Integer> sortField : sortFields.entrySet())
+            {
+                index.append(sortField.getKey(), sortField.getValue());
+            }
+            if (!rangeFields.isEmpty())
+            {
+                index.append(rangeFields.iterator().next(), 1);
+            }
+            return index;
+        }
+
+        /**
+         * Method to return whether an index with the specified key pattern supports this shape, meaning that its
+         * leading fields are the equality fields (in any order), then the sort keys (all in the same or all in the
+         * reverse direction), then one of the range fields. Only ascending/descending keys count, not special index
+         * types (hashed, 2d, 2dsphere, text) which don't support these comparisons or sorting in the same way.
+         * @param indexKey Key pattern of the index
+         * @return Whether the index supports the shape
+         */
+        public boolean isSupportedByIndex(DBObject indexKey)
+        {
+            List<String> keys = new ArrayList<String>(indexKey.keySet());
+            int pos = 0;
+            Set<String> remainingEqualityFields = new HashSet<String>(equalityFields);
+            while (pos < keys.size() && isOrderedKey(indexKey, keys.get(pos)) && remainingEqualityFields.remove(keys.get(pos)))
+            {
+                pos++;
+            }
+            if (!remainingEqualityFields.isEmpty())
+            {
+                return false;
+            }
+
+            Boolean reversed = null;
+            for (Map.Entry<String, Integer> sortField : sortFields.entrySet())
+            {
+                if (pos >= keys.size() || !keys.get(pos).equals(sortField.getKey()) || !isOrderedKey(indexKey, keys.get(pos)))
+                {
+                    return false;
+                }
+                boolean sortReversed = (((Number)indexKey.get(keys.get(pos))).intValue() > 0) != (sortField.getValue() > 0);
+                if (reversed != null && reversed != sortReversed)
+                {
+                    return false;
+                }
+                reversed = sortReversed;
+                pos++;
+            }
+
+            return rangeFields.isEmpty() || (pos < keys.size() && isOrderedKey(indexKey, keys.get(pos)) && rangeFields.contains(keys.get(pos)));
+        }
+
+        private static boolean isOrderedKey(DBObject indexKey, String fieldName)
+        {
+            Object direction = indexKey.get(fieldName);
+            return direction instanceof Number && Math.abs(((Number)direction).doubleValue()) == 1.0;
+        }
+
+        public int hashCode()
+        {
+            return collectionName.hashCode() ^ equalityFields.hashCode() ^ sortFields.hashCode() ^ rangeFields.hashCode();
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (obj == this)
+            {
+                return true;
+            }
+            if (!(obj instanceof QueryShape))
+            {
+                return false;
+            }
+            QueryShape other = (QueryShape)obj;
+            return collectionName.equals(other.collectionName) && equalityFields.equals(other.equalityFields) &&
+                new ArrayList(sortFields.entrySet()).equals(new ArrayList(other.sortFields.entrySet())) && rangeFields.equals(other.rangeFields);
+        }
+
+        public String toString()
+        {
+            return collectionName + " equality=" + equalityFields + " sort=" + sortFields + " range=" + rangeFields;
+        }
+    }
+
+    /**
+     * Method to return the shape of a query with the specified filter and ordering.
+     * Fields compared with a value (or parameter), or using $in, are equality fields. Fields compared using other
+     * operators or a regular expression are range fields. Conditions under $or/$nor are not considered.
+     * The filter should include the restrictions for the candidate classes (discriminator, tenant) so that the
+     * suggested index includes them.
+     * @param collectionName Name of the candidate collection
+     * @param filterObject The filter (if any)
+     * @param orderingObject The ordering (if any)
+     * @return The shape, or null if the query doesn't filter or sort on any field
+     */
+    public static QueryShape getShapeForQuery(String collectionName, BasicDBObject filterObject, BasicDBObject orderingObject)
+    {
+        Set<String> equalityFields = new TreeSet<String>();
+        Set<String> rangeFields = new TreeSet<String>();
+        if (filterObject != null)
+        {
+            addFieldsForFilter(filterObject, equalityFields, rangeFields);
+        }
+        rangeFields.removeAll(equalityFields);
+
+        LinkedHashMap<String, Integer> sortFields = new LinkedHashMap<String, Integer>();
+        if (orderingObject != null)
+        {
+            for (String fieldName : orderingObject.keySet())
+            {
+                Object direction = orderingObject.get(fieldName);
+                if (!equalityFields.contains(fieldName) && direction instanceof Number)
+                {
+                    // Sorting on a field compared for equality makes no difference
+                    sortFields.put(fieldName, ((Number)direction).intValue() < 0 ? -1 : 1);
+                    rangeFields.remove(fieldName);
+                }
+            }
+        }
+
+        if (equalityFields.isEmpty() && sortFields.isEmpty() && rangeFields.isEmpty())
+        {
+            return null;
+        }
+        return new QueryShape(collectionName, equalityFields, sortFields, rangeFields);
+    }
+
+    private static void addFieldsForFilter(DBObject filterObject, Set<String> equalityFields, Set<String> rangeFields)
+    {
+        for (String key : filterObject.keySet())
+        {
+            Object value = filterObject.get(key);
+            if (key.equals("$and"))
+            {
+                Iterable<?> conditions = (value instanceof Object[] ? Arrays.asList((Object[])value) : (value instanceof Iterable ? (Iterable<?>)value : null));
+                if (conditions != null)
+                {
+                    for (Object condition : conditions)
+                    {
+                        if (condition instanceof DBObject)
+                        {
+                            addFieldsForFilter((DBObject)condition, equalityFields, rangeFields);
+                        }
+                    }
+                }
+            }
+            else if (!key.startsWith("$"))
+            {
+                if (value instanceof MongoParameter || !(value instanceof DBObject))
+                {
+                    if (value instanceof Pattern)
+                    {
+                        rangeFields.add(key);
+                    }
+                    else
+                    {
+                        equalityFields.add(key);
+                    }
+                }
+                else
+                {
+                    DBObject condition = (DBObject)value;
+                    if (condition.keySet().size() == 1 && condition.containsField("$in"))
+                    {
+                        equalityFields.add(key);
+                    }
+                    else if (!condition.containsField("$elemMatch"))
+                    {
+                        rangeFields.add(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to record an execution of a query with the specified shape.
+     * @param shape Shape of the query
+     * @param millis Time taken to execute the query (in milliseconds)
+     */
+    public synchronized void recordExecution(QueryShape shape, long millis)
+    {
+        ShapeStatistics stats = statistics.get(shape);
+        if (stats == null)
+        {
+            stats = new ShapeStatistics();
+            statistics.put(shape, stats);
+        }
+        stats.numExecutions++;
+        stats.totalMillis += millis;
+    }
+
+    /**
+     * Method to return the suggested indexes for the recorded query shapes that aren't supported by an existing index,
+     * in order of decreasing cumulative execution time. Each suggestion has the "collection", the "key" of the index,
+     * the "shape", and the "executions" and "totalMillis" of the queries it would support.
+     * @param db The DB
+     * @return The suggested indexes
+     */
+    public List<DBObject> getSuggestedIndexes(DB db)
+    {
+        List<Map.Entry<QueryShape, ShapeStatistics>> shapes = null;
+        synchronized (this)
+        {
+            shapes = new ArrayList<Map.Entry<QueryShape, ShapeStatistics>>();
+            for (Map.Entry<QueryShape, ShapeStatistics> entry : statistics.entrySet())
+            {
+                ShapeStatistics stats = new ShapeStatistics();
+                stats.numExecutions = entry.getValue().numExecutions;
+                stats.totalMillis = entry.getValue().totalMillis;
+                shapes.add(new AbstractMap.SimpleEntry<QueryShape, ShapeStatistics>(entry.getKey(), stats));
+            }
+        }
+        Collections.sort(shapes, new Comparator<Map.Entry<QueryShape, ShapeStatistics>>()
+        {
+            public int compare(Map.Entry<QueryShape, ShapeStatistics> entry1, Map.Entry<QueryShape, ShapeStatistics> entry2)
+            {
+                long diff = entry2.getValue().totalMillis - entry1.getValue().totalMillis;
+                return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+            }
+        });
+
+        List<DBObject> suggestions = new ArrayList<DBObject>();
+        Map<String, List<DBObject>> indexKeysByCollection = new HashMap<String, List<DBObject>>();
+        for (Map.Entry<QueryShape, ShapeStatistics> entry : shapes)
+        {
+            QueryShape shape = entry.getKey();
+            List<DBObject> indexKeys = indexKeysByCollection.get(shape.getCollectionName());
+            if (indexKeys == null)
+            {
+                indexKeys = new ArrayList<DBObject>();
+                if (db.collectionExists(shape.getCollectionName()))
+                {
+                    for (DBObject index : db.getCollection(shape.getCollectionName()).getIndexInfo())
+                    {
+                        indexKeys.add((DBObject)index.get("key"));
+                    }
+                }
+                indexKeysByCollection.put(shape.getCollectionName(), indexKeys);
+            }
+
+            boolean supported = false;
+            for (DBObject indexKey : indexKeys)
+            {
+                if (shape.isSupportedByIndex(indexKey))
+                {
+                    supported = true;
+                    break;
+                }
+            }
+            if (!supported)
+            {
+                // Suggested index (which then counts as existing for subsequent shapes)
+                BasicDBObject suggestedKey = shape.getSuggestedIndex();
+                indexKeys.add(suggestedKey);
+
+                BasicDBObject suggestion = new BasicDBObject("collection", shape.getCollectionName());
+                suggestion.append("key", suggestedKey);
+                suggestion.append("shape", shape.toString());
+                suggestion.append("executions", entry.getValue().numExecutions);
+                suggestion.append("totalMillis", entry.getValue().totalMillis);
+                suggestions.add(suggestion);
+            }
+        }
+        return suggestions;
+    }
+
+    /**
+     * Method to log the suggested indexes for the recorded query shapes.
+     * @param db The DB
+     * @return The suggested indexes
+     */
+    public List<DBObject> reportSuggestedIndexes(DB db)
+    {
+        List<DBObject> suggestions = getSuggestedIndexes(db);
+        for (DBObject suggestion : suggestions)
+        {
+            NucleusLogger.DATASTORE_SCHEMA.info("Index advisor suggests index " + suggestion.get("key") + " on collection " +
+                suggestion.get("collection") + " for queries with " + suggestion.get("shape") + " (" + suggestion.get("executions") +
+                " executions, " + suggestion.get("totalMillis") + "ms total)");
+        }
+        return suggestions;
+    }
+
+    /**
+     * Method to create the suggested indexes for the recorded query shapes (in the background).
+     * @param db The DB
+     * @return The indexes created
+     */
+    public List<DBObject> createSuggestedIndexes(DB db)
+    {
+        List<DBObject> suggestions = getSuggestedIndexes(db);
+        for (DBObject suggestion : suggestions)
+        {
+            DBCollection collection = db.getCollection((String)suggestion.get("collection"));
+            DBObject key = (DBObject)suggestion.get("key");
+            NucleusLogger.DATASTORE_SCHEMA.info("Index advisor creating index " + key + " on collection " + collection.getName() +
+                " for queries with " + suggestion.get("shape"));
+            collection.createIndex(key, new BasicDBObject("background", true));
+        }
+        return suggestions;
+    }
+
+    /**
+     * Method to clear the recorded query shapes.
+     */
+    public synchronized void clear()
+    {
+        statistics.clear();
+    }
+}
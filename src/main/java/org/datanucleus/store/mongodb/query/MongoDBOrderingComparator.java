@@ -0,0 +1,361 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Comparator for DBObjects that orders them in the same way as a MongoDB sort specification
+ * (e.g {"field1" : 1, "field2" : -1}), so that the results of several sorted cursors can be merged.
+ * Values of different types are ordered using the MongoDB comparison order of BSON types, with null (or missing) lowest.
+ * An array is sorted by its lowest element when ascending and its highest element when descending, with an empty array
+ * before null. Embedded documents, arrays within them and binary values are compared in the same way as BSON values.
+ */
+public class MongoDBOrderingComparator implements Comparator<DBObject>
+{
+    String[] fieldNames;
+
+    int[] directions;
+
+    /** Sort key of an empty array, which sorts before null. */
+    private static final Object EMPTY_ARRAY = new Object();
+
+    /**
+     * Constructor for a comparator for the specified sort specification.
+     * @param ordering The sort specification, keyed by (dot-separated) field name with value 1 (ascending) or -1 (descending)
+     */
+    public MongoDBOrderingComparator(BasicDBObject ordering)
+    {
+        fieldNames = new String[ordering.size()];
+        directions = new int[ordering.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : ordering.entrySet())
+        {
+            fieldNames[i] = entry.getKey();
+            directions[i] = (((Number)entry.getValue()).intValue() < 0 ? -1 : 1);
+            i++;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Comparator#compare(java.lang.Object, java.lang.Object)
+     */
+    public int compare(DBObject obj1, DBObject obj2)
+    {
+        for (int i=0;i<fieldNames.length;i++)
+        {
+            int result = compareValues(getSortKey(getValueForPath(obj1, fieldNames[i]), directions[i]),
+                getSortKey(getValueForPath(obj2, fieldNames[i]), directions[i]));
+            if (result != 0)
+            {
+                return result * directions[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Accessor for the value that a field value is sorted by. For an array this is its lowest element when ascending
+     * and its highest element when descending.
+     * @param value The field value
+     * @param direction 1 for ascending, -1 for descending
+     * @return The sort key
+     */
+    private static Object getSortKey(Object value, int direction)
+    {
+        if (!(value instanceof List))
+        {
+            return value;
+        }
+        List elements = (List)value;
+        if (elements.isEmpty())
+        {
+            return EMPTY_ARRAY;
+        }
+        Object key = elements.get(0);
+        for (int i=1;i<elements.size();i++)
+        {
+            if (compareValues(elements.get(i), key) * direction < 0)
+            {
+                key = elements.get(i);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Accessor for the value of the (dot-separated) field path in the provided DBObject.
+     * @param dbObject The DBObject
+     * @param path The field path
+     * @return The value (or null if not present)
+     */
+    public static Object getValueForPath(DBObject dbObject, String path)
+    {
+        Object value = dbObject;
+        int start = 0;
+        while (value != null)
+        {
+            if (!(value instanceof DBObject))
+            {
+                return null;
+            }
+            int end = path.indexOf('.', start);
+            String name = (end < 0 ? path.substring(start) : path.substring(start, end));
+            value = ((DBObject)value).get(name);
+            if (end < 0)
+            {
+                return value;
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Method to compare two stored values using the MongoDB ordering.
+     * @param val1 The first value
+     * @param val2 The second value
+     * @return Negative if val1 is less than val2, 0 if equal, positive if greater
+     */
+    public static int compareValues(Object val1, Object val2)
+    {
+        int typeOrder1 = getTypeOrder(val1);
+        int typeOrder2 = getTypeOrder(val2);
+        if (typeOrder1 != typeOrder2)
+        {
+            return typeOrder1 < typeOrder2 ? -1 : 1;
+        }
+
+        if (val1 == null || val1 == EMPTY_ARRAY)
+        {
+            return 0;
+        }
+        else if (val1 instanceof Number)
+        {
+            if (isIntegral(val1) && isIntegral(val2))
+            {
+                long l1 = ((Number)val1).longValue();
+                long l2 = ((Number)val2).longValue();
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+
+            // MongoDB orders NaN before all other numbers
+            double d1 = ((Number)val1).doubleValue();
+            double d2 = ((Number)val2).doubleValue();
+            if (Double.isNaN(d1) || Double.isNaN(d2))
+            {
+                return Double.isNaN(d1) ? (Double.isNaN(d2) ? 0 : -1) : 1;
+            }
+            return Double.compare(d1, d2);
+        }
+        else if (val1 instanceof Date)
+        {
+            return ((Date)val1).compareTo((Date)val2);
+        }
+        else if (val1 instanceof Boolean)
+        {
+            return ((Boolean)val1).compareTo((Boolean)val2);
+        }
+        else if (val1 instanceof ObjectId)
+        {
+            return ((ObjectId)val1).compareTo((ObjectId)val2);
+        }
+        else if (val1 instanceof BSONTimestamp)
+        {
+            return ((BSONTimestamp)val1).compareTo((BSONTimestamp)val2);
+        }
+        else if (typeOrder1 == 3)
+        {
+            return val1.toString().compareTo(val2.toString());
+        }
+        else if (val1 instanceof List)
+        {
+            return compareArrays((List)val1, (List)val2);
+        }
+        else if (typeOrder1 == 4)
+        {
+            return compareDocuments(getEntries(val1), getEntries(val2));
+        }
+        else if (typeOrder1 == 6)
+        {
+            return compareBinaries(val1, val2);
+        }
+        else if (val1 instanceof Pattern)
+        {
+            int result = ((Pattern)val1).pattern().compareTo(((Pattern)val2).pattern());
+            return result != 0 ? result : Integer.compare(((Pattern)val1).flags(), ((Pattern)val2).flags());
+        }
+
+        return val1.toString().compareTo(val2.toString());
+    }
+
+    /**
+     * Method to compare two arrays, element by element, with a shorter array (that is otherwise equal) lower.
+     */
+    private static int compareArrays(List list1, List list2)
+    {
+        for (int i=0;i<list1.size() && i<list2.size();i++)
+        {
+            int result = compareValues(list1.get(i), list2.get(i));
+            if (result != 0)
+            {
+                return result;
+            }
+        }
+        return Integer.compare(list1.size(), list2.size());
+    }
+
+    private static Iterator<Map.Entry<String, Object>> getEntries(Object doc)
+    {
+        if (doc instanceof Map)
+        {
+            return ((Map<String, Object>)doc).entrySet().iterator();
+        }
+        return ((DBObject)doc).toMap().entrySet().iterator();
+    }
+
+    /**
+     * Method to compare two embedded documents, comparing the fields in order by the type of the value, then the field name
+     * and then the value, with a document with fewer fields (that is otherwise equal) lower.
+     */
+    private static int compareDocuments(Iterator<Map.Entry<String, Object>> entries1, Iterator<Map.Entry<String, Object>> entries2)
+    {
+        while (entries1.hasNext() && entries2.hasNext())
+        {
+            Map.Entry<String, Object> entry1 = entries1.next();
+            Map.Entry<String, Object> entry2 = entries2.next();
+            int result = Integer.compare(getTypeOrder(entry1.getValue()), getTypeOrder(entry2.getValue()));
+            if (result == 0)
+            {
+                result = entry1.getKey().compareTo(entry2.getKey());
+            }
+            if (result == 0)
+            {
+                result = compareValues(entry1.getValue(), entry2.getValue());
+            }
+            if (result != 0)
+            {
+                return result;
+            }
+        }
+        return entries1.hasNext() ? 1 : (entries2.hasNext() ? -1 : 0);
+    }
+
+    /**
+     * Method to compare two binary values, by length, then subtype, then the bytes (unsigned).
+     */
+    private static int compareBinaries(Object val1, Object val2)
+    {
+        byte[] data1 = (val1 instanceof Binary ? ((Binary)val1).getData() : (byte[])val1);
+        byte[] data2 = (val2 instanceof Binary ? ((Binary)val2).getData() : (byte[])val2);
+        int result = Integer.compare(data1.length, data2.length);
+        if (result != 0)
+        {
+            return result;
+        }
+        byte type1 = (val1 instanceof Binary ? ((Binary)val1).getType() : 0);
+        byte type2 = (val2 instanceof Binary ? ((Binary)val2).getType() : 0);
+        if (type1 != type2)
+        {
+            return type1 < type2 ? -1 : 1;
+        }
+        for (int i=0;i<data1.length;i++)
+        {
+            if (data1[i] != data2[i])
+            {
+                return (data1[i] & 0xff) < (data2[i] & 0xff) ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean isIntegral(Object val)
+    {
+        return val instanceof Integer || val instanceof Long || val instanceof Short || val instanceof Byte;
+    }
+
+    /**
+     * Accessor for the position of the type of the value in the MongoDB comparison order of BSON types.
+     * @param val The value
+     * @return The position
+     */
+    private static int getTypeOrder(Object val)
+    {
+        if (val == EMPTY_ARRAY)
+        {
+            return 0;
+        }
+        else if (val == null)
+        {
+            return 1;
+        }
+        else if (val instanceof Number)
+        {
+            return 2;
+        }
+        else if (val instanceof String || val instanceof Character)
+        {
+            return 3;
+        }
+        else if (val instanceof List)
+        {
+            return 5;
+        }
+        else if (val instanceof DBObject || val instanceof Map)
+        {
+            return 4;
+        }
+        else if (val instanceof byte[] || val instanceof Binary)
+        {
+            return 6;
+        }
+        else if (val instanceof ObjectId)
+        {
+            return 7;
+        }
+        else if (val instanceof Boolean)
+        {
+            return 8;
+        }
+        else if (val instanceof Date)
+        {
+            return 9;
+        }
+        else if (val instanceof BSONTimestamp)
+        {
+            return 10;
+        }
+        else if (val instanceof Pattern)
+        {
+            return 11;
+        }
+        return 12;
+    }
+}
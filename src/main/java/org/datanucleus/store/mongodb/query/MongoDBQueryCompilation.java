@@ -17,7 +17,11 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.store.mongodb.query;
 
+import java.util.Map;
+
+import org.datanucleus.ExecutionContext;
 import org.datanucleus.store.mongodb.query.expression.MongoBooleanExpression;
+import org.datanucleus.store.mongodb.query.expression.MongoParameter;
 
 import com.mongodb.BasicDBObject;
 
@@ -31,6 +35,9 @@ public class MongoDBQueryCompilation
     /** Expression defining the filter (if any). */
     MongoBooleanExpression filterExpr;
 
+    /** Whether the filter has slots for parameter values, bound at execution. */
+    boolean filterParameterised = false;
+
     BasicDBObject orderingObject;
 
     boolean resultComplete = true;
@@ -40,6 +47,15 @@ public class MongoDBQueryCompilation
     /** Object defining document fields to be returned (if any). */
     MongoDBResult resultObject;
 
+    /** Modifier for a bulk update (if any, and evaluatable in the datastore). */
+    BasicDBObject updateObject;
+
+    /** Shape of the query, recorded by the index advisor (if enabled). */
+    MongoDBIndexAdvisor.QueryShape queryShape;
+
+    /** Whether the cursors of an execution have been checked for scans (see "scan-warning-ratio"). */
+    boolean scanChecked = false;
+
     public MongoDBQueryCompilation()
     {
     }
@@ -54,6 +70,21 @@ public class MongoDBQueryCompilation
         this.filterComplete = complete;
     }
 
+    /**
+     * Method to mark that the cursors of an execution of this compilation are being checked for scans, returning
+     * whether this is the first time. The check explains (so executes again) each cursor, so is only done once.
+     * @return Whether the cursors had not been checked before
+     */
+    public synchronized boolean markScanChecked()
+    {
+        if (scanChecked)
+        {
+            return false;
+        }
+        scanChecked = true;
+        return true;
+    }
+
     public boolean isPrecompilable()
     {
         return precompilable;
@@ -74,6 +105,31 @@ public class MongoDBQueryCompilation
         return filterExpr;
     }
 
+    public boolean isFilterParameterised()
+    {
+        return filterParameterised;
+    }
+
+    public void setFilterParameterised(boolean flag)
+    {
+        this.filterParameterised = flag;
+    }
+
+    /**
+     * Accessor for the filter object to use for an execution, with the values of any parameters bound.
+     * @param parameters The parameter values for this execution
+     * @param ec ExecutionContext
+     * @return The filter object, or null if no filter
+     */
+    public BasicDBObject getFilterObject(Map parameters, ExecutionContext ec)
+    {
+        if (filterExpr == null)
+        {
+            return null;
+        }
+        return filterParameterised ? MongoParameter.bindParameters(filterExpr.getDBObject(), parameters, ec) : filterExpr.getDBObject();
+    }
+
     public void setOrdering(BasicDBObject ordering)
     {
         this.orderingObject = ordering;
@@ -103,4 +159,24 @@ public class MongoDBQueryCompilation
     {
         return resultObject;
     }
+
+    public void setUpdate(BasicDBObject update)
+    {
+        this.updateObject = update;
+    }
+
+    public BasicDBObject getUpdate()
+    {
+        return updateObject;
+    }
+
+    public void setQueryShape(MongoDBIndexAdvisor.QueryShape shape)
+    {
+        this.queryShape = shape;
+    }
+
+    public MongoDBIndexAdvisor.QueryShape getQueryShape()
+    {
+        return queryShape;
+    }
 }
\ No newline at end of file
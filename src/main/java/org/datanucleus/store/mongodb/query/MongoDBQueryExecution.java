@@ -0,0 +1,320 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.store.connection.ManagedConnection;
+import org.datanucleus.store.mongodb.MongoDBStoreManager;
+import org.datanucleus.store.mongodb.MongoDBUtils;
+import org.datanucleus.store.mongodb.query.expression.MongoAggregateExpression;
+import org.datanucleus.store.query.Query;
+import org.datanucleus.store.query.QueryResult;
+import org.datanucleus.util.NucleusLogger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+
+/**
+ * Execution of a (JDOQL or JPQL) query in the datastore using its datastore compilation, evaluating as much of the
+ * query as possible in the datastore. The query is either evaluated completely (bulk update/delete, aggregates,
+ * distinct, count, cached results, explain), or the candidates are retrieved with the "in-memory" flags saying which
+ * components of the query still have to be evaluated in-memory by the query language evaluator.
+ */
+public class MongoDBQueryExecution
+{
+    final Query query;
+
+    final MongoDBQueryCompilation datastoreCompilation;
+
+    /** Whether the filter has to be evaluated in-memory. */
+    boolean filterInMemory = true;
+
+    /** Whether the ordering has to be evaluated in-memory. */
+    boolean orderInMemory;
+
+    /** Whether the range has to be evaluated in-memory. */
+    boolean rangeInMemory;
+
+    /** Whether the result has to be evaluated in-memory. */
+    boolean resultInMemory;
+
+    /** The candidates retrieved from the datastore. */
+    List candidates = null;
+
+    /** Time at which the execution started. */
+    long startTime;
+
+    /**
+     * Constructor.
+     * @param query The query
+     * @param datastoreCompilation The datastore compilation of the query
+     */
+    public MongoDBQueryExecution(Query query, MongoDBQueryCompilation datastoreCompilation)
+    {
+        this.query = query;
+        this.datastoreCompilation = datastoreCompilation;
+        this.orderInMemory = (query.getOrdering() != null);
+        this.rangeInMemory = (query.getRange() != null);
+        this.resultInMemory = (query.getResult() != null);
+    }
+
+    public boolean isFilterInMemory()
+    {
+        return filterInMemory;
+    }
+
+    public boolean isOrderInMemory()
+    {
+        return orderInMemory;
+    }
+
+    public boolean isRangeInMemory()
+    {
+        return rangeInMemory;
+    }
+
+    public boolean isResultInMemory()
+    {
+        return resultInMemory;
+    }
+
+    /**
+     * Accessor for the candidates retrieved by "execute", when the query wasn't evaluated completely.
+     * @return The candidates
+     */
+    public List getCandidates()
+    {
+        return candidates;
+    }
+
+    /**
+     * Method to execute the query in the datastore.
+     * @param db The database
+     * @param mconn The connection (used for invalidating cached query results after bulk writes)
+     * @param parameters Input parameters
+     * @return The result of the query when evaluated completely (the number of objects updated/deleted, the results of
+     *     aggregates/distinct/count, the cached results, or the explain output), otherwise null with the candidates
+     *     available from "getCandidates"
+     */
+    public Object execute(DB db, ManagedConnection mconn, Map parameters)
+    {
+        startTime = System.currentTimeMillis();
+        ExecutionContext ec = query.getExecutionContext();
+        Class candidateClass = query.getCandidateClass();
+        boolean subclasses = query.isSubclasses();
+        short type = query.getType();
+        BasicDBObject filterObject = datastoreCompilation.getFilterObject(parameters, ec);
+
+        // When explaining the query, the explain output of the cursor(s) is returned rather than the results
+        List<DBObject> explanations = (type == Query.SELECT && query.getBooleanExtensionProperty("explain", false)) ? new ArrayList<DBObject>() : null;
+
+        if (type == Query.BULK_UPDATE)
+        {
+            BasicDBObject updateObject = datastoreCompilation.getUpdate();
+            if (updateObject == null || !datastoreCompilation.isFilterComplete())
+            {
+                throw new NucleusUserException("Bulk Update is only supported when the filter and update clause can be evaluated in the datastore");
+            }
+            return recordExecution(MongoDBUtils.performMongoUpdate(db, filterObject, updateObject, candidateClass, subclasses, ec, mconn));
+        }
+        else if (type == Query.BULK_DELETE && datastoreCompilation.isFilterComplete())
+        {
+            // Remove the documents directly where no cascading is needed
+            Long numDeleted = MongoDBUtils.performMongoDelete(db, filterObject, candidateClass, subclasses, ec, mconn);
+            if (numDeleted != null)
+            {
+                return recordExecution(numDeleted);
+            }
+        }
+
+        MongoDBResult resultObject = datastoreCompilation.getResult();
+        boolean resultDistinct = query.getCompilation().getResultDistinct();
+        if (explanations == null && resultObject != null && datastoreCompilation.isFilterComplete() && query.getRange() == null &&
+            query.getResultClass() == null &&
+            ((resultObject.isAggregateOnly() && query.getGrouping() == null && query.getHaving() == null) ||
+             (resultObject.isGrouped() && query.getOrdering() == null && (!resultDistinct || resultObject.isDistinct()) &&
+              (query.getHaving() == null || resultObject.getHavingObject() != null))))
+        {
+            // Evaluate the aggregates (and any grouping or distinct) in the datastore
+            List<MongoAggregateExpression> aggregates = resultObject.getAggregates();
+            if (resultObject.isAggregateOnly() && aggregates.size() == 1 &&
+                aggregates.get(0).getFunction().equals("count") && aggregates.get(0).getField() == null)
+            {
+                return recordExecution(MongoDBUtils.performMongoCount(db, filterObject, candidateClass, subclasses, ec));
+            }
+            if (resultObject.isDistinct() && resultObject.getGroupingFields().size() == 1)
+            {
+                return recordExecution(MongoDBUtils.performMongoDistinct(db, filterObject, resultObject.getGroupingFields().get(0), candidateClass,
+                    subclasses, ec));
+            }
+            List aggregateResults = MongoDBUtils.performMongoAggregate(db, filterObject, resultObject, candidateClass, subclasses, ec);
+            if (aggregateResults != null)
+            {
+                return recordExecution(aggregateResults);
+            }
+        }
+        // Count of the candidates (grouping is evaluated above, using the aggregation framework)
+        if (explanations == null && resultObject != null && resultObject.isCountOnly() && datastoreCompilation.isFilterComplete() &&
+            query.getGrouping() == null)
+        {
+            return recordExecution(MongoDBUtils.performMongoCount(db, filterObject, candidateClass, subclasses, ec));
+        }
+
+        Map<String, Object> options = new HashMap();
+        if (query.getBooleanExtensionProperty("slave-ok", false))
+        {
+            options.put("slave-ok", true);
+        }
+        if (explanations != null)
+        {
+            options.put("explain", explanations);
+        }
+        int scanWarningRatio = query.getIntExtensionProperty("scan-warning-ratio",
+            query.getStoreManager().getIntProperty(MongoDBStoreManager.MONGODB_QUERY_SCAN_WARNING_RATIO));
+        if (scanWarningRatio > 0 && datastoreCompilation.markScanChecked())
+        {
+            // Check for scans only on the first execution, since explaining the cursors executes the query again
+            options.put("scan-warning-ratio", scanWarningRatio);
+        }
+
+        if (query.getFilter() == null || datastoreCompilation.isFilterComplete())
+        {
+            filterInMemory = false;
+        }
+
+        int rangeFrom = (int)query.getRangeFromIncl();
+        int rangeLength = (int)(query.getRangeToExcl() - query.getRangeFromIncl());
+        if (!filterInMemory && type == Query.SELECT && resultObject != null && resultObject.isProjection() &&
+            query.getGrouping() == null && query.getHaving() == null && !resultDistinct &&
+            (query.getOrdering() == null || datastoreCompilation.getOrdering() != null))
+        {
+            // Result of plain fields only, so build the result rows directly from the documents
+            options.put("result-fields", resultObject.getProjectionFields());
+            candidates = MongoDBUtils.getObjectsOfCandidateType(query, db, filterObject, datastoreCompilation.getOrdering(), options,
+                rangeFrom, rangeLength);
+            resultInMemory = false;
+            checkProcessedInDatastore();
+        }
+        else if (filterInMemory || query.getResult() != null || query.getResultClass() != null)
+        {
+            candidates = MongoDBUtils.getObjectsOfCandidateType(query, db, filterObject, options);
+        }
+        else
+        {
+            // Execute as much as possible in the datastore
+            MongoDBQueryResultCache resultCache = null;
+            List<Object> resultCacheKey = null;
+            // Results using keyset pagination are not cached, since cached results don't provide the continuation token
+            boolean keysetPagination = (query.getExtension("continuation-token") != null ||
+                query.getBooleanExtensionProperty("keyset-pagination", false));
+            if (type == Query.SELECT && explanations == null && !keysetPagination && query.getBooleanExtensionProperty("results-cached", false))
+            {
+                resultCache = ((MongoDBStoreManager)query.getStoreManager()).getQueryResultCache();
+                resultCacheKey = resultCache.getKeyForQuery(query, parameters);
+                if (resultCacheKey != null)
+                {
+                    List cachedResults = resultCache.getResults(resultCacheKey, ec);
+                    if (cachedResults != null)
+                    {
+                        return cachedResults;
+                    }
+                }
+            }
+            BasicDBObject orderingObject = datastoreCompilation.getOrdering();
+            if (type == Query.SELECT && query.getBooleanExtensionProperty("forward-only", false))
+            {
+                if (query.getOrdering() == null || orderingObject != null)
+                {
+                    // Ordering and range are processed in the datastore, so the results can be streamed
+                    options.put("forward-only", true);
+                }
+                else
+                {
+                    NucleusLogger.QUERY.warn("Query has extension forward-only but its ordering has to be evaluated in-memory, so the results are retained");
+                }
+            }
+            candidates = MongoDBUtils.getObjectsOfCandidateType(query, db, filterObject, orderingObject, options, rangeFrom, rangeLength);
+            checkProcessedInDatastore();
+            if (candidates instanceof ForwardOnlyQueryResult && (orderInMemory || rangeInMemory))
+            {
+                ((QueryResult)candidates).close();
+                throw new NucleusUserException("Query has extension forward-only but its ordering/range cannot be processed in the datastore");
+            }
+            if (resultCacheKey != null && !orderInMemory && !rangeInMemory)
+            {
+                // All processed in the datastore, so cache the results once they have all been read
+                ((LazyLoadQueryResult)candidates).setResultCache(resultCache, resultCacheKey);
+            }
+        }
+
+        if (explanations != null)
+        {
+            ((QueryResult)candidates).close();
+            return explanations;
+        }
+
+        MongoDBIndexAdvisor indexAdvisor = ((MongoDBStoreManager)query.getStoreManager()).getIndexAdvisor();
+        if (indexAdvisor != null && datastoreCompilation.getQueryShape() != null && candidates instanceof LazyLoadQueryResult)
+        {
+            // Record the execution once the cursors have been read, since they are only executed as the results are read
+            ((LazyLoadQueryResult)candidates).setIndexAdvisor(indexAdvisor, datastoreCompilation.getQueryShape(), startTime);
+        }
+        return null;
+    }
+
+    /**
+     * Method to record the execution of the query with the index advisor (if enabled), for a query evaluated
+     * completely in the datastore by the time this is called.
+     * @param result The result of the query
+     * @return The result
+     */
+    private Object recordExecution(Object result)
+    {
+        MongoDBIndexAdvisor indexAdvisor = ((MongoDBStoreManager)query.getStoreManager()).getIndexAdvisor();
+        if (indexAdvisor != null && datastoreCompilation.getQueryShape() != null)
+        {
+            indexAdvisor.recordExecution(datastoreCompilation.getQueryShape(), System.currentTimeMillis() - startTime);
+        }
+        return result;
+    }
+
+    /**
+     * Method to update the "in-memory" flags for the ordering and range, according to whether they were processed
+     * when retrieving the candidates.
+     */
+    private void checkProcessedInDatastore()
+    {
+        if (orderInMemory && ((LazyLoadQueryResult)candidates).getOrderProcessed())
+        {
+            // Order processed when getting candidates
+            orderInMemory = false;
+        }
+        if (rangeInMemory && ((LazyLoadQueryResult)candidates).getRangeProcessed())
+        {
+            // Range processed when getting candidates
+            rangeInMemory = false;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.api.ApiAdapter;
+import org.datanucleus.store.connection.ManagedConnection;
+import org.datanucleus.store.connection.ManagedConnectionResourceListener;
+import org.datanucleus.store.query.Query;
+import org.datanucleus.util.NucleusLogger;
+
+/**
+ * Cache of the results of MongoDB queries, holding the identities (and class names) of the result objects rather
+ * than the objects themselves. Results are keyed by the compiled query (datastore, language and query cache key),
+ * the range, and the parameter values (with persistable parameters represented by their identity).
+ * Each entry records the collections that the query read, and is invalidated whenever an object is written to
+ * any of those collections (by this store manager), or a collection is dropped by its schema handler. The cache is
+ * bounded by number of entries and by an estimate of the memory used, evicting the least-recently-used entries first.
+ * <p>
+ * Writes made other than through this store manager (other processes, or the driver directly) are not detected, so
+ * the cache should only be used where this store manager is the sole writer of the collections queried. Cached
+ * identities are not validated against the datastore, so an object deleted elsewhere is returned as a hollow object
+ * that fails when its fields are accessed.
+ */
+public class MongoDBQueryResultCache
+{
+    /** Approximate memory overhead of an entry, in bytes. */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /** Approximate memory overhead of each result of an entry (id reference, class name reference, id object), in bytes. */
+    private static final int RESULT_OVERHEAD = 48;
+
+    final int maxEntries;
+
+    final long maxBytes;
+
+    /** Entries keyed by the query key, in least-recently-used order. */
+    final LinkedHashMap<List<Object>, CachedResult> entries = new LinkedHashMap<List<Object>, CachedResult>(16, 0.75f, true);
+
+    /** Keys of the entries that read each collection, keyed by collection name. */
+    final Map<String, Set<List<Object>>> keysByCollection = new HashMap<String, Set<List<Object>>>();
+
+    /** Number of invalidations of each collection, used to detect writes during the execution of a query. */
+    final Map<String, Long> generationByCollection = new HashMap<String, Long>();
+
+    /** Collections written by each (open) connection, to be invalidated again when the connection closes. */
+    final Map<ManagedConnection, Set<String>> pendingInvalidations = new HashMap<ManagedConnection, Set<String>>();
+
+    /** Estimated memory used by all entries, in bytes. */
+    long numBytes = 0;
+
+    /** Whether any query has used this cache (so invalidations can be ignored until then). */
+    volatile boolean used = false;
+
+    static class CachedResult
+    {
+        Object[] ids;
+        String[] classNames;
+        Collection<String> collectionNames;
+        long numBytes;
+    }
+
+    /**
+     * Constructor.
+     * @param maxEntries Maximum number of entries (queries) to cache
+     * @param maxBytes Maximum (estimated) memory to use for the cached results, in bytes
+     */
+    public MongoDBQueryResultCache(int maxEntries, long maxBytes)
+    {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Method to generate the key for the results of a query with the provided parameters.
+     * @param query The query
+     * @param parameters The parameter values (keyed by name or position)
+     * @return The key, or null if the results of this query cannot be cached (e.g a parameter is a transient object)
+     */
+    public List<Object> getKeyForQuery(Query query, Map parameters)
+    {
+        used = true;
+
+        String queryCacheKey = query.getQueryCacheKey();
+        if (queryCacheKey == null)
+        {
+            return null;
+        }
+
+        List<Object> key = new ArrayList<Object>();
+        key.add(query.getStoreManager().getQueryCacheKey());
+        key.add(query.getLanguage());
+        key.add(queryCacheKey);
+        key.add(query.getRangeFromIncl());
+        key.add(query.getRangeToExcl());
+        if (parameters != null && !parameters.isEmpty())
+        {
+            // Order the parameters by name/position so the key is independent of the map ordering
+            Map<String, Object> orderedParams = new TreeMap<String, Object>();
+            Iterator<Map.Entry> paramIter = parameters.entrySet().iterator();
+            while (paramIter.hasNext())
+            {
+                Map.Entry paramEntry = paramIter.next();
+                orderedParams.put(String.valueOf(paramEntry.getKey()), paramEntry.getValue());
+            }
+            ApiAdapter api = query.getExecutionContext().getApiAdapter();
+            for (Map.Entry<String, Object> paramEntry : orderedParams.entrySet())
+            {
+                Object value = getKeyForParameterValue(paramEntry.getValue(), api);
+                if (value == NO_KEY)
+                {
+                    return null;
+                }
+                key.add(paramEntry.getKey());
+                key.add(value);
+            }
+        }
+        return key;
+    }
+
+    private static final Object NO_KEY = new Object();
+
+    private static Object getKeyForParameterValue(Object value, ApiAdapter api)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        else if (api.isPersistable(value))
+        {
+            Object id = api.getIdForObject(value);
+            return (id != null ? id : NO_KEY);
+        }
+        else if (value instanceof Collection)
+        {
+            List<Object> values = new ArrayList<Object>(((Collection)value).size());
+            for (Object element : (Collection)value)
+            {
+                Object elementKey = getKeyForParameterValue(element, api);
+                if (elementKey == NO_KEY)
+                {
+                    return NO_KEY;
+                }
+                values.add(elementKey);
+            }
+            return values;
+        }
+        else if (value instanceof java.util.Date)
+        {
+            // Copy since mutable
+            return ((java.util.Date)value).clone();
+        }
+        return value;
+    }
+
+    /**
+     * Accessor for the cached results for the specified key, finding the objects for the cached identities.
+     * The objects are not validated against the datastore (see the class description).
+     * @param key The key
+     * @param ec ExecutionContext to find the objects in
+     * @return The result objects, or null if not cached
+     */
+    public List getResults(List<Object> key, ExecutionContext ec)
+    {
+        CachedResult cachedResult = null;
+        synchronized (this)
+        {
+            cachedResult = entries.get(key);
+        }
+        if (cachedResult == null)
+        {
+            return null;
+        }
+
+        if (NucleusLogger.QUERY.isDebugEnabled())
+        {
+            NucleusLogger.QUERY.debug("Query results found in MongoDB query result cache (" + cachedResult.ids.length + " results)");
+        }
+        List results = new ArrayList(cachedResult.ids.length);
+        for (int i=0;i<cachedResult.ids.length;i++)
+        {
+            results.add(ec.findObject(cachedResult.ids[i], false, false, cachedResult.classNames[i]));
+        }
+        return results;
+    }
+
+    /**
+     * Accessor for the current generation of each of the specified collections. This should be called before a
+     * query is executed, and passed to "putResults" so that results are not cached if any of the collections were
+     * written to while the query was running.
+     * @param collectionNames Names of the collections read by the query
+     * @return The generation of each collection
+     */
+    public synchronized Map<String, Long> getGenerations(Collection<String> collectionNames)
+    {
+        Map<String, Long> generations = new HashMap<String, Long>();
+        for (String collectionName : collectionNames)
+        {
+            Long generation = generationByCollection.get(collectionName);
+            generations.put(collectionName, generation != null ? generation : Long.valueOf(0));
+        }
+        return generations;
+    }
+
+    /**
+     * Method to add the results of a query to the cache.
+     * @param key The key for the query
+     * @param generations The generations of the collections read by the query, from before the query was executed
+     * @param ids The identities of the result objects
+     * @param classNames The class names of the result objects
+     */
+    public synchronized void putResults(List<Object> key, Map<String, Long> generations, List<Object> ids, List<String> classNames)
+    {
+        for (Map.Entry<String, Long> generationEntry : generations.entrySet())
+        {
+            Long generation = generationByCollection.get(generationEntry.getKey());
+            if (!generationEntry.getValue().equals(generation != null ? generation : Long.valueOf(0)))
+            {
+                // Collection written to while the query was executing so results are possibly out of date
+                return;
+            }
+        }
+
+        CachedResult cachedResult = new CachedResult();
+        cachedResult.ids = ids.toArray();
+        cachedResult.classNames = classNames.toArray(new String[classNames.size()]);
+        cachedResult.collectionNames = new ArrayList<String>(generations.keySet());
+        cachedResult.numBytes = ENTRY_OVERHEAD;
+        for (Object id : cachedResult.ids)
+        {
+            cachedResult.numBytes += RESULT_OVERHEAD + 2 * String.valueOf(id).length();
+        }
+        if (cachedResult.numBytes > maxBytes)
+        {
+            // Too large to cache
+            return;
+        }
+
+        removeEntry(key);
+        entries.put(key, cachedResult);
+        numBytes += cachedResult.numBytes;
+        for (String collectionName : cachedResult.collectionNames)
+        {
+            Set<List<Object>> keys = keysByCollection.get(collectionName);
+            if (keys == null)
+            {
+                keys = new HashSet<List<Object>>();
+                keysByCollection.put(collectionName, keys);
+            }
+            keys.add(key);
+        }
+
+        // Evict least-recently-used entries until within the bounds
+        while (entries.size() > maxEntries || numBytes > maxBytes)
+        {
+            removeEntry(entries.keySet().iterator().next());
+        }
+    }
+
+    private void removeEntry(List<Object> key)
+    {
+        CachedResult cachedResult = entries.remove(key);
+        if (cachedResult != null)
+        {
+            numBytes -= cachedResult.numBytes;
+            for (String collectionName : cachedResult.collectionNames)
+            {
+                Set<List<Object>> keys = keysByCollection.get(collectionName);
+                if (keys != null)
+                {
+                    keys.remove(key);
+                    if (keys.isEmpty())
+                    {
+                        keysByCollection.remove(collectionName);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to invalidate all cached results for queries that read the specified collection.
+     * @param collectionName Name of the collection
+     */
+    public void invalidate(String collectionName)
+    {
+        if (!used)
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            Long generation = generationByCollection.get(collectionName);
+            generationByCollection.put(collectionName, generation != null ? generation + 1 : 1);
+
+            Set<List<Object>> keys = keysByCollection.get(collectionName);
+            if (keys != null)
+            {
+                for (List<Object> key : new ArrayList<List<Object>>(keys))
+                {
+                    removeEntry(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to invalidate all cached results for queries that read the specified collection, after a write using
+     * the specified connection. The results are invalidated immediately, and again when the connection is closed
+     * (i.e when the transaction ends) since queries run elsewhere before then will still see the previous state.
+     * @param collectionName Name of the collection
+     * @param mconn The connection used for the write
+     */
+    public void invalidate(String collectionName, final ManagedConnection mconn)
+    {
+        if (!used)
+        {
+            return;
+        }
+
+        invalidate(collectionName);
+        synchronized (this)
+        {
+            Set<String> collectionNames = pendingInvalidations.get(mconn);
+            if (collectionNames == null)
+            {
+                collectionNames = new HashSet<String>();
+                pendingInvalidations.put(mconn, collectionNames);
+                mconn.addListener(new ManagedConnectionResourceListener()
+                {
+                    public void transactionFlushed(){}
+                    public void transactionPreClose(){}
+                    public void managedConnectionPreClose(){}
+                    public void managedConnectionPostClose()
+                    {
+                        Set<String> names = null;
+                        synchronized (MongoDBQueryResultCache.this)
+                        {
+                            names = pendingInvalidations.remove(mconn);
+                        }
+                        if (names != null)
+                        {
+                            for (String name : names)
+                            {
+                                invalidate(name);
+                            }
+                        }
+                    }
+                    public void resourcePostClose()
+                    {
+                        mconn.removeListener(this);
+                    }
+                });
+            }
+            collectionNames.add(collectionName);
+        }
+    }
+
+    /**
+     * Method to remove all cached results.
+     * The generations of the collections are retained (so only ever increase), as are the invalidations pending the
+     * close of a connection, so results of queries executing at the time are still only cached if the collections they
+     * read have not been written to since they started.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        keysByCollection.clear();
+        numBytes = 0;
+    }
+
+    /**
+     * Accessor for the number of cached queries.
+     * @return The number of entries
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+}
@@ -17,6 +17,13 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.store.mongodb.query;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.datanucleus.store.mongodb.query.expression.MongoAggregateExpression;
+import org.datanucleus.store.mongodb.query.expression.MongoExpression;
+import org.datanucleus.store.mongodb.query.expression.MongoFieldExpression;
+
 import com.mongodb.BasicDBObject;
 
 public class MongoDBResult
@@ -25,6 +32,24 @@ public class MongoDBResult
 
     private BasicDBObject mongoDbObject;
 
+    /** Components of the result (aggregates, or fields being grouped by), when all can be evaluated in the datastore. */
+    private List<MongoExpression> components = null;
+
+    /** Aggregates to evaluate; those of the result, followed by any only used by the having clause. */
+    private List<MongoAggregateExpression> aggregates = null;
+
+    /** Fields being grouped by (if grouping). */
+    private List<MongoFieldExpression> groupingFields = null;
+
+    /** Fields making up the result, when the result is only (plain) fields of the candidate. */
+    private List<MongoFieldExpression> projectionFields = null;
+
+    /** Whether the result is distinct values of the fields, evaluated as a grouping on those fields. */
+    private boolean distinct = false;
+
+    /** Filter to apply to the grouped results, referring to "_id.g{n}" for grouping field n and "v{n}" for aggregate n. */
+    private BasicDBObject havingObject = null;
+
     public MongoDBResult()
     {
         this(null, false);
@@ -51,6 +76,128 @@ public class MongoDBResult
         this.countOnly = countOnly;
     }
 
+    /**
+     * Accessor for whether the result is made up only of aggregates (without grouping) that can be evaluated in the datastore.
+     * @return Whether aggregates only
+     */
+    public boolean isAggregateOnly()
+    {
+        return components != null && groupingFields == null;
+    }
+
+    /**
+     * Accessor for whether the result is grouped, with all components (aggregates or grouping fields) able to be
+     * evaluated in the datastore.
+     * @return Whether grouped
+     */
+    public boolean isGrouped()
+    {
+        return components != null && groupingFields != null;
+    }
+
+    /**
+     * Method to add a component of the result, namely an aggregate or a grouping field.
+     * @param component The component
+     */
+    public void addComponent(MongoExpression component)
+    {
+        if (components == null)
+        {
+            components = new ArrayList<MongoExpression>();
+            aggregates = new ArrayList<MongoAggregateExpression>();
+        }
+        components.add(component);
+        if (component instanceof MongoAggregateExpression)
+        {
+            aggregates.add((MongoAggregateExpression)component);
+        }
+    }
+
+    /**
+     * Method to add an aggregate that is used by the having clause.
+     * @param aggregate The aggregate
+     * @return The position of the aggregate
+     */
+    public int addHavingAggregate(MongoAggregateExpression aggregate)
+    {
+        aggregates.add(aggregate);
+        return aggregates.size() - 1;
+    }
+
+    /**
+     * Method to clear the components of the result, so that the result is evaluated in-memory.
+     */
+    public void clearComponents()
+    {
+        components = null;
+        aggregates = null;
+        havingObject = null;
+    }
+
+    public List<MongoExpression> getComponents()
+    {
+        return components;
+    }
+
+    public List<MongoAggregateExpression> getAggregates()
+    {
+        return aggregates;
+    }
+
+    public void setGroupingFields(List<MongoFieldExpression> groupingFields)
+    {
+        this.groupingFields = groupingFields;
+    }
+
+    public List<MongoFieldExpression> getGroupingFields()
+    {
+        return groupingFields;
+    }
+
+    /**
+     * Accessor for whether the result is made up only of (plain) fields of the candidate, so the result rows can
+     * be built directly from the documents.
+     * @return Whether a projection of fields
+     */
+    public boolean isProjection()
+    {
+        return projectionFields != null;
+    }
+
+    public void setProjectionFields(List<MongoFieldExpression> projectionFields)
+    {
+        this.projectionFields = projectionFields;
+    }
+
+    public List<MongoFieldExpression> getProjectionFields()
+    {
+        return projectionFields;
+    }
+
+    public void setDistinct(boolean distinct)
+    {
+        this.distinct = distinct;
+    }
+
+    /**
+     * Accessor for whether the result is the distinct values of the grouping fields (with no aggregates).
+     * @return Whether distinct
+     */
+    public boolean isDistinct()
+    {
+        return distinct;
+    }
+
+    public void setHavingObject(BasicDBObject havingObject)
+    {
+        this.havingObject = havingObject;
+    }
+
+    public BasicDBObject getHavingObject()
+    {
+        return havingObject;
+    }
+
     public BasicDBObject getMongoDbObject()
     {
         return mongoDbObject;
@@ -18,46 +18,69 @@ Contributors:
 package org.datanucleus.store.mongodb.query;
 
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
 
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.ExecutionContext;
 import org.datanucleus.exceptions.NucleusException;
 import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.identity.IdentityUtils;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.ClassMetaData;
+import org.datanucleus.metadata.FieldRole;
 import org.datanucleus.metadata.MetaDataUtils;
 import org.datanucleus.metadata.RelationType;
 import org.datanucleus.query.compiler.CompilationComponent;
 import org.datanucleus.query.compiler.QueryCompilation;
 import org.datanucleus.query.evaluator.AbstractExpressionEvaluator;
+import org.datanucleus.query.expression.ClassExpression;
+import org.datanucleus.query.expression.DyadicExpression;
 import org.datanucleus.query.expression.Expression;
 import org.datanucleus.query.expression.InvokeExpression;
+import org.datanucleus.query.expression.JoinExpression;
 import org.datanucleus.query.expression.Literal;
 import org.datanucleus.query.expression.OrderExpression;
 import org.datanucleus.query.expression.ParameterExpression;
 import org.datanucleus.query.expression.PrimaryExpression;
+import org.datanucleus.query.expression.VariableExpression;
+import org.datanucleus.query.symbol.Symbol;
+import org.datanucleus.query.symbol.SymbolTable;
+import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.store.mongodb.MongoDBUtils;
+import org.datanucleus.store.mongodb.query.expression.MongoAggregateExpression;
 import org.datanucleus.store.mongodb.query.expression.MongoBooleanExpression;
 import org.datanucleus.store.mongodb.query.expression.MongoExpression;
 import org.datanucleus.store.mongodb.query.expression.MongoFieldExpression;
+import org.datanucleus.store.mongodb.query.expression.MongoGeospatialExpression;
 import org.datanucleus.store.mongodb.query.expression.MongoLiteral;
 import org.datanucleus.store.mongodb.query.expression.MongoOperator;
+import org.datanucleus.store.mongodb.query.expression.MongoParameter;
+import org.datanucleus.store.mongodb.query.expression.MongoRelationExpression;
+import org.datanucleus.store.mongodb.query.expression.MongoSizeExpression;
+import org.datanucleus.store.mongodb.query.expression.MongoStringExpression;
+import org.datanucleus.store.StoreData;
 import org.datanucleus.store.query.Query;
 import org.datanucleus.store.schema.table.MemberColumnMapping;
 import org.datanucleus.store.schema.table.Table;
+import org.datanucleus.util.ClassUtils;
 import org.datanucleus.util.NucleusLogger;
 import org.datanucleus.util.StringUtils;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
 
 /**
  * Class which maps a compiled (generic) query to an MongoDB query.
@@ -100,6 +123,39 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
 
     boolean precompilable = true;
 
+    /** Literals for the values of parameters in the filter, which are bound at execution (via a slot in the filter). */
+    List<MongoLiteral> filterParameterLiterals = new ArrayList<MongoLiteral>();
+
+    /** Whether any parameters are used in the filter. */
+    boolean filterUsesParameters = false;
+
+    /** Whether the filter uses geospatial functions, which can only be evaluated in the datastore. */
+    boolean filterUsesGeospatial = false;
+
+    /** Error in a geospatial function of the filter (e.g no geospatial index), reported once the filter is compiled. */
+    NucleusUserException geospatialError = null;
+
+    /** The update modifier ($set, $unset, $inc) for a bulk update. Null if not an update, or not evaluatable in the datastore. */
+    BasicDBObject updateObject;
+
+    /** Fields being grouped by, when all grouping expressions can be evaluated in the datastore. */
+    List<MongoFieldExpression> groupingFields = null;
+
+    /** Variable bound to the elements of an embedded collection, when compiling the conditions on those elements. */
+    String elementVariable = null;
+
+    /** Metadata for the elements that the element variable is bound to. */
+    AbstractClassMetaData elementCmd = null;
+
+    /** Table for the elements that the element variable is bound to. */
+    Table elementTable = null;
+
+    /** Literals for the results of the subqueries executed before the query (null when correlated), keyed by alias. */
+    Map<String, MongoLiteral> subqueryLiterals = new HashMap<String, MongoLiteral>();
+
+    /** Extension for the maximum number of related identities to inline in the filter for a semi-join. */
+    public static final String EXTENSION_SEMI_JOIN_MAX_IDS = "semi-join-max-ids";
+
     /** Stack of mongo expressions, used for compilation of the query into MongoDB objects. */
     Deque<MongoExpression> stack = new ArrayDeque<MongoExpression>();
 
@@ -128,6 +184,15 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
         return precompilable;
     }
 
+    /**
+     * Accessor for whether the filter has slots for parameter values, to be bound at execution.
+     * @return Whether the filter is parameterised
+     */
+    public boolean isFilterParameterised()
+    {
+        return filterExpr != null && !filterParameterLiterals.isEmpty();
+    }
+
     public MongoBooleanExpression getFilterExpression()
     {
         return filterExpr;
@@ -143,6 +208,48 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
         return orderingObject;
     }
 
+    public BasicDBObject getUpdateObject()
+    {
+        return updateObject;
+    }
+
+    /**
+     * Accessor for the shape of the query (the fields filtered and sorted on in the candidate collection), for use
+     * by the index advisor. The filter includes the restrictions on the discriminator (where the collection is shared
+     * by several classes) and on the tenant, as added when the query is executed.
+     * @return The shape, or null if the query doesn't filter or sort on any field in the datastore
+     */
+    public MongoDBIndexAdvisor.QueryShape getQueryShape()
+    {
+        StoreData sd = ec.getStoreManager().getStoreDataForClass(candidateCmd.getFullClassName());
+        if (sd == null || sd.getTable() == null)
+        {
+            return null;
+        }
+
+        // Include the restrictions for the candidate classes stored in the candidate collection (discriminator, tenant)
+        List<AbstractClassMetaData> cmdsForCollection = new ArrayList<AbstractClassMetaData>();
+        for (AbstractClassMetaData cmd : MetaDataUtils.getMetaDataForCandidates(query.getCandidateClass(), query.isSubclasses(), ec))
+        {
+            StoreData cmdSd = ec.getStoreManager().getStoreDataForClass(cmd.getFullClassName());
+            if (cmdSd != null && cmdSd.getTable() != null && cmdSd.getTable().getName().equals(sd.getTable().getName()) &&
+                !(cmd instanceof ClassMetaData && ((ClassMetaData)cmd).isAbstract()))
+            {
+                cmdsForCollection.add(cmd);
+            }
+        }
+        BasicDBObject queryObject = new BasicDBObject();
+        if (filterExpr != null)
+        {
+            queryObject.putAll((DBObject)filterExpr.getDBObject());
+        }
+        if (!cmdsForCollection.isEmpty())
+        {
+            MongoDBUtils.addRestrictionsForClasses(queryObject, cmdsForCollection, ec.getStoreManager().getStoreDataForClass(cmdsForCollection.get(0).getFullClassName()).getTable(), ec.getStoreManager());
+        }
+        return MongoDBIndexAdvisor.getShapeForQuery(sd.getTable().getName(), queryObject, orderingObject);
+    }
+
     public void compile()
     {
         if (compilation.getExprFrom() != null)
@@ -150,16 +257,39 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
             NucleusLogger.QUERY.warn("FROM clause will be ignored. Not supported for this datastore (MongoDB doesn't do 'joins')");
         }
         compileFilter();
+        compileUpdate();
+        compileGrouping();
         compileResult();
-        if (compilation.getExprGrouping() != null)
+        compileHaving();
+        compileOrdering();
+
+        if (filterUsesGeospatial && !filterComplete)
         {
-            NucleusLogger.QUERY.warn("GROUPING clause will be ignored. Not supported for this datastore");
+            if (geospatialError != null)
+            {
+                // The compilation of the filter falls back to in-memory evaluation on any error, so report the actual error
+                throw geospatialError;
+            }
+            throw new NucleusUserException("Query filter uses geospatial functions but cannot be evaluated completely in the datastore." +
+                " Geospatial functions require a field with a geospatial index, and numeric literal or parameter arguments");
         }
-        if (compilation.getExprHaving() != null)
+
+        if (filterUsesParameters)
         {
-            NucleusLogger.QUERY.warn("HAVING clause will be ignored. Not supported for this datastore");
+            if (!filterComplete)
+            {
+                // Which parts of the filter are evaluated in the datastore may depend on the parameter values
+                precompilable = false;
+            }
+            for (MongoLiteral lit : filterParameterLiterals)
+            {
+                if (lit.isValueUsed())
+                {
+                    // Filter depends on the value of the parameter (rather than having a slot for it)
+                    precompilable = false;
+                }
+            }
         }
-        compileOrdering();
     }
 
     /**
@@ -171,6 +301,27 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
         {
             compileComponent = CompilationComponent.FILTER;
 
+            if (hasVariables(compilation.getExprFilter()))
+            {
+                // Evaluate the conditions on each variable bound to an embedded collection using $elemMatch
+                filterExpr = compileFilterConjuncts(compilation.getExprFilter());
+                stack.clear();
+                if (positionalParamNumber >= 0)
+                {
+                    // Conjuncts compiled out of order, so positional parameters may have been misassigned
+                    filterExpr = null;
+                    filterComplete = false;
+                }
+                else if (filterComplete && (hasVariables(compilation.getExprResult()) || hasVariables(compilation.getExprGrouping()) ||
+                    hasVariables(compilation.getExprOrdering()) || hasVariables(new Expression[] {compilation.getExprHaving()})))
+                {
+                    // Variable used outside of the filter, so needs its values from the in-memory evaluation of the filter
+                    filterComplete = false;
+                }
+                compileComponent = null;
+                return;
+            }
+
             try
             {
                 compilation.getExprFilter().evaluate(this);
@@ -180,25 +331,613 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
                     NucleusLogger.QUERY.error("Invalid compilation : filter compiled to " + mongoExpr);
                     filterComplete = false;
                 }
-                else
+                else if (filterComplete)
                 {
                     filterExpr = (MongoBooleanExpression) mongoExpr;
                 }
             }
             catch (Exception e)
             {
-                // Impossible to compile all to run in the datastore, so just exit
+                // Impossible to compile all to run in the datastore
                 if (NucleusLogger.QUERY.isDebugEnabled())
                 {
                     NucleusLogger.QUERY.debug("Compilation of filter to be evaluated completely in-datastore was impossible : ", e);
                 }
                 filterComplete = false;
             }
+            stack.clear();
+
+            if (!filterComplete && positionalParamNumber < 0)
+            {
+                // Evaluate whichever of the top-level conjuncts we can in the datastore, to reduce the candidates
+                // that the (full) filter is then evaluated on in-memory
+                filterExpr = compileFilterConjuncts(compilation.getExprFilter());
+                filterComplete = false;
+            }
 
             compileComponent = null;
         }
     }
 
+    /**
+     * Method to compile each top-level conjunct (i.e part of an AND chain) of the filter, combining those that can be
+     * evaluated in the datastore. The resultant filter returns a superset of the results of the full filter.
+     * Where a variable is bound to the elements of an embedded collection (by "coll.contains(var)"), the conjuncts that
+     * refer only to that variable are evaluated together on each element using $elemMatch.
+     * Sets "filterComplete" according to whether all conjuncts are evaluated in the datastore.
+     * @param filter The filter
+     * @return The filter of the conjuncts that can be evaluated in the datastore, or null if none
+     */
+    protected MongoBooleanExpression compileFilterConjuncts(Expression filter)
+    {
+        List<Expression> conjuncts = new ArrayList<Expression>();
+        addConjuncts(filter, conjuncts);
+        int numConjuncts = conjuncts.size();
+
+        MongoBooleanExpression partialExpr = null;
+        int numCompiled = 0;
+        for (InvokeExpression containsExpr : getVariableContainsConjuncts(conjuncts))
+        {
+            String varName = ((VariableExpression) containsExpr.getArguments().get(0)).getId();
+            List<Expression> elementConjuncts = new ArrayList<Expression>();
+            for (Expression conjunct : conjuncts)
+            {
+                Set<String> varNames = new HashSet<String>();
+                if (conjunct != containsExpr && !getVariablesForExpression(conjunct, varNames) &&
+                    varNames.size() == 1 && varNames.contains(varName))
+                {
+                    elementConjuncts.add(conjunct);
+                }
+            }
+
+            List<Expression> compiledConjuncts = new ArrayList<Expression>();
+            MongoBooleanExpression elemExpr = compileElementMatch(containsExpr, varName, elementConjuncts, compiledConjuncts);
+            if (elemExpr != null)
+            {
+                partialExpr = (partialExpr == null ? elemExpr : new MongoBooleanExpression(partialExpr, elemExpr, MongoOperator.OP_AND));
+                numCompiled += 1 + compiledConjuncts.size();
+                conjuncts.remove(containsExpr);
+                conjuncts.removeAll(compiledConjuncts);
+            }
+        }
+
+        for (Expression conjunct : conjuncts)
+        {
+            filterComplete = true;
+            try
+            {
+                conjunct.evaluate(this);
+                MongoExpression mongoExpr = stack.pop();
+                if (filterComplete && mongoExpr instanceof MongoBooleanExpression)
+                {
+                    partialExpr = (partialExpr == null ? (MongoBooleanExpression)mongoExpr :
+                        new MongoBooleanExpression(partialExpr, (MongoBooleanExpression)mongoExpr, MongoOperator.OP_AND));
+                    numCompiled++;
+                }
+            }
+            catch (Exception e)
+            {
+                // Conjunct cannot be evaluated in the datastore
+            }
+            stack.clear();
+        }
+
+        filterComplete = (numCompiled == numConjuncts);
+        if (!filterComplete && NucleusLogger.QUERY.isDebugEnabled())
+        {
+            NucleusLogger.QUERY.debug("Filter has " + numCompiled + " of " + numConjuncts + " conjuncts evaluated in the datastore, " +
+                "with the filter evaluated in-memory on the results");
+        }
+        return partialExpr;
+    }
+
+    /**
+     * Method to find the conjuncts of the form "coll.contains(var)" that bind a variable to the elements of a
+     * collection field of the candidate. Only the first binding of a variable is returned.
+     * @param conjuncts The conjuncts
+     * @return The conjuncts binding variables
+     */
+    private static List<InvokeExpression> getVariableContainsConjuncts(List<Expression> conjuncts)
+    {
+        List<InvokeExpression> containsExprs = new ArrayList<InvokeExpression>();
+        Set<String> varNames = new HashSet<String>();
+        for (Expression conjunct : conjuncts)
+        {
+            if (conjunct instanceof InvokeExpression && "contains".equals(((InvokeExpression) conjunct).getOperation()))
+            {
+                InvokeExpression invokeExpr = (InvokeExpression) conjunct;
+                List<Expression> args = invokeExpr.getArguments();
+                if (invokeExpr.getLeft() instanceof PrimaryExpression && invokeExpr.getLeft().getLeft() == null &&
+                    args != null && args.size() == 1 && args.get(0) instanceof VariableExpression &&
+                    varNames.add(((VariableExpression) args.get(0)).getId()))
+                {
+                    containsExprs.add(invokeExpr);
+                }
+            }
+        }
+        return containsExprs;
+    }
+
+    /**
+     * Method to compile the conditions on the elements of an embedded collection (bound to a variable) into an
+     * $elemMatch, so that the same element has to satisfy all of them.
+     * @param containsExpr The "coll.contains(var)" expression binding the variable
+     * @param varName Name of the variable
+     * @param elementConjuncts The conjuncts that refer only to the variable
+     * @param compiledConjuncts The conjuncts that are compiled into the $elemMatch (populated by this method)
+     * @return The expression for the collection having a matching element, or null if not evaluatable in the datastore
+     */
+    protected MongoBooleanExpression compileElementMatch(InvokeExpression containsExpr, String varName, List<Expression> elementConjuncts,
+            List<Expression> compiledConjuncts)
+    {
+        MongoFieldExpression collFieldExpr = null;
+        try
+        {
+            collFieldExpr = getFieldNameForPrimary((PrimaryExpression) containsExpr.getLeft());
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+        if (collFieldExpr == null || !isContainerStoredAsArray(collFieldExpr))
+        {
+            return null;
+        }
+
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        AbstractMemberMetaData mmd = collFieldExpr.getMemberMetaData();
+        AbstractClassMetaData elemCmd = null;
+        if (mmd.hasCollection())
+        {
+            elemCmd = mmd.getCollection().getElementClassMetaData(clr, ec.getMetaDataManager());
+        }
+        else if (mmd.hasArray())
+        {
+            elemCmd = mmd.getArray().getElementClassMetaData(clr, ec.getMetaDataManager());
+        }
+        if (elemCmd == null || !MetaDataUtils.getInstance().isMemberEmbedded(ec.getMetaDataManager(), clr, mmd, mmd.getRelationType(clr), null))
+        {
+            // Elements are not stored in this document
+            return null;
+        }
+
+        if (!ec.getStoreManager().managesClass(elemCmd.getFullClassName()))
+        {
+            ec.getStoreManager().manageClasses(clr, elemCmd.getFullClassName());
+        }
+        elementVariable = varName;
+        elementCmd = elemCmd;
+        elementTable = ec.getStoreManager().getStoreDataForClass(elemCmd.getFullClassName()).getTable();
+
+        MongoBooleanExpression elemExpr = null;
+        try
+        {
+            for (Expression conjunct : elementConjuncts)
+            {
+                filterComplete = true;
+                try
+                {
+                    conjunct.evaluate(this);
+                    MongoExpression mongoExpr = stack.pop();
+                    if (filterComplete && mongoExpr instanceof MongoBooleanExpression)
+                    {
+                        elemExpr = (elemExpr == null ? (MongoBooleanExpression)mongoExpr :
+                            new MongoBooleanExpression(elemExpr, (MongoBooleanExpression)mongoExpr, MongoOperator.OP_AND));
+                        compiledConjuncts.add(conjunct);
+                    }
+                }
+                catch (Exception e)
+                {
+                    // Conjunct cannot be evaluated in the datastore
+                }
+                stack.clear();
+            }
+        }
+        finally
+        {
+            elementVariable = null;
+            elementCmd = null;
+            elementTable = null;
+        }
+
+        if (elemExpr == null)
+        {
+            // No conditions on the element, so just needs an element
+            return new MongoSizeExpression(collFieldExpr).getComparisonExpression(MongoOperator.OP_GT, 0);
+        }
+        return new MongoBooleanExpression(collFieldExpr, elemExpr, MongoOperator.ELEM_MATCH);
+    }
+
+    /**
+     * Method to find the variables referred to by the provided expression.
+     * @param expr The expression
+     * @param varNames The names of the variables (populated by this method)
+     * @return Whether the expression refers to the candidate, or to anything other than variables, parameters and literals
+     */
+    private boolean getVariablesForExpression(Expression expr, Set<String> varNames)
+    {
+        if (expr == null || expr instanceof Literal || expr instanceof ParameterExpression)
+        {
+            return false;
+        }
+        else if (expr instanceof VariableExpression)
+        {
+            if (compilation.getCompilationForSubquery(((VariableExpression) expr).getId()) == null)
+            {
+                // Subqueries are not variables
+                varNames.add(((VariableExpression) expr).getId());
+            }
+            return false;
+        }
+        else if (expr instanceof PrimaryExpression)
+        {
+            return expr.getLeft() == null ? true : getVariablesForExpression(expr.getLeft(), varNames);
+        }
+        else if (expr instanceof InvokeExpression)
+        {
+            boolean other = getVariablesForExpression(expr.getLeft(), varNames);
+            if (((InvokeExpression) expr).getArguments() != null)
+            {
+                for (Expression argExpr : ((InvokeExpression) expr).getArguments())
+                {
+                    other |= getVariablesForExpression(argExpr, varNames);
+                }
+            }
+            return other;
+        }
+        else if (expr instanceof DyadicExpression)
+        {
+            boolean other = getVariablesForExpression(expr.getLeft(), varNames);
+            return getVariablesForExpression(expr.getRight(), varNames) || other;
+        }
+        return true;
+    }
+
+    private boolean hasVariables(Expression expr)
+    {
+        Set<String> varNames = new HashSet<String>();
+        getVariablesForExpression(expr, varNames);
+        return !varNames.isEmpty();
+    }
+
+    private boolean hasVariables(Expression[] exprs)
+    {
+        if (exprs != null)
+        {
+            for (Expression expr : exprs)
+            {
+                if (hasVariables(expr instanceof OrderExpression ? expr.getLeft() : expr))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static void addConjuncts(Expression expr, List<Expression> conjuncts)
+    {
+        if (expr instanceof DyadicExpression && expr.getOperator() == Expression.OP_AND)
+        {
+            addConjuncts(expr.getLeft(), conjuncts);
+            addConjuncts(expr.getRight(), conjuncts);
+        }
+        else
+        {
+            conjuncts.add(expr);
+        }
+    }
+
+    /**
+     * Method to compile the update clause of a bulk update into a modifier, using $inc for assignments of the form
+     * "field = field + value" (or "field - value"), $unset for assignments of null (since nulls are not stored),
+     * and $set otherwise. Only assignments of literals/parameters to (non-relation) fields of the candidate are
+     * supported, and increments only of fields of primitive numeric (or wrapper) type that are stored as numbers
+     * (so not BigDecimal/BigInteger, or fields with a type converter).
+     */
+    protected void compileUpdate()
+    {
+        if (compilation.getExprUpdate() != null)
+        {
+            compileComponent = CompilationComponent.UPDATE;
+            try
+            {
+                BasicDBObject setObject = new BasicDBObject();
+                BasicDBObject unsetObject = new BasicDBObject();
+                BasicDBObject incObject = new BasicDBObject();
+                for (Expression updateExpr : compilation.getExprUpdate())
+                {
+                    if (!(updateExpr instanceof DyadicExpression) || updateExpr.getOperator() != Expression.OP_EQ)
+                    {
+                        throw new NucleusException("Update " + updateExpr + " is not an assignment");
+                    }
+                    MongoFieldExpression fieldExpr = getGroupableFieldForExpression(updateExpr.getLeft());
+                    if (fieldExpr == null)
+                    {
+                        throw new NucleusException("Update " + updateExpr + " is not to a field that can be updated in the datastore");
+                    }
+                    AbstractMemberMetaData mmd = fieldExpr.getMemberMetaData();
+
+                    Expression valueExpr = updateExpr.getRight();
+                    if (valueExpr instanceof DyadicExpression &&
+                        (valueExpr.getOperator() == Expression.OP_ADD || valueExpr.getOperator() == Expression.OP_SUB) &&
+                        valueExpr.getLeft() instanceof PrimaryExpression &&
+                        ((PrimaryExpression)valueExpr.getLeft()).getId().equals(((PrimaryExpression)updateExpr.getLeft()).getId()))
+                    {
+                        // Increment of the field
+                        if (!isIncrementable(mmd))
+                        {
+                            throw new NucleusException("Update " + updateExpr + " increments a field that is not stored as a primitive number");
+                        }
+                        Object amount = getLiteralValueForExpression(valueExpr.getRight());
+                        if (!(amount instanceof Number))
+                        {
+                            throw new NucleusException("Update " + updateExpr + " increments by a non-numeric value");
+                        }
+                        Number increment = (Number)getNumberForMember(mmd, (Number)amount);
+                        if (valueExpr.getOperator() == Expression.OP_SUB)
+                        {
+                            increment = (increment instanceof Double || increment instanceof Float) ?
+                                (Number)Double.valueOf(-increment.doubleValue()) : (Number)Long.valueOf(-increment.longValue());
+                            increment = (Number)getNumberForMember(mmd, increment);
+                        }
+                        incObject.append(fieldExpr.getPropertyName(), increment);
+                    }
+                    else
+                    {
+                        Object value = getLiteralValueForExpression(valueExpr);
+                        if (value == null)
+                        {
+                            if (mmd.getType().isPrimitive())
+                            {
+                                throw new NucleusUserException("Update " + updateExpr + " sets primitive field to null");
+                            }
+                            unsetObject.append(fieldExpr.getPropertyName(), 1);
+                        }
+                        else
+                        {
+                            if (value instanceof Number)
+                            {
+                                value = getNumberForMember(mmd, (Number)value);
+                            }
+                            setObject.append(fieldExpr.getPropertyName(), MongoDBUtils.getStoredValueForField(ec, mmd, value, FieldRole.ROLE_FIELD));
+                        }
+                    }
+                }
+
+                updateObject = new BasicDBObject();
+                if (!setObject.isEmpty())
+                {
+                    updateObject.append("$set", setObject);
+                }
+                if (!unsetObject.isEmpty())
+                {
+                    updateObject.append("$unset", unsetObject);
+                }
+                if (!incObject.isEmpty())
+                {
+                    updateObject.append("$inc", incObject);
+                }
+            }
+            catch (NucleusUserException nue)
+            {
+                throw nue;
+            }
+            catch (Exception e)
+            {
+                // Impossible to evaluate the update in the datastore
+                if (NucleusLogger.QUERY.isDebugEnabled())
+                {
+                    NucleusLogger.QUERY.debug("Compilation of update to be evaluated completely in-datastore was impossible : ", e);
+                }
+                updateObject = null;
+            }
+            stack.clear();
+            compileComponent = null;
+        }
+    }
+
+    /**
+     * Accessor for the value of a literal or parameter expression.
+     * @param expr The expression
+     * @return The value
+     */
+    private Object getLiteralValueForExpression(Expression expr)
+    {
+        expr.evaluate(this);
+        MongoExpression mongoExpr = stack.pop();
+        if (!(mongoExpr instanceof MongoLiteral))
+        {
+            throw new NucleusException("Expression " + expr + " is not a literal");
+        }
+        return ((MongoLiteral)mongoExpr).getValue();
+    }
+
+    /**
+     * Convenience method to return whether the specified member can be updated using $inc, meaning that it is of a
+     * primitive numeric (or wrapper) type and stored as a number. Other numeric types (e.g BigDecimal, BigInteger) are
+     * stored as String/Double, and a type converter can store the value in any form.
+     * @param mmd Metadata for the member
+     * @return Whether the member can be incremented in the datastore
+     */
+    static boolean isIncrementable(AbstractMemberMetaData mmd)
+    {
+        if (mmd.getTypeConverterName() != null)
+        {
+            return false;
+        }
+        Class type = mmd.getType().isPrimitive() ? ClassUtils.getWrapperTypeForPrimitiveType(mmd.getType()) : mmd.getType();
+        return type == Long.class || type == Integer.class || type == Short.class || type == Byte.class ||
+            type == Double.class || type == Float.class;
+    }
+
+    /**
+     * Convenience method to convert a number to the (wrapper) type of the specified numeric member, so that it is
+     * stored with the same type as when persisting the object.
+     * @param mmd Metadata for the member
+     * @param value The number
+     * @return The number of the member type (or the input number if the member is not of a numeric type)
+     */
+    private static Object getNumberForMember(AbstractMemberMetaData mmd, Number value)
+    {
+        Class type = mmd.getType().isPrimitive() ? ClassUtils.getWrapperTypeForPrimitiveType(mmd.getType()) : mmd.getType();
+        if (type == Long.class)
+        {
+            return Long.valueOf(value.longValue());
+        }
+        else if (type == Integer.class)
+        {
+            return Integer.valueOf(value.intValue());
+        }
+        else if (type == Short.class)
+        {
+            return Short.valueOf(value.shortValue());
+        }
+        else if (type == Byte.class)
+        {
+            return Byte.valueOf(value.byteValue());
+        }
+        else if (type == Double.class)
+        {
+            return Double.valueOf(value.doubleValue());
+        }
+        else if (type == Float.class)
+        {
+            return Float.valueOf(value.floatValue());
+        }
+        return value;
+    }
+
+    /**
+     * Method to compile the grouping clause of the query. Grouping is only evaluated in the datastore when all grouping
+     * expressions are (non-relation) fields of the candidate document.
+     */
+    protected void compileGrouping()
+    {
+        if (compilation.getExprGrouping() != null)
+        {
+            compileComponent = CompilationComponent.GROUPING;
+            groupingFields = new ArrayList<MongoFieldExpression>();
+            for (Expression groupExpr : compilation.getExprGrouping())
+            {
+                MongoFieldExpression fieldExpr = getGroupableFieldForExpression(groupExpr);
+                if (fieldExpr == null)
+                {
+                    if (NucleusLogger.QUERY.isDebugEnabled())
+                    {
+                        NucleusLogger.QUERY.debug("Grouping by " + groupExpr + " cannot be evaluated in the datastore, so grouping will be evaluated in-memory");
+                    }
+                    groupingFields = null;
+                    break;
+                }
+                groupingFields.add(fieldExpr);
+            }
+            compileComponent = null;
+        }
+    }
+
+    /**
+     * Accessor for the document field that the provided expression refers to, when it can be grouped on (or
+     * made distinct) in the datastore, i.e a (non-relation, non-container) field of the candidate document.
+     * @param expr The expression
+     * @return The field, or null if not groupable in the datastore
+     */
+    protected MongoFieldExpression getGroupableFieldForExpression(Expression expr)
+    {
+        MongoFieldExpression fieldExpr = null;
+        if (expr instanceof PrimaryExpression && ((PrimaryExpression)expr).getLeft() == null)
+        {
+            try
+            {
+                fieldExpr = getFieldNameForPrimary((PrimaryExpression)expr);
+            }
+            catch (Exception e)
+            {
+                // Not a field of this document
+            }
+        }
+        AbstractMemberMetaData mmd = (fieldExpr != null ? fieldExpr.getMemberMetaData() : null);
+        if (mmd == null || mmd.getRelationType(ec.getClassLoaderResolver()) != RelationType.NONE ||
+            mmd.hasCollection() || mmd.hasMap() || mmd.hasArray())
+        {
+            return null;
+        }
+        MemberColumnMapping mapping = fieldExpr.getMemberColumnMapping();
+        if (mmd.getTypeConverterName() != null ||
+            (mapping != null && (mapping.getTypeConverter() != null || mapping.getNumberOfColumns() != 1)))
+        {
+            // Stored value needs converting, so can only be evaluated from the object
+            return null;
+        }
+        return fieldExpr;
+    }
+
+    /**
+     * Method to compile the having clause of the query, into a filter on the grouped results.
+     * Only applicable when the result and grouping can be evaluated in the datastore.
+     */
+    protected void compileHaving()
+    {
+        if (compilation.getExprHaving() != null && resultObject != null && resultObject.isGrouped())
+        {
+            compileComponent = CompilationComponent.HAVING;
+            try
+            {
+                compilation.getExprHaving().evaluate(this);
+                MongoExpression mongoExpr = stack.pop();
+                if (!(mongoExpr instanceof MongoBooleanExpression))
+                {
+                    throw new NucleusException("Having compiled to " + mongoExpr);
+                }
+                resultObject.setHavingObject(((MongoBooleanExpression)mongoExpr).getDBObject());
+            }
+            catch (Exception e)
+            {
+                // Impossible to evaluate the having clause in the datastore, so evaluate the grouping in-memory
+                if (NucleusLogger.QUERY.isDebugEnabled())
+                {
+                    NucleusLogger.QUERY.debug("Compilation of having to be evaluated completely in-datastore was impossible : ", e);
+                }
+                resultObject.clearComponents();
+            }
+            stack.clear();
+            compileComponent = null;
+        }
+    }
+
+    /**
+     * Accessor for the grouping field that the provided primary expression refers to.
+     * @param primExpr The primary expression
+     * @return The grouping field, or null if not a field being grouped by
+     */
+    protected MongoFieldExpression getGroupingFieldForPrimary(PrimaryExpression primExpr)
+    {
+        if (groupingFields == null || primExpr.getLeft() != null)
+        {
+            return null;
+        }
+        MongoFieldExpression fieldExpr = null;
+        try
+        {
+            fieldExpr = getFieldNameForPrimary(primExpr);
+        }
+        catch (Exception e)
+        {
+            // Not a field of this document
+        }
+        if (fieldExpr != null)
+        {
+            for (MongoFieldExpression groupingField : groupingFields)
+            {
+                if (groupingField.getPropertyName().equals(fieldExpr.getPropertyName()))
+                {
+                    return groupingField;
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Method to compile the result clause of the query
      */
@@ -211,6 +950,33 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
 
             // Select any result expressions
             Expression[] resultExprs = compilation.getExprResult();
+            boolean componentsComplete = (compilation.getExprGrouping() == null || groupingFields != null);
+
+            // Plain fields (without grouping) can be projected directly from the documents
+            List<MongoFieldExpression> projectionFields = null;
+            if (compilation.getExprGrouping() == null)
+            {
+                projectionFields = new ArrayList<MongoFieldExpression>();
+                for (Expression expr : resultExprs)
+                {
+                    MongoFieldExpression fieldExpr = getGroupableFieldForExpression(expr);
+                    if (fieldExpr == null)
+                    {
+                        projectionFields = null;
+                        break;
+                    }
+                    projectionFields.add(fieldExpr);
+                }
+                resultObject.setProjectionFields(projectionFields);
+            }
+
+            // Distinct fields (without grouping) are evaluated as a grouping on those fields
+            List<MongoFieldExpression> distinctFields = null;
+            if (compilation.getResultDistinct() && compilation.getExprGrouping() == null && compilation.getExprHaving() == null)
+            {
+                distinctFields = new ArrayList<MongoFieldExpression>();
+            }
+
             for (Expression expr : resultExprs)
             {
                 if (expr instanceof InvokeExpression)
@@ -219,19 +985,121 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
                     {
                         resultObject.setCountOnly(true);
                     }
+
+                    MongoAggregateExpression aggrExpr = getAggregateForInvoke((InvokeExpression)expr);
+                    if (aggrExpr != null)
+                    {
+                        resultObject.addComponent(aggrExpr);
+                    }
                     else
                     {
-
+                        componentsComplete = false;
+                    }
+                }
+                else if (expr instanceof PrimaryExpression && distinctFields != null)
+                {
+                    // Field being made distinct
+                    MongoFieldExpression distinctField = getGroupableFieldForExpression(expr);
+                    if (distinctField != null)
+                    {
+                        distinctFields.add(distinctField);
+                        resultObject.addComponent(distinctField);
                     }
+                    else
+                    {
+                        componentsComplete = false;
+                    }
+                }
+                else if (expr instanceof PrimaryExpression && groupingFields != null)
+                {
+                    // Field being grouped by
+                    MongoFieldExpression groupingField = getGroupingFieldForPrimary((PrimaryExpression)expr);
+                    if (groupingField != null)
+                    {
+                        resultObject.addComponent(groupingField);
+                    }
+                    else
+                    {
+                        componentsComplete = false;
+                    }
+                }
+                else
+                {
+                    componentsComplete = false;
+                }
+            }
+            if (distinctFields != null && !distinctFields.isEmpty())
+            {
+                if (componentsComplete && distinctFields.size() == resultExprs.length)
+                {
+                    resultObject.setGroupingFields(distinctFields);
+                    resultObject.setDistinct(true);
                 }
                 else
                 {
+                    resultObject.clearComponents();
+                }
+            }
+            else if (componentsComplete)
+            {
+                resultObject.setGroupingFields(groupingFields);
+            }
+            else
+            {
+                resultObject.clearComponents();
+            }
+            stack.clear();
+        }
+        compileComponent = null;
+    }
+
+    /**
+     * Method to convert an aggregate invocation in the result clause (count, sum, avg, min, max) into an aggregate
+     * expression for evaluation in the datastore.
+     * @param invokeExpr The invocation
+     * @return The aggregate expression, or null if not an aggregate that can be evaluated in the datastore
+     */
+    protected MongoAggregateExpression getAggregateForInvoke(InvokeExpression invokeExpr)
+    {
+        String operation = invokeExpr.getOperation();
+        List<Expression> args = invokeExpr.getArguments();
+        if (invokeExpr.getLeft() != null || args == null || args.size() != 1 || !(args.get(0) instanceof PrimaryExpression))
+        {
+            return null;
+        }
+        if (!"count".equalsIgnoreCase(operation) && !"sum".equalsIgnoreCase(operation) && !"avg".equalsIgnoreCase(operation) &&
+            !"min".equalsIgnoreCase(operation) && !"max".equalsIgnoreCase(operation))
+        {
+            return null;
+        }
 
-                }
-            }
+        PrimaryExpression argExpr = (PrimaryExpression)args.get(0);
+        if (argExpr.getLeft() == null && argExpr.getTuples().size() == 1 && argExpr.getId().equals(candidateAlias))
+        {
+            // Aggregate of the candidate, so only count is meaningful
+            return "count".equalsIgnoreCase(operation) ? new MongoAggregateExpression(operation, null) : null;
         }
-        // TODO Handle distinct
-        compileComponent = null;
+
+        MongoFieldExpression fieldExpr = null;
+        try
+        {
+            fieldExpr = (argExpr.getLeft() == null ? getFieldNameForPrimary(argExpr) : null);
+        }
+        catch (Exception e)
+        {
+            // Not a field of this document
+        }
+        if (fieldExpr == null || fieldExpr.getMemberMetaData() == null)
+        {
+            return null;
+        }
+        AbstractMemberMetaData mmd = fieldExpr.getMemberMetaData();
+        if (mmd.getRelationType(ec.getClassLoaderResolver()) != RelationType.NONE || mmd.hasCollection() || mmd.hasMap() || mmd.hasArray() ||
+            mmd.getTypeConverterName() != null || !MongoAggregateExpression.isSupportedForType(operation, mmd.getType()))
+        {
+            return null;
+        }
+        return new MongoAggregateExpression(operation, fieldExpr);
     }
 
     /**
@@ -244,14 +1112,33 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
             compileComponent = CompilationComponent.ORDERING;
             Expression[] orderingExpr = compilation.getExprOrdering();
             orderingObject = new BasicDBObject();
-            for (int i = 0; i < orderingExpr.length; i++)
+            try
             {
-                OrderExpression orderExpr = (OrderExpression) orderingExpr[i];
-                MongoFieldExpression orderMongoExpr = (MongoFieldExpression) orderExpr.getLeft().evaluate(this);
-                String orderDir = orderExpr.getSortOrder();
-                int direction = ((orderDir == null || orderDir.equals("ascending")) ? 1 : -1);
-                orderingObject.put(orderMongoExpr.getPropertyName(), direction);
+                for (int i = 0; i < orderingExpr.length; i++)
+                {
+                    OrderExpression orderExpr = (OrderExpression) orderingExpr[i];
+                    Object orderMongoExpr = orderExpr.getLeft().evaluate(this);
+                    if (!(orderMongoExpr instanceof MongoFieldExpression))
+                    {
+                        // Only ordering by fields of this document is supported
+                        orderingObject = null;
+                        break;
+                    }
+                    String orderDir = orderExpr.getSortOrder();
+                    int direction = ((orderDir == null || orderDir.equals("ascending")) ? 1 : -1);
+                    orderingObject.put(((MongoFieldExpression)orderMongoExpr).getPropertyName(), direction);
+                }
+            }
+            catch (Exception e)
+            {
+                // Impossible to compile the ordering to run in the datastore, so leave it to be evaluated in-memory
+                if (NucleusLogger.QUERY.isDebugEnabled())
+                {
+                    NucleusLogger.QUERY.debug("Compilation of ordering to be evaluated completely in-datastore was impossible : ", e);
+                }
+                orderingObject = null;
             }
+            stack.clear();
             compileComponent = null;
         }
     }
@@ -284,6 +1171,73 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
         return andExpr;
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.datanucleus.query.evaluator.AbstractExpressionEvaluator#processNotExpression(org.datanucleus.query.expression.Expression)
+     */
+    @Override
+    protected Object processNotExpression(Expression expr)
+    {
+        Object theExpr = stack.pop();
+        if (theExpr instanceof MongoBooleanExpression)
+        {
+            MongoExpression mongoExpr = new MongoBooleanExpression((MongoBooleanExpression) theExpr, MongoOperator.OP_NOT);
+            stack.push(mongoExpr);
+            return mongoExpr;
+        }
+        else if (theExpr instanceof MongoFieldExpression && ((MongoFieldExpression) theExpr).getMemberMetaData() != null &&
+            (((MongoFieldExpression) theExpr).getMemberMetaData().getType() == boolean.class ||
+             ((MongoFieldExpression) theExpr).getMemberMetaData().getType() == Boolean.class))
+        {
+            // Negation of a boolean field
+            MongoExpression mongoExpr = new MongoBooleanExpression((MongoFieldExpression) theExpr, new MongoLiteral(Boolean.TRUE), MongoOperator.OP_NOTEQ);
+            stack.push(mongoExpr);
+            return mongoExpr;
+        }
+
+        return super.processNotExpression(expr);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.datanucleus.query.evaluator.AbstractExpressionEvaluator#processInExpression(org.datanucleus.query.expression.Expression)
+     */
+    @Override
+    protected Object processInExpression(Expression expr)
+    {
+        Object right = stack.pop();
+        Object left = stack.pop();
+        if (left instanceof MongoFieldExpression && right instanceof MongoLiteral)
+        {
+            MongoExpression mongoExpr = new MongoBooleanExpression((MongoFieldExpression) left, (MongoLiteral) right,
+                ((MongoLiteral) right).isCollection() ? MongoOperator.IN : MongoOperator.OP_EQ);
+            stack.push(mongoExpr);
+            return mongoExpr;
+        }
+
+        return super.processInExpression(expr);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.datanucleus.query.evaluator.AbstractExpressionEvaluator#processNotInExpression(org.datanucleus.query.expression.Expression)
+     */
+    @Override
+    protected Object processNotInExpression(Expression expr)
+    {
+        Object right = stack.pop();
+        Object left = stack.pop();
+        if (left instanceof MongoFieldExpression && right instanceof MongoLiteral)
+        {
+            MongoExpression mongoExpr = new MongoBooleanExpression((MongoFieldExpression) left, (MongoLiteral) right,
+                ((MongoLiteral) right).isCollection() ? MongoOperator.NIN : MongoOperator.OP_NOTEQ);
+            stack.push(mongoExpr);
+            return mongoExpr;
+        }
+
+        return super.processNotInExpression(expr);
+    }
+
     /*
      * (non-Javadoc)
      * @see org.datanucleus.query.evaluator.AbstractExpressionEvaluator#processEqExpression(org.datanucleus.query.expression.Expression)
@@ -293,6 +1247,12 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
     {
         Object right = stack.pop();
         Object left = stack.pop();
+        MongoExpression methodExpr = getDerivedComparison(left, right, MongoOperator.OP_EQ);
+        if (methodExpr != null)
+        {
+            stack.push(methodExpr);
+            return methodExpr;
+        }
         if (left instanceof MongoLiteral && right instanceof MongoFieldExpression)
         {
             MongoExpression mongoExpr = new MongoBooleanExpression((MongoFieldExpression) right, (MongoLiteral) left, MongoOperator.OP_EQ);
@@ -319,6 +1279,12 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
     {
         Object right = stack.pop();
         Object left = stack.pop();
+        MongoExpression methodExpr = getDerivedComparison(left, right, MongoOperator.OP_NOTEQ);
+        if (methodExpr != null)
+        {
+            stack.push(methodExpr);
+            return methodExpr;
+        }
         if (left instanceof MongoLiteral && right instanceof MongoFieldExpression)
         {
             MongoExpression mongoExpr = new MongoBooleanExpression((MongoFieldExpression) right, (MongoLiteral) left, MongoOperator.OP_NOTEQ);
@@ -345,9 +1311,15 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
     {
         Object right = stack.pop();
         Object left = stack.pop();
+        MongoExpression methodExpr = getDerivedComparison(left, right, MongoOperator.OP_GT);
+        if (methodExpr != null)
+        {
+            stack.push(methodExpr);
+            return methodExpr;
+        }
         if (left instanceof MongoLiteral && right instanceof MongoFieldExpression)
         {
-            MongoExpression mongoExpr = new MongoBooleanExpression((MongoFieldExpression) right, (MongoLiteral) left, MongoOperator.OP_LTEQ);
+            MongoExpression mongoExpr = new MongoBooleanExpression((MongoFieldExpression) right, (MongoLiteral) left, MongoOperator.OP_LT);
             stack.push(mongoExpr);
             return mongoExpr;
         }
@@ -371,9 +1343,15 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
     {
         Object right = stack.pop();
         Object left = stack.pop();
+        MongoExpression methodExpr = getDerivedComparison(left, right, MongoOperator.OP_LT);
+        if (methodExpr != null)
+        {
+            stack.push(methodExpr);
+            return methodExpr;
+        }
         if (left instanceof MongoLiteral && right instanceof MongoFieldExpression)
         {
-            MongoExpression mongoExpr = new MongoBooleanExpression((MongoFieldExpression) right, (MongoLiteral) left, MongoOperator.OP_GTEQ);
+            MongoExpression mongoExpr = new MongoBooleanExpression((MongoFieldExpression) right, (MongoLiteral) left, MongoOperator.OP_GT);
             stack.push(mongoExpr);
             return mongoExpr;
         }
@@ -397,9 +1375,15 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
     {
         Object right = stack.pop();
         Object left = stack.pop();
+        MongoExpression methodExpr = getDerivedComparison(left, right, MongoOperator.OP_GTEQ);
+        if (methodExpr != null)
+        {
+            stack.push(methodExpr);
+            return methodExpr;
+        }
         if (left instanceof MongoLiteral && right instanceof MongoFieldExpression)
         {
-            MongoExpression mongoExpr = new MongoBooleanExpression((MongoFieldExpression) right, (MongoLiteral) left, MongoOperator.OP_LT);
+            MongoExpression mongoExpr = new MongoBooleanExpression((MongoFieldExpression) right, (MongoLiteral) left, MongoOperator.OP_LTEQ);
             stack.push(mongoExpr);
             return mongoExpr;
         }
@@ -423,9 +1407,15 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
     {
         Object right = stack.pop();
         Object left = stack.pop();
+        MongoExpression methodExpr = getDerivedComparison(left, right, MongoOperator.OP_LTEQ);
+        if (methodExpr != null)
+        {
+            stack.push(methodExpr);
+            return methodExpr;
+        }
         if (left instanceof MongoLiteral && right instanceof MongoFieldExpression)
         {
-            MongoExpression mongoExpr = new MongoBooleanExpression((MongoFieldExpression) right, (MongoLiteral) left, MongoOperator.OP_GT);
+            MongoExpression mongoExpr = new MongoBooleanExpression((MongoFieldExpression) right, (MongoLiteral) left, MongoOperator.OP_GTEQ);
             stack.push(mongoExpr);
             return mongoExpr;
         }
@@ -447,9 +1437,49 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
     @Override
     protected Object processPrimaryExpression(PrimaryExpression expr)
     {
+        if (compileComponent == CompilationComponent.HAVING)
+        {
+            // Refer to the grouping field in the _id of the grouped results
+            MongoFieldExpression groupingField = getGroupingFieldForPrimary(expr);
+            if (groupingField == null)
+            {
+                throw new NucleusException("Having refers to " + expr + " which is not grouped by");
+            }
+            MongoFieldExpression fieldExpr = new MongoFieldExpression("_id.g" + groupingFields.indexOf(groupingField),
+                groupingField.getMemberMetaData(), groupingField.getMemberColumnMapping());
+            stack.push(fieldExpr);
+            return fieldExpr;
+        }
+
         Expression left = expr.getLeft();
-        if (left == null)
+        if (elementVariable != null)
+        {
+            // Compiling conditions on the elements of an embedded collection, so can only refer to the element variable
+            MongoFieldExpression fieldExpr = null;
+            if (left instanceof VariableExpression && ((VariableExpression) left).getId().equals(elementVariable))
+            {
+                fieldExpr = getFieldNameForElementPrimary(expr);
+            }
+            if (fieldExpr == null)
+            {
+                throw new NucleusException("Primary " + expr + " cannot be evaluated on the element bound to " + elementVariable);
+            }
+            stack.push(fieldExpr);
+            return fieldExpr;
+        }
+        else if (left == null)
         {
+            if (compileComponent == CompilationComponent.FILTER)
+            {
+                // Field of a related (non-embedded) object, evaluated using a semi-join
+                MongoRelationExpression relationExpr = getRelationExpressionForPrimary(expr);
+                if (relationExpr != null)
+                {
+                    stack.push(relationExpr);
+                    return relationExpr;
+                }
+            }
+
             MongoFieldExpression fieldExpr = getFieldNameForPrimary(expr);
             if (fieldExpr == null)
             {
@@ -483,6 +1513,7 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
     {
         // Extract the parameter value (if set)
         Object paramValue = null;
+        Object paramKey = null;
         boolean paramValueSet = false;
         if (parameters != null && !parameters.isEmpty())
         {
@@ -491,12 +1522,14 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
             {
                 // Named parameter
                 paramValue = parameters.get(expr.getId());
+                paramKey = expr.getId();
                 paramValueSet = true;
             }
             else if (parameters.containsKey(expr.getId()))
             {
                 // Positional parameter, but already encountered
                 paramValue = parameters.get(expr.getId());
+                paramKey = expr.getId();
                 paramValueSet = true;
             }
             else
@@ -510,6 +1543,7 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
                 if (parameters.containsKey(Integer.valueOf(position)))
                 {
                     paramValue = parameters.get(Integer.valueOf(position));
+                    paramKey = Integer.valueOf(position);
                     paramValueSet = true;
                     positionalParamNumber = position + 1;
                 }
@@ -519,6 +1553,10 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
         // TODO Change this to use MongoDBUtils.getStoredValueForField
         if (paramValueSet)
         {
+            if (compileComponent == CompilationComponent.FILTER)
+            {
+                filterUsesParameters = true;
+            }
             if (paramValue == null)
             {
                 MongoLiteral lit = new MongoLiteral(null);
@@ -527,16 +1565,28 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
                 return lit;
             }
             else if (paramValue instanceof Number || paramValue instanceof String || paramValue instanceof Character || paramValue instanceof Boolean || paramValue instanceof Enum ||
-                    paramValue instanceof Date || paramValue instanceof Collection || paramValue instanceof java.util.Calendar)
+                    paramValue instanceof Date || paramValue instanceof java.util.Calendar)
             {
-                MongoLiteral lit = new MongoLiteral(paramValue);
+                MongoLiteral lit = getLiteralForParameter(paramValue, paramKey);
+                stack.push(lit);
+                return lit;
+            }
+            else if (paramValue instanceof Collection)
+            {
+                // Persistable elements are compared using their (stored) identity
+                Collection<Object> values = new ArrayList<Object>();
+                for (Object element : (Collection) paramValue)
+                {
+                    values.add(ec.getApiAdapter().isPersistable(element) ? getStoredIdentityForPersistable(element) : element);
+                }
+                MongoLiteral lit = getLiteralForParameter(values, paramKey);
                 stack.push(lit);
-                precompilable = false;
                 return lit;
             }
             else if (ec.getApiAdapter().isPersistable(paramValue))
             {
-                MongoLiteral lit = new MongoLiteral(String.valueOf(ec.getApiAdapter().getIdForObject(paramValue)));
+                // Compared with a relation, which stores the identity
+                MongoLiteral lit = new MongoLiteral(getStoredIdentityForPersistable(paramValue));
                 stack.push(lit);
                 precompilable = false;
                 return lit;
@@ -552,8 +1602,295 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
             precompilable = false;
             throw new NucleusException("Parameter " + expr + " is not currently set, so cannot complete the compilation");
         }
-
-        return super.processParameterExpression(expr);
+
+        return super.processParameterExpression(expr);
+    }
+
+    /**
+     * Convenience method to return the literal for the value of a parameter. In the filter the literal has the
+     * parameter key so that comparisons use a slot for the value, bound at execution, so the compilation can be
+     * reused with other values (unless the compilation uses the value itself). Elsewhere the value is used directly.
+     * @param paramValue The parameter value
+     * @param paramKey Key of the parameter in the parameters map
+     * @return The literal
+     */
+    protected MongoLiteral getLiteralForParameter(Object paramValue, Object paramKey)
+    {
+        if (compileComponent == CompilationComponent.FILTER)
+        {
+            MongoLiteral lit = new MongoLiteral(paramValue, paramKey);
+            filterParameterLiterals.add(lit);
+            return lit;
+        }
+
+        precompilable = false;
+        return new MongoLiteral(paramValue);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.datanucleus.query.evaluator.AbstractExpressionEvaluator#processVariableExpression(org.datanucleus.query.expression.VariableExpression)
+     */
+    @Override
+    protected Object processVariableExpression(VariableExpression expr)
+    {
+        if (compilation.getCompilationForSubquery(expr.getId()) != null)
+        {
+            MongoLiteral lit = getLiteralForSubquery(expr.getId());
+            if (lit != null)
+            {
+                stack.push(lit);
+                return lit;
+            }
+        }
+
+        return super.processVariableExpression(expr);
+    }
+
+    /**
+     * Method to execute an uncorrelated subquery (i.e one that doesn't refer to the candidate, or any variable, of this
+     * query), returning its result as a literal. The subquery is executed as a query in its own right, so is evaluated in
+     * the datastore where possible. A single result (e.g aggregate) gives a scalar literal, and otherwise gives a Collection
+     * literal (for use with "contains"). Persistable results are represented by their stored identity.
+     * The subquery is executed at most once per compilation, and since the result depends on the datastore contents, the
+     * compilation is not precompilable.
+     * @param alias Alias (variable name) of the subquery
+     * @return The literal, or null if the subquery is correlated
+     */
+    protected MongoLiteral getLiteralForSubquery(String alias)
+    {
+        if (subqueryLiterals.containsKey(alias))
+        {
+            // Already executed (or found to be correlated) when compiling an earlier component
+            return subqueryLiterals.get(alias);
+        }
+
+        MongoLiteral lit = null;
+        Query.SubqueryDefinition subqueryDefn = query.getSubqueryForVariable(alias);
+        if (subqueryDefn == null || subqueryDefn.getCandidateExpression() != null ||
+            (subqueryDefn.getParameterMap() != null && !subqueryDefn.getParameterMap().isEmpty()) ||
+            isCorrelatedSubquery(compilation.getCompilationForSubquery(alias), getOuterIdentifiers()))
+        {
+            // Subquery candidates, parameters or expressions are defined in terms of the outer query, so correlated
+            if (NucleusLogger.QUERY.isDebugEnabled())
+            {
+                NucleusLogger.QUERY.debug("Subquery " + alias + " refers to the outer query, so will be evaluated in-memory");
+            }
+        }
+        else
+        {
+            precompilable = false;
+            Query subquery = subqueryDefn.getQuery();
+            try
+            {
+                Object result = subquery.executeWithMap(parameters != null ? parameters : new HashMap());
+                Object value = null;
+                if (result instanceof Collection)
+                {
+                    List<Object> values = new ArrayList<Object>();
+                    for (Object element : (Collection) result)
+                    {
+                        values.add(getLiteralValueForSubqueryResult(element));
+                    }
+                    value = values;
+                }
+                else
+                {
+                    value = getLiteralValueForSubqueryResult(result);
+                }
+                if (NucleusLogger.QUERY.isDebugEnabled())
+                {
+                    NucleusLogger.QUERY.debug("Subquery " + alias + " executed before the query, giving " + value);
+                }
+                lit = new MongoLiteral(value);
+            }
+            finally
+            {
+                // Release the results, including the result that a single value was taken from
+                subquery.closeAll();
+            }
+        }
+        subqueryLiterals.put(alias, lit);
+        return lit;
+    }
+
+    /**
+     * Accessor for the identifiers of this query that a subquery could refer to, namely the candidate alias and the
+     * variables (but not the parameters, which are passed to the subquery).
+     * @return The identifiers
+     */
+    private Set<String> getOuterIdentifiers()
+    {
+        Set<String> identifiers = new HashSet<String>();
+        identifiers.add(candidateAlias);
+        SymbolTable symtbl = compilation.getSymbolTable();
+        if (symtbl != null)
+        {
+            for (String name : symtbl.getSymbolNames())
+            {
+                Symbol symbol = symtbl.getSymbol(name);
+                if (symbol != null && symbol.getType() != Symbol.PARAMETER)
+                {
+                    identifiers.add(name);
+                }
+            }
+        }
+        return identifiers;
+    }
+
+    /**
+     * Method to return whether the compiled subquery refers to any of the identifiers of the outer query (e.g the JPQL
+     * "SELECT e2 FROM Employee e2 WHERE e2.dept = e.dept" referring to the outer alias "e"), including in any subqueries
+     * of the subquery. Identifiers that the subquery declares itself (its candidate alias and variables) hide those
+     * of the outer query.
+     * @param subCompilation Compilation of the subquery
+     * @param outerIdentifiers Identifiers of the outer query
+     * @return Whether correlated (or whether it cannot be determined)
+     */
+    static boolean isCorrelatedSubquery(QueryCompilation subCompilation, Set<String> outerIdentifiers)
+    {
+        if (subCompilation == null)
+        {
+            return true;
+        }
+
+        Set<String> identifiers = new HashSet<String>(outerIdentifiers);
+        identifiers.remove(subCompilation.getCandidateAlias());
+        if (subCompilation.getSymbolTable() != null)
+        {
+            identifiers.removeAll(subCompilation.getSymbolTable().getSymbolNames());
+        }
+
+        List<Expression> exprs = new ArrayList<Expression>();
+        exprs.add(subCompilation.getExprFilter());
+        exprs.add(subCompilation.getExprHaving());
+        for (Expression[] componentExprs : new Expression[][] {subCompilation.getExprResult(), subCompilation.getExprGrouping(),
+            subCompilation.getExprOrdering(), subCompilation.getExprFrom()})
+        {
+            if (componentExprs != null)
+            {
+                for (Expression expr : componentExprs)
+                {
+                    exprs.add(expr);
+                }
+            }
+        }
+
+        Set<String> referenced = new HashSet<String>();
+        for (Expression expr : exprs)
+        {
+            if (!getIdentifiersForExpression(expr, referenced))
+            {
+                // Can't tell what the expression refers to
+                return true;
+            }
+        }
+        for (String name : referenced)
+        {
+            if (identifiers.contains(name))
+            {
+                return true;
+            }
+            QueryCompilation nestedCompilation = subCompilation.getCompilationForSubquery(name);
+            if (nestedCompilation != null && isCorrelatedSubquery(nestedCompilation, identifiers))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method to find the identifiers that the provided expression is rooted at (the first component of field paths,
+     * and variables).
+     * @param expr The expression
+     * @param identifiers The identifiers (populated by this method)
+     * @return Whether all of the expression could be processed
+     */
+    private static boolean getIdentifiersForExpression(Expression expr, Set<String> identifiers)
+    {
+        if (expr == null || expr instanceof Literal || expr instanceof ParameterExpression)
+        {
+            return true;
+        }
+        else if (expr instanceof VariableExpression)
+        {
+            identifiers.add(((VariableExpression) expr).getId());
+            return true;
+        }
+        else if (expr instanceof PrimaryExpression)
+        {
+            if (expr.getLeft() != null)
+            {
+                return getIdentifiersForExpression(expr.getLeft(), identifiers);
+            }
+            identifiers.add(((PrimaryExpression) expr).getTuples().get(0));
+            return true;
+        }
+        else if (expr instanceof InvokeExpression)
+        {
+            List<Expression> args = ((InvokeExpression) expr).getArguments();
+            if (args != null)
+            {
+                for (Expression arg : args)
+                {
+                    if (!getIdentifiersForExpression(arg, identifiers))
+                    {
+                        return false;
+                    }
+                }
+            }
+            return getIdentifiersForExpression(expr.getLeft(), identifiers);
+        }
+        else if (expr instanceof JoinExpression)
+        {
+            return getIdentifiersForExpression(((JoinExpression) expr).getPrimaryExpression(), identifiers) &&
+                getIdentifiersForExpression(expr.getRight(), identifiers);
+        }
+        else if (expr instanceof ClassExpression)
+        {
+            // Candidate of the subquery, with any joins
+            return getIdentifiersForExpression(expr.getRight(), identifiers);
+        }
+        else if (expr instanceof DyadicExpression || expr instanceof OrderExpression)
+        {
+            return getIdentifiersForExpression(expr.getLeft(), identifiers) && getIdentifiersForExpression(expr.getRight(), identifiers);
+        }
+        return false;
+    }
+
+    private Object getLiteralValueForSubqueryResult(Object value)
+    {
+        if (value instanceof BigDecimal)
+        {
+            // MongoDB can't cope with BigDecimal, so give it a Double
+            return ((BigDecimal) value).doubleValue();
+        }
+        else if (value instanceof BigInteger)
+        {
+            return ((BigInteger) value).longValue();
+        }
+        else if (value != null && ec.getApiAdapter().isPersistable(value))
+        {
+            return getStoredIdentityForPersistable(value);
+        }
+        return value;
+    }
+
+    /**
+     * Convenience method to return the identity of a persistable object in the String form stored for a relation.
+     * @param pc The persistable object
+     * @return The stored identity
+     * @throws NucleusException if the object has no identity (so cannot be related to anything in the datastore)
+     */
+    private String getStoredIdentityForPersistable(Object pc)
+    {
+        Object id = ec.getApiAdapter().getIdForObject(pc);
+        if (id == null)
+        {
+            throw new NucleusException("Parameter value " + StringUtils.toJVMIDString(pc) + " is not persistent so cannot be compared in the datastore");
+        }
+        return IdentityUtils.getPersistableIdentityForId(id);
     }
 
     /*
@@ -613,6 +1950,21 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
     @Override
     protected Object processInvokeExpression(InvokeExpression expr)
     {
+        if (compileComponent == CompilationComponent.HAVING)
+        {
+            // Refer to the (final) value of the aggregate in the grouped results
+            MongoAggregateExpression aggrExpr = getAggregateForInvoke(expr);
+            if (aggrExpr == null)
+            {
+                throw new NucleusException("Having uses " + expr + " which cannot be evaluated in the datastore");
+            }
+            int position = resultObject.addHavingAggregate(aggrExpr);
+            MongoFieldExpression fieldExpr = new MongoFieldExpression("v" + position,
+                aggrExpr.getField() != null ? aggrExpr.getField().getMemberMetaData() : null, null);
+            stack.push(fieldExpr);
+            return fieldExpr;
+        }
+
         boolean supported = true;
 
         // Find object that we invoke on
@@ -635,11 +1987,31 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
             processParameterExpression((ParameterExpression) invokedExpr);
             invokedMongoExpr = stack.pop();
         }
+        else if (invokedExpr instanceof InvokeExpression)
+        {
+            // Method chain e.g "field.toLowerCase().startsWith(str)"
+            processInvokeExpression((InvokeExpression) invokedExpr);
+            invokedMongoExpr = stack.pop();
+        }
+        else if (invokedExpr instanceof VariableExpression)
+        {
+            // Subquery e.g "(SELECT ...).contains(field)"
+            processVariableExpression((VariableExpression) invokedExpr);
+            invokedMongoExpr = stack.pop();
+        }
         else
         {
             supported = false;
         }
 
+        MongoRelationExpression relationExpr = null;
+        if (invokedMongoExpr instanceof MongoRelationExpression)
+        {
+            // Method invoked in the document of a related object
+            relationExpr = (MongoRelationExpression) invokedMongoExpr;
+            invokedMongoExpr = relationExpr.getRelatedExpression();
+        }
+
         List<MongoExpression> mongoExprArgs = null;
         if (supported && args != null)
         {
@@ -695,30 +2067,49 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
                     {
                         mongoExpr = new MongoBooleanExpression(invokedFieldExpr, invokedExprArg, MongoOperator.REGEX);
                     }
-                    else if ("startsWith".equals(operation))
-                    {
-                        mongoExpr = new MongoBooleanExpression(invokedFieldExpr, new MongoLiteral("^" + Pattern.quote(invokedExprArg.getValue().toString())), MongoOperator.REGEX);
-                    }
-                    else if ("endsWith".equals(operation))
-                    {
-                        mongoExpr = new MongoBooleanExpression(invokedFieldExpr, new MongoLiteral(Pattern.quote(invokedExprArg.getValue().toString()) + "$"), MongoOperator.REGEX);
-                    }
                 }
                 else if (invokedFieldExpr.getMemberMetaData().hasCollection())
                 {
                     // Collections methods
-                    if ("contains".equals(operation))
+                    if ("contains".equals(operation) && !isEmbeddedContainer(invokedFieldExpr.getMemberMetaData()))
                     {
+                        // Element value, or identity of a persistable element
                         mongoExpr = new MongoBooleanExpression(invokedFieldExpr, invokedExprArg, MongoOperator.OP_EQ);
                     }
                 }
+                else if (invokedFieldExpr.getMemberMetaData().hasMap())
+                {
+                    // Map methods
+                    if ("containsKey".equals(operation))
+                    {
+                        mongoExpr = getMapEntryExpression(invokedFieldExpr, invokedExprArg, true);
+                    }
+                    else if ("containsValue".equals(operation))
+                    {
+                        mongoExpr = getMapEntryExpression(invokedFieldExpr, invokedExprArg, false);
+                    }
+                }
+            }
+            else if (invokedMongoExpr instanceof MongoFieldExpression && (mongoExprArgs == null || mongoExprArgs.isEmpty()) &&
+                isContainerStoredAsArray((MongoFieldExpression) invokedMongoExpr))
+            {
+                // Container methods
+                MongoSizeExpression sizeExpr = new MongoSizeExpression((MongoFieldExpression) invokedMongoExpr);
+                if ("size".equals(operation))
+                {
+                    mongoExpr = sizeExpr;
+                }
+                else if ("isEmpty".equals(operation))
+                {
+                    mongoExpr = sizeExpr.getIsEmptyExpression();
+                }
             }
             else if (invokedMongoExpr instanceof MongoLiteral && mongoExprArg0 instanceof MongoFieldExpression)
             {
                 MongoLiteral invokedLiteralExpr = (MongoLiteral) invokedMongoExpr;
                 MongoFieldExpression invokedExprArg = (MongoFieldExpression) mongoExprArg0;
 
-                if (invokedLiteralExpr.getValue() instanceof Collection)
+                if (invokedLiteralExpr.isCollection())
                 {
                     // Collection methods
                     if ("contains".equals(operation))
@@ -728,6 +2119,23 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
                 }
             }
         }
+        if (supported && mongoExpr == null && MongoGeospatialExpression.isGeospatialFunction(operation))
+        {
+            mongoExpr = getGeospatialExpression(invokedMongoExpr, operation, mongoExprArgs);
+        }
+        if (supported && mongoExpr == null)
+        {
+            MongoStringExpression strExpr = getStringExpression(invokedMongoExpr);
+            if (strExpr != null)
+            {
+                mongoExpr = getStringMethodExpression(strExpr, operation, mongoExprArgs);
+            }
+        }
+        if (mongoExpr != null && relationExpr != null)
+        {
+            mongoExpr = (mongoExpr instanceof MongoBooleanExpression) ? getSemiJoinExpression(relationExpr, (MongoBooleanExpression) mongoExpr) :
+                new MongoRelationExpression(relationExpr.getRelationField(), relationExpr.getRelatedClassMetaData(), mongoExpr);
+        }
         if (mongoExpr != null)
         {
             stack.push(mongoExpr);
@@ -738,6 +2146,439 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
         return super.processInExpression(invokedExpr);
     }
 
+    private boolean isEmbeddedContainer(AbstractMemberMetaData mmd)
+    {
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        RelationType relationType = mmd.getRelationType(clr);
+        return relationType != RelationType.NONE && MetaDataUtils.getInstance().isMemberEmbedded(ec.getMetaDataManager(), clr, mmd, relationType, null);
+    }
+
+    private static boolean isContainerField(Object expr)
+    {
+        if (expr instanceof MongoFieldExpression && ((MongoFieldExpression) expr).getMemberMetaData() != null)
+        {
+            AbstractMemberMetaData mmd = ((MongoFieldExpression) expr).getMemberMetaData();
+            return mmd.hasCollection() || mmd.hasMap() || mmd.hasArray();
+        }
+        return false;
+    }
+
+    /**
+     * Accessor for whether the provided field is a container (Collection/Map/array) that is stored as an array in
+     * the document, so can be queried using $size. Maps of non-persistable keys and values are stored as a
+     * nested document so are excluded.
+     * @param fieldExpr The field expression
+     * @return Whether the field is a container stored as an array
+     */
+    protected boolean isContainerStoredAsArray(MongoFieldExpression fieldExpr)
+    {
+        AbstractMemberMetaData mmd = fieldExpr.getMemberMetaData();
+        if (mmd == null || mmd.isSerialized() ||
+            (fieldExpr.getMemberColumnMapping() != null && fieldExpr.getMemberColumnMapping().getTypeConverter() != null))
+        {
+            return false;
+        }
+        if (mmd.hasCollection())
+        {
+            return true;
+        }
+        else if (mmd.hasArray())
+        {
+            return !mmd.getType().getComponentType().isPrimitive();
+        }
+        else if (mmd.hasMap())
+        {
+            return mmd.getRelationType(ec.getClassLoaderResolver()) != RelationType.NONE;
+        }
+        return false;
+    }
+
+    /**
+     * Method to return the expression for a Map field containing the specified key or value. Maps with persistable
+     * keys/values are stored as an array of entries ({key, value}) so the key/value of any entry is compared.
+     * Maps of non-persistable keys and values are stored as a nested document, so only "containsKey" with a String
+     * key can be evaluated, by the existence of the key in that document.
+     * @param fieldExpr The Map field
+     * @param lit The key or value
+     * @param key Whether this is for the key (containsKey) otherwise the value (containsValue)
+     * @return The expression, or null if not supported
+     */
+    protected MongoExpression getMapEntryExpression(MongoFieldExpression fieldExpr, MongoLiteral lit, boolean key)
+    {
+        AbstractMemberMetaData mmd = fieldExpr.getMemberMetaData();
+        if (lit.getValue() == null || mmd.isSerialized() ||
+            (fieldExpr.getMemberColumnMapping() != null && fieldExpr.getMemberColumnMapping().getTypeConverter() != null))
+        {
+            return null;
+        }
+
+        if (!isContainerStoredAsArray(fieldExpr))
+        {
+            if (key && lit.getValue() instanceof String)
+            {
+                String keyName = (String) lit.getValue();
+                if (keyName.length() > 0 && keyName.indexOf('.') < 0 && !keyName.startsWith("$"))
+                {
+                    MongoFieldExpression keyExpr = new MongoFieldExpression(fieldExpr.getPropertyName() + "." + keyName, null, null);
+                    return new MongoBooleanExpression(keyExpr, new MongoLiteral(true), MongoOperator.EXISTS);
+                }
+            }
+            return null;
+        }
+
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        if ((key && mmd.getMap().keyIsPersistent()) || (!key && mmd.getMap().valueIsPersistent()))
+        {
+            // Persistable keys/values are stored as the identity (or embedded), so not comparable with the literal
+            return null;
+        }
+        Class type = clr.classForName(key ? mmd.getMap().getKeyType() : mmd.getMap().getValueType());
+        if (!type.isInstance(lit.getValue()))
+        {
+            return null;
+        }
+
+        Object storedValue = MongoDBUtils.getStoredValueForField(ec, mmd, lit.getValue(), key ? FieldRole.ROLE_MAP_KEY : FieldRole.ROLE_MAP_VALUE);
+        MongoFieldExpression entryFieldExpr = new MongoFieldExpression(fieldExpr.getPropertyName() + (key ? ".key" : ".value"), null, null);
+        return new MongoBooleanExpression(entryFieldExpr, new MongoLiteral(storedValue), MongoOperator.OP_EQ);
+    }
+
+    /**
+     * Accessor for the String expression for the provided expression, if it is a String field of the candidate
+     * (without TypeConverter) or already a String expression.
+     * @param mongoExpr The expression
+     * @return The String expression, or null if not a String
+     */
+    protected MongoStringExpression getStringExpression(MongoExpression mongoExpr)
+    {
+        if (mongoExpr instanceof MongoStringExpression)
+        {
+            return (MongoStringExpression) mongoExpr;
+        }
+        else if (mongoExpr instanceof MongoFieldExpression)
+        {
+            MongoFieldExpression fieldExpr = (MongoFieldExpression) mongoExpr;
+            if (fieldExpr.getMemberMetaData() != null && fieldExpr.getMemberMetaData().getType() == String.class &&
+                (fieldExpr.getMemberColumnMapping() == null || fieldExpr.getMemberColumnMapping().getTypeConverter() == null))
+            {
+                return new MongoStringExpression(fieldExpr);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to return the expression for a geospatial function, either invoked on the field ("field.near(x, y)")
+     * or with the field as the first argument ("near(field, x, y)"). Only supported in the filter.
+     * @param invokedExpr The expression the function is invoked on (null if static)
+     * @param operation The function
+     * @param args The (compiled) arguments
+     * @return The expression, or null if not supported
+     */
+    protected MongoExpression getGeospatialExpression(MongoExpression invokedExpr, String operation, List<MongoExpression> args)
+    {
+        if (compileComponent != CompilationComponent.FILTER || args == null)
+        {
+            return null;
+        }
+        filterUsesGeospatial = true;
+
+        List<MongoExpression> valueArgs = args;
+        if (invokedExpr == null && !args.isEmpty())
+        {
+            invokedExpr = args.get(0);
+            valueArgs = args.subList(1, args.size());
+        }
+        if (!(invokedExpr instanceof MongoFieldExpression))
+        {
+            return null;
+        }
+
+        List<Object> argValues = new ArrayList<Object>();
+        for (MongoExpression argExpr : valueArgs)
+        {
+            if (!(argExpr instanceof MongoLiteral))
+            {
+                return null;
+            }
+            argValues.add(((MongoLiteral) argExpr).getValue());
+        }
+        try
+        {
+            return new MongoGeospatialExpression((MongoFieldExpression) invokedExpr).getFunctionExpression(operation, argValues);
+        }
+        catch (NucleusUserException nue)
+        {
+            geospatialError = nue;
+            throw nue;
+        }
+    }
+
+    /**
+     * Method to return the expression for invoking a String method on the provided String expression.
+     * @param strExpr The String expression
+     * @param operation The method
+     * @param args The (compiled) arguments
+     * @return The expression, or null if not supported
+     */
+    protected MongoExpression getStringMethodExpression(MongoStringExpression strExpr, String operation, List<MongoExpression> args)
+    {
+        if (strExpr.isNumeric())
+        {
+            return null;
+        }
+
+        if (args == null || args.isEmpty())
+        {
+            if ("isEmpty".equals(operation))
+            {
+                return strExpr.getIsEmptyExpression();
+            }
+            return strExpr.invoke(operation);
+        }
+        else if (args.size() == 1 && args.get(0) instanceof MongoLiteral && ((MongoLiteral) args.get(0)).getValue() != null)
+        {
+            Object argValue = ((MongoLiteral) args.get(0)).getValue();
+            if (!(argValue instanceof String || argValue instanceof Character))
+            {
+                return null;
+            }
+            String str = String.valueOf(argValue);
+            if ("equals".equals(operation))
+            {
+                return strExpr.getEqualsExpression(str, false);
+            }
+            else if ("equalsIgnoreCase".equals(operation))
+            {
+                return strExpr.getEqualsExpression(str, true);
+            }
+            else if ("startsWith".equals(operation))
+            {
+                return strExpr.getStartsWithExpression(str);
+            }
+            else if ("endsWith".equals(operation))
+            {
+                return strExpr.getEndsWithExpression(str);
+            }
+            else if ("indexOf".equals(operation))
+            {
+                return strExpr.indexOf(str);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to return the expression for a comparison involving something derived from the fields of the document,
+     * namely the result of a method (either a String expression e.g "field.toLowerCase() == str" or "field.length() > 5",
+     * or the size of a container), or a field of a related object.
+     * @param left The left side of the comparison
+     * @param right The right side of the comparison
+     * @param op The operator
+     * @return The expression, or null if neither side is derived
+     */
+    protected MongoExpression getDerivedComparison(Object left, Object right, MongoOperator op)
+    {
+        if (left instanceof MongoLiteral &&
+            (right instanceof MongoStringExpression || right instanceof MongoSizeExpression || right instanceof MongoRelationExpression))
+        {
+            // Swap the sides, so the operator needs inverting
+            Object tmp = left;
+            left = right;
+            right = tmp;
+            if (op == MongoOperator.OP_GT)
+            {
+                op = MongoOperator.OP_LT;
+            }
+            else if (op == MongoOperator.OP_LT)
+            {
+                op = MongoOperator.OP_GT;
+            }
+            else if (op == MongoOperator.OP_GTEQ)
+            {
+                op = MongoOperator.OP_LTEQ;
+            }
+            else if (op == MongoOperator.OP_LTEQ)
+            {
+                op = MongoOperator.OP_GTEQ;
+            }
+        }
+        MongoLiteral rightLit = (right instanceof MongoLiteral ? (MongoLiteral) right : null);
+        if (left instanceof MongoRelationExpression)
+        {
+            // Comparison in the document of the related object
+            MongoRelationExpression relationExpr = (MongoRelationExpression) left;
+            MongoExpression relatedExpr = relationExpr.getRelatedExpression();
+            MongoExpression relatedCond = getDerivedComparison(relatedExpr, right, op);
+            if (relatedCond == null && relatedExpr instanceof MongoFieldExpression && right instanceof MongoLiteral)
+            {
+                relatedCond = new MongoBooleanExpression((MongoFieldExpression) relatedExpr, (MongoLiteral) right, op);
+            }
+            if (!(relatedCond instanceof MongoBooleanExpression))
+            {
+                throw new NucleusException("Comparison of " + left + " with " + right + " is not supported in the datastore");
+            }
+            return getSemiJoinExpression(relationExpr, (MongoBooleanExpression) relatedCond);
+        }
+        else if (left instanceof MongoSizeExpression)
+        {
+            Object value = (rightLit != null ? rightLit.getValue() : null);
+            if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+            {
+                return ((MongoSizeExpression) left).getComparisonExpression(op, ((Number) value).longValue());
+            }
+            throw new NucleusException("Comparison of " + left + " with " + right + " is not supported in the datastore");
+        }
+        else if (!(left instanceof MongoStringExpression))
+        {
+            boolean rightValue = (rightLit != null && !rightLit.isNull());
+            if ((isContainerField(left) && rightValue) || (isContainerField(right) && left instanceof MongoLiteral && !((MongoLiteral) left).isNull()))
+            {
+                // Containers are stored as arrays (or documents) so cannot be compared with a value
+                throw new NucleusException("Comparison of container field with " + (rightValue ? right : left) + " is not supported in the datastore");
+            }
+            return null;
+        }
+
+        MongoStringExpression strExpr = (MongoStringExpression) left;
+        Object value = (rightLit != null ? rightLit.getValue() : null);
+        if (strExpr.isNumeric())
+        {
+            if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+            {
+                return strExpr.getComparisonExpression(op, ((Number) value).longValue());
+            }
+        }
+        else if (value instanceof String && (op == MongoOperator.OP_EQ || op == MongoOperator.OP_NOTEQ))
+        {
+            MongoBooleanExpression eqExpr = strExpr.getEqualsExpression((String) value, false);
+            return op == MongoOperator.OP_EQ ? eqExpr : new MongoBooleanExpression(eqExpr, MongoOperator.OP_NOT);
+        }
+        throw new NucleusException("Comparison of " + strExpr + " with " + right + " is not supported in the datastore");
+    }
+
+    /**
+     * Method to return the expression for the relation field of the provided expression referring to one of the
+     * related objects satisfying the condition (in the document of the related object). The identities of the
+     * related objects are found by querying their collection(s), and inlined into the filter, up to the maximum
+     * specified by the query extension "semi-join-max-ids" (default 1000).
+     * Since the result depends on the datastore contents, the compilation is not precompilable.
+     * @param relationExpr The relation expression
+     * @param relatedCond The condition in the document of the related object
+     * @return The expression for the relation field of this document
+     * @throws NucleusException if there are too many related objects
+     */
+    protected MongoBooleanExpression getSemiJoinExpression(MongoRelationExpression relationExpr, MongoBooleanExpression relatedCond)
+    {
+        precompilable = false;
+
+        int maxIds = query.getIntExtensionProperty(EXTENSION_SEMI_JOIN_MAX_IDS, 1000);
+        AbstractClassMetaData relatedCmd = relationExpr.getRelatedClassMetaData();
+        Class relatedCls = ec.getClassLoaderResolver().classForName(relatedCmd.getFullClassName());
+        List<String> ids = null;
+        ManagedConnection mconn = ec.getStoreManager().getConnection(ec);
+        try
+        {
+            DB db = (DB) mconn.getConnection();
+            BasicDBObject relatedFilter = MongoParameter.bindParameters(relatedCond.getDBObject(), parameters, ec);
+            ids = MongoDBUtils.getPersistableIdentitiesForFilter(db, relatedFilter, relatedCls, true, ec, maxIds);
+        }
+        finally
+        {
+            mconn.release();
+        }
+        if (ids == null)
+        {
+            throw new NucleusException("Condition " + relatedCond + " on " + relationExpr + " has more than " + maxIds +
+                " related objects, so is not evaluated in the datastore");
+        }
+        if (NucleusLogger.QUERY.isDebugEnabled())
+        {
+            NucleusLogger.QUERY.debug("Condition " + relatedCond + " on " + relationExpr + " evaluated as " + ids.size() + " related identities");
+        }
+        return new MongoBooleanExpression(relationExpr.getRelationField(), new MongoLiteral(ids), MongoOperator.IN);
+    }
+
+    /**
+     * Convenience method to return the expression for a primary that navigates through a (non-embedded) 1-1/N-1
+     * relation field of the candidate, with the remainder of the primary resolved in the document of the related
+     * object (which may itself navigate through a further relation).
+     * @param expr The expression
+     * @return The relation expression, or null if not resolvable
+     */
+    protected MongoRelationExpression getRelationExpressionForPrimary(PrimaryExpression expr)
+    {
+        List<String> tuples = expr.getTuples();
+        int relationPosition = (tuples.size() > 0 && tuples.get(0).equals(candidateAlias)) ? 1 : 0;
+        if (tuples.size() - relationPosition < 2)
+        {
+            return null;
+        }
+
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        AbstractMemberMetaData mmd = candidateCmd.getMetaDataForMember(tuples.get(relationPosition));
+        if (mmd == null)
+        {
+            return null;
+        }
+        RelationType relationType = mmd.getRelationType(clr);
+        if (!RelationType.isRelationSingleValued(relationType) ||
+            MetaDataUtils.getInstance().isMemberEmbedded(ec.getMetaDataManager(), clr, mmd, relationType, null))
+        {
+            return null;
+        }
+        AbstractClassMetaData relatedCmd = ec.getMetaDataManager().getMetaDataForClass(mmd.getType(), clr);
+        if (relatedCmd == null)
+        {
+            return null;
+        }
+        if (!ec.getStoreManager().managesClass(relatedCmd.getFullClassName()))
+        {
+            ec.getStoreManager().manageClasses(clr, relatedCmd.getFullClassName());
+        }
+
+        // Resolve the remainder of the primary in the document of the related object
+        QueryToMongoDBMapper relatedMapper = new QueryToMongoDBMapper(compilation, parameters, relatedCmd, ec, query);
+        relatedMapper.compileComponent = CompilationComponent.FILTER;
+        relatedMapper.processPrimaryExpression(new PrimaryExpression(new ArrayList<String>(tuples.subList(relationPosition + 1, tuples.size()))));
+        if (!relatedMapper.filterComplete || relatedMapper.stack.isEmpty())
+        {
+            return null;
+        }
+
+        Table table = ec.getStoreManager().getStoreDataForClass(candidateCmd.getFullClassName()).getTable();
+        MemberColumnMapping mapping = table.getMemberColumnMappingForMember(mmd);
+        MongoFieldExpression relationField = new MongoFieldExpression(mapping.getColumn(0).getName(), mmd, mapping);
+        return new MongoRelationExpression(relationField, relatedCmd, relatedMapper.stack.pop());
+    }
+
+    /**
+     * Convenience method to return the "field name" in the element document (of an embedded collection) for this
+     * primary, relative to the element. Only (non-relation) fields of the element itself are supported.
+     * @param expr The expression, with the element variable on the left
+     * @return The element document field name for this primary (or null if not resolvable in the element document)
+     */
+    protected MongoFieldExpression getFieldNameForElementPrimary(PrimaryExpression expr)
+    {
+        List<String> tuples = expr.getTuples();
+        if (tuples == null || tuples.size() != 1)
+        {
+            return null;
+        }
+
+        AbstractMemberMetaData mmd = elementCmd.getMetaDataForMember(tuples.get(0));
+        if (mmd == null || mmd.getRelationType(ec.getClassLoaderResolver()) != RelationType.NONE)
+        {
+            return null;
+        }
+        MemberColumnMapping mapping = elementTable.getMemberColumnMappingForMember(mmd);
+        if (mapping == null || mapping.getNumberOfColumns() != 1)
+        {
+            return null;
+        }
+        return new MongoFieldExpression(mapping.getColumn(0).getName(), mmd, mapping);
+    }
+
     /**
      * Convenience method to return the "field name" in candidate document for this primary. Allows for simple
      * relation fields, and (nested) embedded PC fields - i.e all fields that are present in the document.
@@ -857,7 +2698,21 @@ public class QueryToMongoDBMapper extends AbstractExpressionEvaluator
                 }
                 else if (RelationType.isRelationMultiValued(relationType))
                 {
-                    throw new NucleusUserException("Dont currently support querying of multi-valued fields at " + mmd.getFullFieldName());
+                    if (iter.hasNext())
+                    {
+                        throw new NucleusUserException("Dont currently support querying of multi-valued fields at " + mmd.getFullFieldName());
+                    }
+
+                    // Container field (stored as an array), which can only be used in container methods
+                    if (embMmd != null)
+                    {
+                        embMmds.add(mmd);
+                        MemberColumnMapping mapping = table.getMemberColumnMappingForEmbeddedMember(embMmds);
+                        String fieldName = mapping.getColumn(0).getName();
+                        return new MongoFieldExpression(embeddedFlat ? fieldName : (embeddedNestedField + "." + fieldName), mmd, mapping);
+                    }
+                    MemberColumnMapping mapping = table.getMemberColumnMappingForMember(mmd);
+                    return new MongoFieldExpression(mapping.getColumn(0).getName(), mmd, mapping);
                 }
 
                 firstTuple = false;
@@ -0,0 +1,243 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+   ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query.expression;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.metadata.FieldRole;
+import org.datanucleus.store.mongodb.MongoDBUtils;
+import org.datanucleus.store.mongodb.query.MongoDBOrderingComparator;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Expression for an aggregate (count, sum, avg, min, max) of a field in MongoDB documents, for evaluation
+ * using the $group stage of the aggregation framework. Each aggregate is evaluated as partial values per
+ * DBCollection, which are then combined to give the result.
+ */
+public class MongoAggregateExpression extends MongoExpression
+{
+    String function;
+
+    /** The field being aggregated, or null when counting documents. */
+    MongoFieldExpression field;
+
+    /**
+     * Constructor for an aggregate.
+     * @param function The aggregate function (count, sum, avg, min, max)
+     * @param field The field (or null when counting documents)
+     */
+    public MongoAggregateExpression(String function, MongoFieldExpression field)
+    {
+        this.function = function.toLowerCase();
+        this.field = field;
+    }
+
+    public String getFunction()
+    {
+        return function;
+    }
+
+    public MongoFieldExpression getField()
+    {
+        return field;
+    }
+
+    /**
+     * Method to add the accumulators for the partial values of this aggregate to a $group specification.
+     * @param group The $group specification
+     * @param name Name to use for the partial value(s) of this aggregate
+     */
+    public void addToGroup(BasicDBObject group, String name)
+    {
+        if (field == null)
+        {
+            group.append(name, new BasicDBObject("$sum", 1));
+            return;
+        }
+
+        String fieldRef = "$" + field.getPropertyName();
+
+        // Number of documents with a non-null value for the field
+        BasicDBList ifNull = new BasicDBList();
+        ifNull.add(fieldRef);
+        ifNull.add(null);
+        BasicDBList eqNull = new BasicDBList();
+        eqNull.add(new BasicDBObject("$ifNull", ifNull));
+        eqNull.add(null);
+        BasicDBList cond = new BasicDBList();
+        cond.add(new BasicDBObject("$eq", eqNull));
+        cond.add(0);
+        cond.add(1);
+        BasicDBObject countNonNull = new BasicDBObject("$sum", new BasicDBObject("$cond", cond));
+
+        if (function.equals("count"))
+        {
+            group.append(name, countNonNull);
+        }
+        else if (function.equals("sum") || function.equals("avg"))
+        {
+            group.append(name, new BasicDBObject("$sum", fieldRef));
+            group.append(name + "_n", countNonNull);
+        }
+        else if (function.equals("min"))
+        {
+            group.append(name, new BasicDBObject("$min", fieldRef));
+        }
+        else if (function.equals("max"))
+        {
+            group.append(name, new BasicDBObject("$max", fieldRef));
+        }
+    }
+
+    /**
+     * Accessor for an aggregation expression giving the (final) value of this aggregate from the output of the
+     * $group stage, for use in a $project stage (e.g so that a filter on grouped results can refer to it).
+     * @param name Name used for the partial value(s) of this aggregate
+     * @return The expression
+     */
+    public Object getValueExpression(String name)
+    {
+        if (function.equals("sum") || function.equals("avg"))
+        {
+            // null when there are no values to aggregate
+            BasicDBList eqZero = new BasicDBList();
+            eqZero.add("$" + name + "_n");
+            eqZero.add(0);
+            BasicDBList cond = new BasicDBList();
+            cond.add(new BasicDBObject("$eq", eqZero));
+            cond.add(null);
+            if (function.equals("avg"))
+            {
+                BasicDBList divide = new BasicDBList();
+                divide.add("$" + name);
+                divide.add("$" + name + "_n");
+                cond.add(new BasicDBObject("$divide", divide));
+            }
+            else
+            {
+                cond.add("$" + name);
+            }
+            return new BasicDBObject("$cond", cond);
+        }
+        return "$" + name;
+    }
+
+    /**
+     * Method to combine the partial values of this aggregate (from the results of each DBCollection) into the
+     * value of the aggregate.
+     * @param partials The $group results containing the partial values of this aggregate (one per DBCollection)
+     * @param name Name used for the partial value(s) of this aggregate
+     * @param ec ExecutionContext
+     * @return The value of the aggregate
+     */
+    public Object getResult(List<DBObject> partials, String name, ExecutionContext ec)
+    {
+        if (function.equals("count"))
+        {
+            long count = 0;
+            for (DBObject partial : partials)
+            {
+                Object value = partial.get(name);
+                if (value instanceof Number)
+                {
+                    count += ((Number)value).longValue();
+                }
+            }
+            return Long.valueOf(count);
+        }
+        else if (function.equals("sum") || function.equals("avg"))
+        {
+            long numValues = 0;
+            boolean integral = isIntegral(field.getMemberMetaData().getType());
+            long longTotal = 0;
+            double doubleTotal = 0;
+            for (DBObject partial : partials)
+            {
+                Object n = partial.get(name + "_n");
+                Object value = partial.get(name);
+                if (n instanceof Number && value instanceof Number)
+                {
+                    numValues += ((Number)n).longValue();
+                    longTotal += ((Number)value).longValue();
+                    doubleTotal += ((Number)value).doubleValue();
+                }
+            }
+            if (numValues == 0)
+            {
+                // No values to aggregate
+                return null;
+            }
+            if (function.equals("avg"))
+            {
+                return Double.valueOf((integral ? longTotal : doubleTotal) / numValues);
+            }
+            return integral ? (Object)Long.valueOf(longTotal) : (Object)Double.valueOf(doubleTotal);
+        }
+
+        // min/max : take the lowest/highest of the partial values
+        Object result = null;
+        for (DBObject partial : partials)
+        {
+            Object value = partial.get(name);
+            if (value != null)
+            {
+                int comparison = (result == null ? 0 : MongoDBOrderingComparator.compareValues(value, result));
+                if (result == null || (function.equals("min") ? comparison < 0 : comparison > 0))
+                {
+                    result = value;
+                }
+            }
+        }
+        return MongoDBUtils.getFieldValueFromStored(ec, field.getMemberMetaData(), result, FieldRole.ROLE_FIELD);
+    }
+
+    /**
+     * Accessor for whether an aggregate function can be evaluated for a field of the specified type.
+     * @param function The aggregate function
+     * @param type Type of the field
+     * @return Whether supported
+     */
+    public static boolean isSupportedForType(String function, Class type)
+    {
+        if ("sum".equalsIgnoreCase(function) || "avg".equalsIgnoreCase(function))
+        {
+            return isIntegral(type) || NUMERIC_DECIMAL_TYPES.contains(type);
+        }
+        return true;
+    }
+
+    private static final List<Class> NUMERIC_INTEGRAL_TYPES = Arrays.asList(new Class[] {int.class, long.class, short.class, byte.class,
+        Integer.class, Long.class, Short.class, Byte.class});
+
+    private static final List<Class> NUMERIC_DECIMAL_TYPES = Arrays.asList(new Class[] {float.class, double.class, Float.class, Double.class});
+
+    private static boolean isIntegral(Class type)
+    {
+        return NUMERIC_INTEGRAL_TYPES.contains(type);
+    }
+
+    public String toString()
+    {
+        return function + "(" + (field != null ? field.getPropertyName() : "*") + ")";
+    }
+}
@@ -17,16 +17,20 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.store.mongodb.query.expression;
 
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.regex.Pattern;
 
 import org.datanucleus.exceptions.NucleusException;
 import org.datanucleus.metadata.AbstractMemberMetaData;
 import org.datanucleus.metadata.ColumnMetaData;
 import org.datanucleus.metadata.MetaDataUtils;
 import org.datanucleus.store.schema.table.MemberColumnMapping;
+import org.datanucleus.store.types.converters.TypeConverter;
 
 /**
  * Representation of a boolean expression in MongoDB queries.
@@ -45,13 +49,36 @@ public class MongoBooleanExpression extends MongoExpression
     public MongoBooleanExpression(MongoFieldExpression fieldExpr, MongoLiteral lit, MongoOperator op)
     {
         String propName = fieldExpr.getPropertyName();
-        Object value = lit.getValue();
+        Object value = lit.value;
 
         MemberColumnMapping fieldMapping = fieldExpr.getMemberColumnMapping();
-        if ((op == MongoOperator.OP_EQ || op == MongoOperator.OP_NOTEQ) && fieldMapping.getTypeConverter() != null)
+        if (lit.parameterKey != null && value != null && (op == MongoOperator.OP_EQ || op == MongoOperator.OP_NOTEQ ||
+            op == MongoOperator.OP_LT || op == MongoOperator.OP_LTEQ || op == MongoOperator.OP_GT || op == MongoOperator.OP_GTEQ ||
+            op == MongoOperator.IN || op == MongoOperator.NIN))
         {
-            // Field uses a TypeConverter and doing equality check, so convert the literal that we compare with using the same
-            value = fieldMapping.getTypeConverter().toDatastoreType(value);
+            // Value of a parameter, so use a slot for the value to be bound at execution, converted the same as below
+            boolean equality = (op == MongoOperator.OP_EQ || op == MongoOperator.OP_NOTEQ || op == MongoOperator.IN || op == MongoOperator.NIN);
+            TypeConverter conv = (equality && fieldMapping != null ? fieldMapping.getTypeConverter() : null);
+            value = new MongoParameter(lit.parameterKey, conv, isEnumNumeric(fieldExpr), op == MongoOperator.IN || op == MongoOperator.NIN);
+        }
+        else if ((op == MongoOperator.OP_EQ || op == MongoOperator.OP_NOTEQ || op == MongoOperator.IN || op == MongoOperator.NIN) &&
+            value != null && fieldMapping != null && fieldMapping.getTypeConverter() != null)
+        {
+            // Field uses a TypeConverter and doing equality check, so convert the literal(s) that we compare with using the same
+            TypeConverter conv = fieldMapping.getTypeConverter();
+            if (value instanceof Collection && (op == MongoOperator.IN || op == MongoOperator.NIN))
+            {
+                Collection<Object> collection = new ArrayList<Object>();
+                for (Object obj : (Collection<?>) value)
+                {
+                    collection.add(obj != null ? conv.toDatastoreType(obj) : null);
+                }
+                value = collection;
+            }
+            else
+            {
+                value = conv.toDatastoreType(value);
+            }
         }
         else if (value instanceof Enum)
         {
@@ -79,7 +106,8 @@ public class MongoBooleanExpression extends MongoExpression
             dbObject = new BasicDBObject(propName, value);
         }
         else if (op == MongoOperator.OP_NOTEQ || op == MongoOperator.OP_LT || op == MongoOperator.OP_LTEQ ||
-            op == MongoOperator.OP_GT || op == MongoOperator.OP_GTEQ || op == MongoOperator.REGEX || op == MongoOperator.IN)
+            op == MongoOperator.OP_GT || op == MongoOperator.OP_GTEQ || op == MongoOperator.REGEX || op == MongoOperator.IN ||
+            op == MongoOperator.NIN || op == MongoOperator.EXISTS || op == MongoOperator.SIZE)
         {
             BasicDBObject valObject = new BasicDBObject(op.getValue(), value);
             dbObject = new BasicDBObject(propName, valObject);
@@ -112,21 +140,119 @@ public class MongoBooleanExpression extends MongoExpression
         }
     }
 
+    /**
+     * Constructor when the expression represents a condition on a field that is already in the form of
+     * an operator document, e.g {"$near" : {...}}.
+     * @param fieldExpr Field expression
+     * @param condition The condition on the field
+     */
+    public MongoBooleanExpression(MongoFieldExpression fieldExpr, BasicDBObject condition)
+    {
+        dbObject = new BasicDBObject(fieldExpr.getPropertyName(), condition);
+    }
+
+    /**
+     * Constructor when the expression represents a condition on the elements of an array field, where the
+     * (element) expression refers to the fields of the element.
+     * @param fieldExpr Field expression for the array
+     * @param elementExpr The expression that an element has to match
+     * @param op The operator (elemMatch)
+     */
+    public MongoBooleanExpression(MongoFieldExpression fieldExpr, MongoBooleanExpression elementExpr, MongoOperator op)
+    {
+        if (op != MongoOperator.ELEM_MATCH)
+        {
+            throw new NucleusException("Cannot create MongoBooleanExpression with operator of " + op + " with this constructor");
+        }
+        dbObject = new BasicDBObject(fieldExpr.getPropertyName(), new BasicDBObject(op.getValue(), elementExpr.getDBObject()));
+    }
+
+    /**
+     * Constructor when the expression represents the negation of another boolean expression.
+     * Where the expression is a single field condition the negated operator is used where possible
+     * (e.g $in becomes $nin), otherwise the expression is negated using $nor.
+     * @param expr The expression to negate
+     * @param op The operator (not)
+     */
+    public MongoBooleanExpression(MongoBooleanExpression expr, MongoOperator op)
+    {
+        if (op != MongoOperator.OP_NOT)
+        {
+            throw new NucleusException("Cannot create MongoBooleanExpression with operator of " + op + " with this constructor");
+        }
+
+        BasicDBObject exprObject = expr.getDBObject();
+        if (exprObject.size() == 1)
+        {
+            String propName = exprObject.keySet().iterator().next();
+            Object value = exprObject.get(propName);
+            if (!propName.startsWith("$"))
+            {
+                if (value instanceof DBObject && !(value instanceof MongoParameter) && ((DBObject)value).keySet().size() == 1 &&
+                    ((DBObject)value).keySet().iterator().next().startsWith("$"))
+                {
+                    // Field with a single operator
+                    String condOp = ((DBObject)value).keySet().iterator().next();
+                    Object condValue = ((DBObject)value).get(condOp);
+                    if (condOp.equals(MongoOperator.OP_NOTEQ.getValue()))
+                    {
+                        dbObject = new BasicDBObject(propName, condValue);
+                    }
+                    else if (condOp.equals(MongoOperator.IN.getValue()))
+                    {
+                        dbObject = new BasicDBObject(propName, new BasicDBObject(MongoOperator.NIN.getValue(), condValue));
+                    }
+                    else if (condOp.equals(MongoOperator.NIN.getValue()))
+                    {
+                        dbObject = new BasicDBObject(propName, new BasicDBObject(MongoOperator.IN.getValue(), condValue));
+                    }
+                    else if (condOp.equals(MongoOperator.EXISTS.getValue()) && condValue instanceof Boolean)
+                    {
+                        dbObject = new BasicDBObject(propName, new BasicDBObject(MongoOperator.EXISTS.getValue(), !((Boolean)condValue)));
+                    }
+                    else if (condOp.equals(MongoOperator.OP_GT.getValue()) || condOp.equals(MongoOperator.OP_GTEQ.getValue()) ||
+                        condOp.equals(MongoOperator.OP_LT.getValue()) || condOp.equals(MongoOperator.OP_LTEQ.getValue()))
+                    {
+                        dbObject = new BasicDBObject(propName, new BasicDBObject(MongoOperator.OP_NOT.getValue(), value));
+                    }
+                }
+                else if ((!(value instanceof DBObject) || value instanceof MongoParameter) && !(value instanceof Pattern))
+                {
+                    // Field equality
+                    dbObject = new BasicDBObject(propName, new BasicDBObject(MongoOperator.OP_NOTEQ.getValue(), value));
+                }
+            }
+        }
+
+        if (dbObject == null)
+        {
+            // General negation
+            BasicDBList norOptions = new BasicDBList();
+            norOptions.add(exprObject);
+            dbObject = new BasicDBObject(MongoOperator.OP_NOR.getValue(), norOptions);
+        }
+    }
+
     private Object asEnumValue(MongoFieldExpression fieldExpr, Enum<?> value)
     {
         // Use the right type of Enum value for the property being compared against
+        if (isEnumNumeric(fieldExpr))
+        {
+            return value.ordinal();
+        }
+
+        return value.toString();
+    }
+
+    private boolean isEnumNumeric(MongoFieldExpression fieldExpr)
+    {
         AbstractMemberMetaData mmd = fieldExpr.getMemberMetaData();
         ColumnMetaData colmd = null;
         if (mmd != null && mmd.getColumnMetaData() != null && mmd.getColumnMetaData().length > 0)
         {
             colmd = mmd.getColumnMetaData()[0];
         }
-        if (MetaDataUtils.persistColumnAsNumeric(colmd))
-        {
-            return value.ordinal();
-        }
-
-        return value.toString();
+        return MetaDataUtils.persistColumnAsNumeric(colmd);
     }
 
 
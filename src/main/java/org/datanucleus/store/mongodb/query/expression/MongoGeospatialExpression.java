@@ -0,0 +1,274 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query.expression;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.store.mongodb.MongoDBStoreManager;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Expression for a geospatial function on a field that has a geospatial index (declared using the extension
+ * "mongodb.geospatial.index"). The function is compiled according to the type of index, so for a "2dsphere" index
+ * coordinates are (longitude, latitude) and distances are in metres, whereas for a "2d" index coordinates and
+ * distances are in the units of the (flat) coordinate system. Supported functions are
+ * <ul>
+ * <li>near(x, y [, maxDistance]) : $near, returning the documents in order of distance</li>
+ * <li>withinBox(x1, y1, x2, y2) : $geoWithin the box with bottom-left (x1, y1) and top-right (x2, y2)</li>
+ * <li>withinPolygon(points) : $geoWithin the polygon, with points as a collection/array of points, or x1, y1, x2, y2, ...</li>
+ * <li>withinRadius(x, y, radius) : $geoWithin the circle centred on (x, y)</li>
+ * </ul>
+ */
+public class MongoGeospatialExpression extends MongoExpression
+{
+    /** Equatorial radius of the earth (metres), for converting distances to radians for $centerSphere. */
+    private static final double EARTH_RADIUS_METRES = 6378100.0;
+
+    final MongoFieldExpression fieldExpr;
+
+    final String indexType;
+
+    public MongoGeospatialExpression(MongoFieldExpression fieldExpr)
+    {
+        this.fieldExpr = fieldExpr;
+        AbstractMemberMetaData mmd = fieldExpr.getMemberMetaData();
+        this.indexType = (mmd != null ? mmd.getValueForExtension(MongoDBStoreManager.GEOSPATIAL_INDEX_EXTENSION_NAME) : null);
+    }
+
+    /**
+     * Accessor for whether the method is a geospatial function.
+     * @param operation The method
+     * @return Whether it is supported by this expression
+     */
+    public static boolean isGeospatialFunction(String operation)
+    {
+        return "near".equalsIgnoreCase(operation) || "withinBox".equalsIgnoreCase(operation) ||
+            "withinPolygon".equalsIgnoreCase(operation) || "withinRadius".equalsIgnoreCase(operation);
+    }
+
+    /**
+     * Method to return the boolean expression for the geospatial function on this field.
+     * @param operation The function
+     * @param args Values of the arguments of the function
+     * @return The expression
+     * @throws NucleusUserException if the field has no geospatial index, or the arguments are invalid
+     */
+    public MongoBooleanExpression getFunctionExpression(String operation, List<Object> args)
+    {
+        if (!"2d".equals(indexType) && !"2dsphere".equals(indexType))
+        {
+            throw new NucleusUserException("Query uses geospatial function " + operation + " on " + fieldExpr.getPropertyName() +
+                " but this has no geospatial index (specify the extension " + MongoDBStoreManager.GEOSPATIAL_INDEX_EXTENSION_NAME + " as 2d or 2dsphere)");
+        }
+        boolean sphere = "2dsphere".equals(indexType);
+
+        BasicDBObject condition = null;
+        if ("near".equalsIgnoreCase(operation) && (args.size() == 2 || args.size() == 3))
+        {
+            BasicDBList point = getPoint(operation, args.get(0), args.get(1));
+            if (sphere)
+            {
+                BasicDBObject nearObj = new BasicDBObject(MongoOperator.GEOMETRY.getValue(), getGeometry("Point", point));
+                if (args.size() == 3)
+                {
+                    nearObj.put(MongoOperator.MAX_DISTANCE.getValue(), getNumber(operation, args.get(2)));
+                }
+                condition = new BasicDBObject(MongoOperator.NEAR.getValue(), nearObj);
+            }
+            else
+            {
+                condition = new BasicDBObject(MongoOperator.NEAR.getValue(), point);
+                if (args.size() == 3)
+                {
+                    condition.put(MongoOperator.MAX_DISTANCE.getValue(), getNumber(operation, args.get(2)));
+                }
+            }
+        }
+        else if ("withinBox".equalsIgnoreCase(operation) && args.size() == 4)
+        {
+            BasicDBList bottomLeft = getPoint(operation, args.get(0), args.get(1));
+            BasicDBList topRight = getPoint(operation, args.get(2), args.get(3));
+            if (sphere)
+            {
+                List<BasicDBList> points = new ArrayList<BasicDBList>();
+                points.add(bottomLeft);
+                points.add(getPoint(operation, args.get(2), args.get(1)));
+                points.add(topRight);
+                points.add(getPoint(operation, args.get(0), args.get(3)));
+                condition = new BasicDBObject(MongoOperator.GEOMETRY.getValue(), getPolygon(points));
+            }
+            else
+            {
+                BasicDBList box = new BasicDBList();
+                box.add(bottomLeft);
+                box.add(topRight);
+                condition = new BasicDBObject(MongoOperator.BOX.getValue(), box);
+            }
+        }
+        else if ("withinPolygon".equalsIgnoreCase(operation) && !args.isEmpty())
+        {
+            List<BasicDBList> points = getPoints(operation, args);
+            if (points.size() < 3)
+            {
+                throw new NucleusUserException("Geospatial function " + operation + " requires at least 3 points but has " + points.size());
+            }
+            if (sphere)
+            {
+                condition = new BasicDBObject(MongoOperator.GEOMETRY.getValue(), getPolygon(points));
+            }
+            else
+            {
+                BasicDBList polygon = new BasicDBList();
+                polygon.addAll(points);
+                condition = new BasicDBObject(MongoOperator.POLYGON.getValue(), polygon);
+            }
+        }
+        else if ("withinRadius".equalsIgnoreCase(operation) && args.size() == 3)
+        {
+            BasicDBList circle = new BasicDBList();
+            circle.add(getPoint(operation, args.get(0), args.get(1)));
+            double radius = getNumber(operation, args.get(2));
+            if (sphere)
+            {
+                circle.add(radius / EARTH_RADIUS_METRES);
+                condition = new BasicDBObject(MongoOperator.CENTER_SPHERE.getValue(), circle);
+            }
+            else
+            {
+                circle.add(radius);
+                condition = new BasicDBObject(MongoOperator.CENTER.getValue(), circle);
+            }
+        }
+        else
+        {
+            throw new NucleusUserException("Geospatial function " + operation + " is not supported with " + args.size() + " arguments");
+        }
+
+        if (condition.containsField(MongoOperator.NEAR.getValue()))
+        {
+            return new MongoBooleanExpression(fieldExpr, condition);
+        }
+        return new MongoBooleanExpression(fieldExpr, new BasicDBObject(MongoOperator.GEO_WITHIN.getValue(), condition));
+    }
+
+    /**
+     * Method to return the points of a polygon, from either a single Collection/array of points
+     * (each a Collection/array of 2 numbers) or a sequence of coordinates.
+     */
+    private static List<BasicDBList> getPoints(String operation, List<Object> args)
+    {
+        List<BasicDBList> points = new ArrayList<BasicDBList>();
+        if (args.size() == 1)
+        {
+            for (Object pointValue : getElements(operation, args.get(0)))
+            {
+                List<Object> coords = getElements(operation, pointValue);
+                if (coords.size() != 2)
+                {
+                    throw new NucleusUserException("Geospatial function " + operation + " has point " + pointValue + " that doesn't have 2 coordinates");
+                }
+                points.add(getPoint(operation, coords.get(0), coords.get(1)));
+            }
+        }
+        else if (args.size() % 2 == 0)
+        {
+            for (int i=0;i<args.size();i+=2)
+            {
+                points.add(getPoint(operation, args.get(i), args.get(i+1)));
+            }
+        }
+        else
+        {
+            throw new NucleusUserException("Geospatial function " + operation + " has an odd number of coordinates");
+        }
+        return points;
+    }
+
+    private static List<Object> getElements(String operation, Object value)
+    {
+        List<Object> elements = new ArrayList<Object>();
+        if (value instanceof Collection)
+        {
+            elements.addAll((Collection<?>) value);
+        }
+        else if (value != null && value.getClass().isArray())
+        {
+            for (int i=0;i<Array.getLength(value);i++)
+            {
+                elements.add(Array.get(value, i));
+            }
+        }
+        else
+        {
+            throw new NucleusUserException("Geospatial function " + operation + " has argument " + value + " which is not a Collection or array");
+        }
+        return elements;
+    }
+
+    private static BasicDBList getPoint(String operation, Object x, Object y)
+    {
+        BasicDBList point = new BasicDBList();
+        point.add(getNumber(operation, x));
+        point.add(getNumber(operation, y));
+        return point;
+    }
+
+    private static double getNumber(String operation, Object value)
+    {
+        if (!(value instanceof Number))
+        {
+            throw new NucleusUserException("Geospatial function " + operation + " has argument " + value + " which is not a number");
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    private static BasicDBObject getGeometry(String type, Object coordinates)
+    {
+        BasicDBObject geometry = new BasicDBObject("type", type);
+        geometry.put("coordinates", coordinates);
+        return geometry;
+    }
+
+    /**
+     * Method to return a GeoJSON polygon (a single ring, which has to be closed) for the points.
+     */
+    private static BasicDBObject getPolygon(List<BasicDBList> points)
+    {
+        BasicDBList ring = new BasicDBList();
+        ring.addAll(points);
+        if (!points.get(0).equals(points.get(points.size()-1)))
+        {
+            ring.add(points.get(0));
+        }
+        BasicDBList rings = new BasicDBList();
+        rings.add(ring);
+        return getGeometry("Polygon", rings);
+    }
+
+    public String toString()
+    {
+        return "Geospatial(" + fieldExpr.getPropertyName() + "," + indexType + ")";
+    }
+}
@@ -17,23 +17,71 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.store.mongodb.query.expression;
 
+import java.util.Collection;
+
 /**
  * Representation of a literal in a Mongo query.
+ * Where the literal is the value of a parameter it has the parameter key, and comparisons put a parameter slot
+ * in the filter rather than the value. Any use of the value itself (via getValue) is recorded, since the
+ * compilation then depends on the value.
  */
 public class MongoLiteral extends MongoExpression
 {
     Object value;
 
+    /** Key of the parameter that this is the value of (if any). */
+    Object parameterKey;
+
+    /** Whether the value has been used in the compilation. */
+    boolean valueUsed = false;
+
     public MongoLiteral(Object value)
     {
         this.value = value;
     }
 
+    public MongoLiteral(Object value, Object parameterKey)
+    {
+        this.value = value;
+        this.parameterKey = parameterKey;
+    }
+
     public Object getValue()
     {
+        valueUsed = true;
         return value;
     }
 
+    public Object getParameterKey()
+    {
+        return parameterKey;
+    }
+
+    public boolean isValueUsed()
+    {
+        return valueUsed;
+    }
+
+    /**
+     * Accessor for whether the value is null. This doesn't count as using the value, since parameter
+     * slots are only used for non-null values.
+     * @return Whether null
+     */
+    public boolean isNull()
+    {
+        return value == null;
+    }
+
+    /**
+     * Accessor for whether the value is a Collection. This doesn't count as using the value, since the
+     * value of a parameter is of its declared type.
+     * @return Whether a Collection
+     */
+    public boolean isCollection()
+    {
+        return value instanceof Collection;
+    }
+
     public String toString()
     {
         return "" + value;
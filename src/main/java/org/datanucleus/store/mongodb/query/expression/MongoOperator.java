@@ -30,8 +30,22 @@ public enum MongoOperator
     OP_LTEQ("$lte"),
     OP_AND("$and"),
     OP_OR("$or"),
+    OP_NOT("$not"),
+    OP_NOR("$nor"),
     REGEX("$regex"),
-    IN("$in");
+    IN("$in"),
+    NIN("$nin"),
+    EXISTS("$exists"),
+    SIZE("$size"),
+    ELEM_MATCH("$elemMatch"),
+    NEAR("$near"),
+    GEO_WITHIN("$geoWithin"),
+    GEOMETRY("$geometry"),
+    MAX_DISTANCE("$maxDistance"),
+    BOX("$box"),
+    POLYGON("$polygon"),
+    CENTER("$center"),
+    CENTER_SPHERE("$centerSphere");
 
     String value;
 
@@ -0,0 +1,186 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query.expression;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.identity.IdentityUtils;
+import org.datanucleus.store.types.converters.TypeConverter;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Slot for the value of a parameter in a filter, allowing the compiled filter to be reused with different
+ * parameter values. The value is bound at execution (see bindParameters), converted in the same way
+ * as a literal in the comparison would be. Represented in the filter (e.g when logged) as {"$param" : key}.
+ */
+public class MongoParameter extends BasicDBObject
+{
+    private static final long serialVersionUID = 3467389274593746213L;
+
+    /** Key of the parameter in the parameters map (name, or position for positional parameters). */
+    final Object key;
+
+    /** Converter for the field being compared with, if the value is to be converted. */
+    final TypeConverter converter;
+
+    /** Whether Enum values are stored as their ordinal. */
+    final boolean enumNumeric;
+
+    /** Whether the value is the collection of values for $in/$nin. */
+    final boolean multiValued;
+
+    public MongoParameter(Object key, TypeConverter converter, boolean enumNumeric, boolean multiValued)
+    {
+        super("$param", key);
+        this.key = key;
+        this.converter = converter;
+        this.enumNumeric = enumNumeric;
+        this.multiValued = multiValued;
+    }
+
+    public Object getKey()
+    {
+        return key;
+    }
+
+    /**
+     * Accessor for the value to use in the filter for this parameter.
+     * Persistable objects are represented by their (stored) identity, and elements of a collection are converted individually.
+     * @param parameters The parameter values
+     * @param ec ExecutionContext
+     * @return The value to use in the filter
+     */
+    public Object getValue(Map parameters, ExecutionContext ec)
+    {
+        Object value = (parameters != null ? parameters.get(key) : null);
+        if (value instanceof Collection)
+        {
+            List<Object> values = new ArrayList<Object>();
+            for (Object element : (Collection<?>) value)
+            {
+                if (element != null && ec.getApiAdapter().isPersistable(element))
+                {
+                    Object id = ec.getApiAdapter().getIdForObject(element);
+                    if (id != null)
+                    {
+                        values.add(IdentityUtils.getPersistableIdentityForId(id));
+                    }
+                    // else not persistent so cannot match anything
+                }
+                else
+                {
+                    values.add(getStoredValue(element));
+                }
+            }
+            return values;
+        }
+        else if (value == null)
+        {
+            return multiValued ? new ArrayList<Object>() : null;
+        }
+        else if (ec.getApiAdapter().isPersistable(value))
+        {
+            Object id = ec.getApiAdapter().getIdForObject(value);
+            return id != null ? IdentityUtils.getPersistableIdentityForId(id) : null;
+        }
+        return getStoredValue(value);
+    }
+
+    private Object getStoredValue(Object value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        else if (converter != null)
+        {
+            return converter.toDatastoreType(value);
+        }
+        else if (value instanceof Enum)
+        {
+            return enumNumeric ? ((Enum<?>) value).ordinal() : value.toString();
+        }
+        return value;
+    }
+
+    /**
+     * Method to return a copy of the filter with the values of the parameters bound in place of their slots.
+     * @param filter The filter (containing parameter slots)
+     * @param parameters The parameter values
+     * @param ec ExecutionContext
+     * @return The filter with the parameter values
+     */
+    public static BasicDBObject bindParameters(BasicDBObject filter, Map parameters, ExecutionContext ec)
+    {
+        return (BasicDBObject) bind(filter, parameters, ec);
+    }
+
+    private static Object bind(Object template, Map parameters, ExecutionContext ec)
+    {
+        if (template instanceof MongoParameter)
+        {
+            return ((MongoParameter) template).getValue(parameters, ec);
+        }
+        else if (template instanceof BasicDBList)
+        {
+            BasicDBList list = new BasicDBList();
+            for (Object element : (BasicDBList) template)
+            {
+                list.add(bind(element, parameters, ec));
+            }
+            return list;
+        }
+        else if (template instanceof BasicDBObject)
+        {
+            BasicDBObject dbObject = new BasicDBObject();
+            for (Map.Entry<String, Object> entry : ((BasicDBObject) template).entrySet())
+            {
+                dbObject.put(entry.getKey(), bind(entry.getValue(), parameters, ec));
+            }
+            return dbObject;
+        }
+        else if (template instanceof Object[])
+        {
+            // e.g $and/$or options
+            Object[] array = (Object[]) template;
+            Object[] boundArray = (Object[]) Array.newInstance(array.getClass().getComponentType(), array.length);
+            for (int i=0;i<array.length;i++)
+            {
+                boundArray[i] = bind(array[i], parameters, ec);
+            }
+            return boundArray;
+        }
+        else if (template instanceof List)
+        {
+            List<Object> list = new ArrayList<Object>();
+            for (Object element : (List<?>) template)
+            {
+                list.add(bind(element, parameters, ec));
+            }
+            return list;
+        }
+        return template;
+    }
+}
@@ -0,0 +1,68 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query.expression;
+
+import org.datanucleus.metadata.AbstractClassMetaData;
+
+/**
+ * Expression for something in the document of a related (non-embedded) object, navigated to via a 1-1/N-1 relation
+ * field of this document (which stores the identity of the related object). A condition on the related expression
+ * is evaluated as a semi-join, finding the identities of the related objects that satisfy it, and then restricting
+ * the relation field to those identities.
+ */
+public class MongoRelationExpression extends MongoExpression
+{
+    final MongoFieldExpression relationField;
+
+    final AbstractClassMetaData relatedCmd;
+
+    final MongoExpression relatedExpr;
+
+    /**
+     * Constructor.
+     * @param relationField The relation field in this document
+     * @param relatedCmd Metadata for the related class
+     * @param relatedExpr The expression in the document of the related object
+     */
+    public MongoRelationExpression(MongoFieldExpression relationField, AbstractClassMetaData relatedCmd, MongoExpression relatedExpr)
+    {
+        this.relationField = relationField;
+        this.relatedCmd = relatedCmd;
+        this.relatedExpr = relatedExpr;
+    }
+
+    public MongoFieldExpression getRelationField()
+    {
+        return relationField;
+    }
+
+    public AbstractClassMetaData getRelatedClassMetaData()
+    {
+        return relatedCmd;
+    }
+
+    public MongoExpression getRelatedExpression()
+    {
+        return relatedExpr;
+    }
+
+    public String toString()
+    {
+        return relationField.getPropertyName() + "->" + relatedExpr;
+    }
+}
@@ -0,0 +1,104 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query.expression;
+
+import org.datanucleus.exceptions.NucleusException;
+
+/**
+ * Expression for the size of a container (Collection/Map/array) field that is stored as an array in the document.
+ * Equality is evaluated using $size, and other comparisons by the presence of the element at the relevant
+ * position in the array (since $size only supports equality).
+ */
+public class MongoSizeExpression extends MongoExpression
+{
+    final MongoFieldExpression field;
+
+    public MongoSizeExpression(MongoFieldExpression field)
+    {
+        this.field = field;
+    }
+
+    public MongoFieldExpression getField()
+    {
+        return field;
+    }
+
+    /**
+     * Method to return the boolean expression for the container being empty.
+     * @return The boolean expression
+     */
+    public MongoBooleanExpression getIsEmptyExpression()
+    {
+        return getComparisonExpression(MongoOperator.OP_EQ, 0);
+    }
+
+    /**
+     * Method to return the boolean expression for a comparison of the size with a number.
+     * @param op The comparison operator
+     * @param number The number
+     * @return The boolean expression
+     * @throws NucleusException if the comparison can never be true
+     */
+    public MongoBooleanExpression getComparisonExpression(MongoOperator op, long number)
+    {
+        if (op == MongoOperator.OP_EQ && number >= 0)
+        {
+            return new MongoBooleanExpression(field, new MongoLiteral(number), MongoOperator.SIZE);
+        }
+        else if (op == MongoOperator.OP_NOTEQ)
+        {
+            MongoBooleanExpression existsExpr = new MongoBooleanExpression(field, new MongoLiteral(true), MongoOperator.EXISTS);
+            if (number < 0)
+            {
+                return existsExpr;
+            }
+            return new MongoBooleanExpression(existsExpr, new MongoBooleanExpression(getComparisonExpression(MongoOperator.OP_EQ, number), MongoOperator.OP_NOT),
+                MongoOperator.OP_AND);
+        }
+        else if (op == MongoOperator.OP_GT || op == MongoOperator.OP_GTEQ)
+        {
+            long minSize = (op == MongoOperator.OP_GT ? number + 1 : number);
+            if (minSize <= 0)
+            {
+                return new MongoBooleanExpression(field, new MongoLiteral(true), MongoOperator.EXISTS);
+            }
+            return getElementExistsExpression(minSize - 1, true);
+        }
+        else if (op == MongoOperator.OP_LT || op == MongoOperator.OP_LTEQ)
+        {
+            long maxSize = (op == MongoOperator.OP_LT ? number - 1 : number);
+            if (maxSize >= 0)
+            {
+                MongoBooleanExpression existsExpr = new MongoBooleanExpression(field, new MongoLiteral(true), MongoOperator.EXISTS);
+                return new MongoBooleanExpression(existsExpr, getElementExistsExpression(maxSize, false), MongoOperator.OP_AND);
+            }
+        }
+        throw new NucleusException("Comparison " + this + " " + op.getValue() + " " + number + " can never be true");
+    }
+
+    private MongoBooleanExpression getElementExistsExpression(long position, boolean exists)
+    {
+        MongoFieldExpression elementExpr = new MongoFieldExpression(field.getPropertyName() + "." + position, null, null);
+        return new MongoBooleanExpression(elementExpr, new MongoLiteral(exists), MongoOperator.EXISTS);
+    }
+
+    public String toString()
+    {
+        return field.getPropertyName() + ".size()";
+    }
+}
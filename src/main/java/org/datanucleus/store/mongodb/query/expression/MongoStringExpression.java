@@ -0,0 +1,314 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query.expression;
+
+import java.util.regex.Pattern;
+
+import org.datanucleus.exceptions.NucleusException;
+
+/**
+ * Expression for a String field in a MongoDB document with String methods applied to it, namely any of
+ * toLowerCase()/toUpperCase() and trim(), optionally followed by indexOf(str) or length().
+ * Comparisons of the expression are evaluated using a regular expression on the stored field, so a
+ * case conversion becomes a case-insensitive match, and trim() allows leading/trailing characters up to
+ * U+0020 (the characters that String.trim() removes). The end of the String is matched with \z since $ also
+ * matches before a final line terminator.
+ */
+public class MongoStringExpression extends MongoExpression
+{
+    /** Regular expression for the characters removed by String.trim(). */
+    private static final String TRIM_REGEX = "[\\x00-\\x20]*";
+
+    /** Regular expression for the end of the String. */
+    private static final String END_REGEX = "\\z";
+
+    final MongoFieldExpression field;
+
+    /** Whether converted to lower case (by toLowerCase). */
+    boolean lowerCase = false;
+
+    /** Whether converted to upper case (by toUpperCase). */
+    boolean upperCase = false;
+
+    /** Whether whitespace is trimmed (by trim). */
+    boolean trimmed = false;
+
+    /** Argument of indexOf, when the expression is the position of this in the String. */
+    String indexOfArg = null;
+
+    /** Whether the expression is the length of the String. */
+    boolean length = false;
+
+    public MongoStringExpression(MongoFieldExpression field)
+    {
+        this.field = field;
+    }
+
+    private MongoStringExpression copy()
+    {
+        MongoStringExpression expr = new MongoStringExpression(field);
+        expr.lowerCase = lowerCase;
+        expr.upperCase = upperCase;
+        expr.trimmed = trimmed;
+        return expr;
+    }
+
+    public MongoFieldExpression getField()
+    {
+        return field;
+    }
+
+    /**
+     * Accessor for whether the expression is numeric (i.e indexOf or length).
+     * @return Whether numeric
+     */
+    public boolean isNumeric()
+    {
+        return indexOfArg != null || length;
+    }
+
+    /**
+     * Method to return the expression for the String method with no arguments.
+     * @param method The method (toLowerCase, toUpperCase, trim, length)
+     * @return The expression, or null if not supported
+     */
+    public MongoStringExpression invoke(String method)
+    {
+        if (isNumeric())
+        {
+            return null;
+        }
+
+        MongoStringExpression expr = copy();
+        if ("toLowerCase".equals(method))
+        {
+            expr.lowerCase = true;
+            expr.upperCase = false;
+        }
+        else if ("toUpperCase".equals(method))
+        {
+            expr.upperCase = true;
+            expr.lowerCase = false;
+        }
+        else if ("trim".equals(method))
+        {
+            expr.trimmed = true;
+        }
+        else if ("length".equals(method) && !trimmed)
+        {
+            expr.length = true;
+        }
+        else
+        {
+            return null;
+        }
+        return expr;
+    }
+
+    /**
+     * Method to return the expression for indexOf(str) of this String.
+     * @param str The String to find
+     * @return The expression
+     */
+    public MongoStringExpression indexOf(String str)
+    {
+        if (isNumeric())
+        {
+            return null;
+        }
+        MongoStringExpression expr = copy();
+        expr.indexOfArg = str;
+        return expr;
+    }
+
+    /**
+     * Method to return the boolean expression for this (String) expression equalling the String.
+     * @param value The value
+     * @param ignoreCase Whether to ignore case (equalsIgnoreCase)
+     * @return The boolean expression
+     * @throws NucleusException if the value cannot be the result of this expression (so the comparison is always false)
+     */
+    public MongoBooleanExpression getEqualsExpression(String value, boolean ignoreCase)
+    {
+        checkPossibleValue(value, ignoreCase);
+        return getMatchExpression("^" + (trimmed ? TRIM_REGEX : "") + escapeRegex(value) + (trimmed ? TRIM_REGEX : "") + END_REGEX, ignoreCase);
+    }
+
+    /**
+     * Method to return the boolean expression for this (String) expression starting with the String.
+     * @param value The value
+     * @return The boolean expression
+     */
+    public MongoBooleanExpression getStartsWithExpression(String value)
+    {
+        checkPossibleValue(value, false);
+        return getMatchExpression("^" + (trimmed ? TRIM_REGEX : "") + escapeRegex(value), false);
+    }
+
+    /**
+     * Method to return the boolean expression for this (String) expression ending with the String.
+     * @param value The value
+     * @return The boolean expression
+     */
+    public MongoBooleanExpression getEndsWithExpression(String value)
+    {
+        checkPossibleValue(value, false);
+        return getMatchExpression(escapeRegex(value) + (trimmed ? TRIM_REGEX : "") + END_REGEX, false);
+    }
+
+    /**
+     * Method to return the boolean expression for this (String) expression containing the String.
+     * @param value The value
+     * @return The boolean expression
+     */
+    public MongoBooleanExpression getContainsExpression(String value)
+    {
+        checkPossibleValue(value, false);
+        return getMatchExpression(escapeRegex(value), false);
+    }
+
+    /**
+     * Method to return the boolean expression for this (String) expression being empty.
+     * @return The boolean expression
+     */
+    public MongoBooleanExpression getIsEmptyExpression()
+    {
+        return getMatchExpression("^" + (trimmed ? TRIM_REGEX : "") + END_REGEX, false);
+    }
+
+    /**
+     * Method to return the boolean expression for a comparison of this (numeric) expression with a number.
+     * @param op The comparison operator
+     * @param number The number
+     * @return The boolean expression
+     * @throws NucleusException if the comparison cannot be evaluated in the datastore
+     */
+    public MongoBooleanExpression getComparisonExpression(MongoOperator op, long number)
+    {
+        if (indexOfArg != null)
+        {
+            if ((op == MongoOperator.OP_GTEQ && number == 0) || (op == MongoOperator.OP_GT && number == -1) ||
+                (op == MongoOperator.OP_NOTEQ && number == -1))
+            {
+                return getContainsExpression(indexOfArg);
+            }
+            else if ((op == MongoOperator.OP_LT && number == 0) || (op == MongoOperator.OP_LTEQ && number == -1) ||
+                (op == MongoOperator.OP_EQ && number == -1))
+            {
+                return new MongoBooleanExpression(getContainsExpression(indexOfArg), MongoOperator.OP_NOT);
+            }
+            else if (op == MongoOperator.OP_EQ && number == 0)
+            {
+                return getStartsWithExpression(indexOfArg);
+            }
+        }
+        else if (length)
+        {
+            // Length by the number of (any) characters matched
+            String range = null;
+            if (op == MongoOperator.OP_EQ || op == MongoOperator.OP_NOTEQ)
+            {
+                range = "{" + Math.max(number, 0) + "}";
+            }
+            else if (op == MongoOperator.OP_GT)
+            {
+                range = "{" + Math.max(number + 1, 0) + ",}";
+            }
+            else if (op == MongoOperator.OP_GTEQ)
+            {
+                range = "{" + Math.max(number, 0) + ",}";
+            }
+            else if (op == MongoOperator.OP_LT && number > 0)
+            {
+                range = "{0," + (number - 1) + "}";
+            }
+            else if (op == MongoOperator.OP_LTEQ && number >= 0)
+            {
+                range = "{0," + number + "}";
+            }
+            if (range != null && number >= 0)
+            {
+                MongoBooleanExpression lengthExpr = getMatchExpression("^[\\s\\S]" + range + END_REGEX, false);
+                return op == MongoOperator.OP_NOTEQ ? new MongoBooleanExpression(lengthExpr, MongoOperator.OP_NOT) : lengthExpr;
+            }
+        }
+        throw new NucleusException("Comparison " + this + " " + op.getValue() + " " + number + " is not supported in the datastore");
+    }
+
+    private void checkPossibleValue(String value, boolean ignoreCase)
+    {
+        if ((!ignoreCase && ((lowerCase && !value.equals(value.toLowerCase())) || (upperCase && !value.equals(value.toUpperCase())))) ||
+            (trimmed && !value.equals(value.trim())))
+        {
+            throw new NucleusException("Comparison of " + this + " with \"" + value + "\" can never be true");
+        }
+    }
+
+    private MongoBooleanExpression getMatchExpression(String regex, boolean ignoreCase)
+    {
+        Pattern pattern = Pattern.compile(regex, (ignoreCase || lowerCase || upperCase) ? Pattern.CASE_INSENSITIVE : 0);
+        return new MongoBooleanExpression(field, new MongoLiteral(pattern), MongoOperator.OP_EQ);
+    }
+
+    /**
+     * Convenience method to escape the regular expression metacharacters in a String individually (rather than
+     * quoting the whole String), so that a prefix expression can still make use of an index.
+     * @param str The String
+     * @return The escaped String
+     */
+    public static String escapeRegex(String str)
+    {
+        StringBuilder escaped = new StringBuilder(str.length() + 8);
+        for (int i=0;i<str.length();i++)
+        {
+            char c = str.charAt(i);
+            if ("\\^$.|?*+()[]{}".indexOf(c) >= 0)
+            {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    public String toString()
+    {
+        StringBuilder str = new StringBuilder(field.getPropertyName());
+        if (lowerCase)
+        {
+            str.append(".toLowerCase()");
+        }
+        else if (upperCase)
+        {
+            str.append(".toUpperCase()");
+        }
+        if (trimmed)
+        {
+            str.append(".trim()");
+        }
+        if (indexOfArg != null)
+        {
+            str.append(".indexOf(\"").append(indexOfArg).append("\")");
+        }
+        else if (length)
+        {
+            str.append(".length()");
+        }
+        return str.toString();
+    }
+}
@@ -0,0 +1,169 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.ClassMetaData;
+import org.datanucleus.metadata.FieldMetaData;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Tests for the keyset pagination condition, bulk delete check and index hints of MongoDBUtils.
+ */
+public class MongoDBUtilsTest
+{
+    private static BasicDBObject json(String str)
+    {
+        return (BasicDBObject)JSON.parse(str);
+    }
+
+    private static AbstractClassMetaData classWithMembers(final AbstractMemberMetaData... mmds)
+    {
+        return new ClassMetaData(null, "Person")
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public int[] getAllMemberPositions()
+            {
+                int[] positions = new int[mmds.length];
+                for (int i=0;i<positions.length;i++)
+                {
+                    positions[i] = i;
+                }
+                return positions;
+            }
+
+            @Override
+            public AbstractMemberMetaData getMetaDataForManagedMemberAtAbsolutePosition(int position)
+            {
+                return mmds[position];
+            }
+        };
+    }
+
+    @Test
+    public void testKeysetConditionAscending()
+    {
+        BasicDBObject cond = MongoDBUtils.getKeysetConditionForContinuationToken(json("{'a' : 1, '_id' : 1}"), "{'a' : 5, '_id' : 3}");
+        assertEquals(json("{'$or' : [{'a' : {'$gt' : 5}}, {'a' : 5, '_id' : {'$gt' : 3}}]}"), cond);
+    }
+
+    @Test
+    public void testKeysetConditionDescendingIncludesNull()
+    {
+        BasicDBObject cond = MongoDBUtils.getKeysetConditionForContinuationToken(json("{'a' : 1, 'b' : -1, '_id' : 1}"),
+            "{'a' : 5, 'b' : 'x', '_id' : 3}");
+        assertEquals(json("{'$or' : [{'a' : {'$gt' : 5}}, {'a' : 5, 'b' : {'$lt' : 'x'}}, {'a' : 5, 'b' : null}," +
+            " {'a' : 5, 'b' : 'x', '_id' : {'$gt' : 3}}]}"), cond);
+    }
+
+    @Test
+    public void testKeysetConditionAscendingNullToken()
+    {
+        // Nulls sort first when ascending, so everything non-null follows
+        BasicDBObject cond = MongoDBUtils.getKeysetConditionForContinuationToken(json("{'a' : 1, '_id' : 1}"), "{'a' : null, '_id' : 3}");
+        assertEquals(json("{'$or' : [{'a' : {'$ne' : null}}, {'a' : null, '_id' : {'$gt' : 3}}]}"), cond);
+    }
+
+    @Test
+    public void testKeysetConditionDescendingNullToken()
+    {
+        // Nulls sort last when descending, so only the remaining nulls follow
+        BasicDBObject cond = MongoDBUtils.getKeysetConditionForContinuationToken(json("{'a' : -1, '_id' : 1}"), "{'a' : null, '_id' : 3}");
+        assertEquals(json("{'$or' : [{'a' : null, '_id' : {'$gt' : 3}}]}"), cond);
+    }
+
+    @Test
+    public void testKeysetConditionTokenForOtherOrdering()
+    {
+        try
+        {
+            MongoDBUtils.getKeysetConditionForContinuationToken(json("{'a' : 1, '_id' : 1}"), "{'b' : 5, '_id' : 3}");
+            fail("Expected NucleusUserException for a token of another ordering");
+        }
+        catch (NucleusUserException nue)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testKeysetConditionInvalidToken()
+    {
+        try
+        {
+            MongoDBUtils.getKeysetConditionForContinuationToken(json("{'a' : 1, '_id' : 1}"), "{not json");
+            fail("Expected NucleusUserException for an invalid token");
+        }
+        catch (NucleusUserException nue)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testDeletableWithoutDependentMembers()
+    {
+        assertTrue(MongoDBUtils.isDeletableInDatastore(classWithMembers(new FieldMetaData(null, "name"), new FieldMetaData(null, "age"))));
+    }
+
+    @Test
+    public void testNotDeletableWithDependentMember()
+    {
+        FieldMetaData addressMmd = new FieldMetaData(null, "address");
+        addressMmd.setDependent(true);
+        assertFalse(MongoDBUtils.isDeletableInDatastore(classWithMembers(new FieldMetaData(null, "name"), addressMmd)));
+    }
+
+    @Test
+    public void testNotDeletableWithMappedByMember()
+    {
+        // Other side of the relation would need updating
+        FieldMetaData accountMmd = new FieldMetaData(null, "account");
+        accountMmd.setMappedBy("owner");
+        assertFalse(MongoDBUtils.isDeletableInDatastore(classWithMembers(accountMmd)));
+    }
+
+    @Test
+    public void testIndexHintKeyPattern()
+    {
+        assertEquals(json("{'name' : 1, 'age' : -1}"), MongoDBUtils.getIndexHint(" {'name' : 1, 'age' : -1}"));
+        BasicDBObject keyPattern = new BasicDBObject("name", 1);
+        assertSame(keyPattern, MongoDBUtils.getIndexHint(keyPattern));
+    }
+
+    @Test
+    public void testIndexHintName()
+    {
+        assertEquals("name_1", MongoDBUtils.getIndexHint("name_1 "));
+        assertNull(MongoDBUtils.getIndexHint(null));
+    }
+}
@@ -0,0 +1,71 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.datanucleus.metadata.FieldMetaData;
+import org.datanucleus.store.mongodb.query.expression.MongoFieldExpression;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Tests for building the result rows of a projection of fields directly from the documents.
+ */
+public class LazyLoadQueryResultTest
+{
+    private static MongoFieldExpression field(String name, final Class type)
+    {
+        FieldMetaData fmd = new FieldMetaData(null, name)
+        {
+            private static final long serialVersionUID = 1L;
+            {
+                this.type = type;
+            }
+        };
+        return new MongoFieldExpression(name, fmd, null);
+    }
+
+    @Test
+    public void testSingleFieldRowIsTheValue()
+    {
+        List<MongoFieldExpression> fields = Arrays.asList(field("age", Integer.class));
+        assertEquals(Integer.valueOf(42), LazyLoadQueryResult.getResultRowForDBObject(new BasicDBObject("age", 42L), fields, null));
+    }
+
+    @Test
+    public void testMissingFieldsUseTheDefault()
+    {
+        List<MongoFieldExpression> fields = Arrays.asList(field("age", Integer.class), field("count", int.class), field("total", long.class));
+        Object row = LazyLoadQueryResult.getResultRowForDBObject(new BasicDBObject("age", 7), fields, null);
+        assertArrayEquals(new Object[] {Integer.valueOf(7), Integer.valueOf(0), Long.valueOf(0)}, (Object[])row);
+    }
+
+    @Test
+    public void testMissingWrapperFieldIsNull()
+    {
+        List<MongoFieldExpression> fields = Arrays.asList(field("age", Integer.class));
+        assertNull(LazyLoadQueryResult.getResultRowForDBObject(new BasicDBObject("name", "Fred"), fields, null));
+    }
+}
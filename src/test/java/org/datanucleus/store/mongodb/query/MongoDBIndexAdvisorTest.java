@@ -0,0 +1,120 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.datanucleus.store.mongodb.query.MongoDBIndexAdvisor.QueryShape;
+import org.datanucleus.store.mongodb.query.expression.MongoParameter;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Tests for the query shapes and index suggestions of MongoDBIndexAdvisor.
+ */
+public class MongoDBIndexAdvisorTest
+{
+    private static BasicDBObject json(String str)
+    {
+        return (BasicDBObject)JSON.parse(str);
+    }
+
+    @Test
+    public void testSuggestedIndexOrder()
+    {
+        // Equality fields, then the sort keys, then a range field
+        QueryShape shape = MongoDBIndexAdvisor.getShapeForQuery("Person", json("{'age' : {'$gt' : 18}, 'city' : 'London'}"),
+            json("{'name' : -1}"));
+        assertEquals("[city, name, age]", shape.getSuggestedIndex().keySet().toString());
+        assertEquals(-1, shape.getSuggestedIndex().get("name"));
+    }
+
+    @Test
+    public void testShapeOfInAndParameters()
+    {
+        BasicDBObject filter = new BasicDBObject("a", new BasicDBObject("$in", new int[] {1, 2}));
+        filter.append("b", new MongoParameter("p", null, false, false));
+        QueryShape shape = MongoDBIndexAdvisor.getShapeForQuery("C", filter, null);
+        assertEquals(json("{'a' : 1, 'b' : 1}"), shape.getSuggestedIndex());
+    }
+
+    @Test
+    public void testShapeOfConjunctions()
+    {
+        QueryShape shape = MongoDBIndexAdvisor.getShapeForQuery("C",
+            json("{'$and' : [{'a' : 1}, {'b' : {'$lt' : 3}}], '$or' : [{'c' : 1}, {'d' : 2}]}"), null);
+        assertEquals(json("{'a' : 1, 'b' : 1}"), shape.getSuggestedIndex());
+    }
+
+    @Test
+    public void testShapeOfSortOnEqualityField()
+    {
+        // Sorting on a field compared for equality doesn't need it in the index again
+        QueryShape shape = MongoDBIndexAdvisor.getShapeForQuery("C", json("{'a' : 1}"), json("{'a' : 1, 'b' : 1}"));
+        assertEquals(json("{'a' : 1, 'b' : 1}"), shape.getSuggestedIndex());
+    }
+
+    @Test
+    public void testNoShapeWithoutFields()
+    {
+        assertNull(MongoDBIndexAdvisor.getShapeForQuery("C", null, null));
+        assertNull(MongoDBIndexAdvisor.getShapeForQuery("C", json("{'$or' : [{'a' : 1}, {'b' : 2}]}"), null));
+    }
+
+    @Test
+    public void testShapesAreEqualForDifferentValues()
+    {
+        assertEquals(MongoDBIndexAdvisor.getShapeForQuery("C", json("{'a' : 1}"), null),
+            MongoDBIndexAdvisor.getShapeForQuery("C", json("{'a' : 2}"), null));
+    }
+
+    @Test
+    public void testSupportedByIndex()
+    {
+        QueryShape shape = MongoDBIndexAdvisor.getShapeForQuery("C", json("{'a' : 1, 'b' : 2, 'r' : {'$gte' : 5}}"), json("{'s' : 1}"));
+        assertTrue(shape.isSupportedByIndex(json("{'b' : 1, 'a' : -1, 's' : 1, 'r' : 1}")));
+        assertTrue(shape.isSupportedByIndex(json("{'a' : 1, 'b' : 1, 's' : -1, 'r' : -1, 'x' : 1}")));
+        assertFalse(shape.isSupportedByIndex(json("{'a' : 1, 's' : 1, 'r' : 1}")));
+        assertFalse(shape.isSupportedByIndex(json("{'a' : 1, 'b' : 1, 'r' : 1, 's' : 1}")));
+        assertFalse(shape.isSupportedByIndex(json("{'a' : 1, 'b' : 1, 's' : 1}")));
+    }
+
+    @Test
+    public void testSortDirectionsMustAllMatchOrAllBeReversed()
+    {
+        QueryShape shape = MongoDBIndexAdvisor.getShapeForQuery("C", null, json("{'s' : 1, 't' : -1}"));
+        assertTrue(shape.isSupportedByIndex(json("{'s' : 1, 't' : -1}")));
+        assertTrue(shape.isSupportedByIndex(json("{'s' : -1, 't' : 1}")));
+        assertFalse(shape.isSupportedByIndex(json("{'s' : 1, 't' : 1}")));
+    }
+
+    @Test
+    public void testSpecialIndexTypesDontSupport()
+    {
+        QueryShape shape = MongoDBIndexAdvisor.getShapeForQuery("C", json("{'a' : 1, 'r' : {'$gt' : 5}}"), null);
+        assertFalse(shape.isSupportedByIndex(json("{'a' : 'hashed', 'r' : 1}")));
+        assertFalse(shape.isSupportedByIndex(json("{'a' : 1, 'r' : '2dsphere'}")));
+        assertFalse(shape.isSupportedByIndex(json("{'a' : 'text', 'r' : 1}")));
+        assertTrue(shape.isSupportedByIndex(json("{'a' : 1, 'r' : 1}")));
+    }
+}
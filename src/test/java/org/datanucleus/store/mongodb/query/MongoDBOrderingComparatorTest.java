@@ -0,0 +1,148 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.types.Binary;
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Tests for MongoDBOrderingComparator, which has to order documents in the same way as a MongoDB sort.
+ */
+public class MongoDBOrderingComparatorTest
+{
+    private static BasicDBList list(Object... values)
+    {
+        BasicDBList list = new BasicDBList();
+        list.addAll(Arrays.asList(values));
+        return list;
+    }
+
+    private static List<Object> sortValues(int direction, Object... values)
+    {
+        List<DBObject> docs = new ArrayList<DBObject>();
+        for (Object value : values)
+        {
+            BasicDBObject doc = new BasicDBObject();
+            if (value != null)
+            {
+                doc.put("f", value);
+            }
+            docs.add(doc);
+        }
+        Collections.sort(docs, new MongoDBOrderingComparator(new BasicDBObject("f", direction)));
+        List<Object> sorted = new ArrayList<Object>();
+        for (DBObject doc : docs)
+        {
+            sorted.add(doc.get("f"));
+        }
+        return sorted;
+    }
+
+    @Test
+    public void testNumbersOfDifferentTypes()
+    {
+        assertEquals(Arrays.<Object>asList(1, 2.5, 3L, 4), sortValues(1, 4, 3L, 2.5, 1));
+        assertEquals(Arrays.<Object>asList(4, 3L, 2.5, 1), sortValues(-1, 4, 3L, 2.5, 1));
+        assertTrue(MongoDBOrderingComparator.compareValues(Double.NaN, -100) < 0);
+    }
+
+    @Test
+    public void testTypeOrder()
+    {
+        // null (missing) < numbers < strings < documents < arrays < binary < ObjectId < boolean < date
+        assertEquals(Arrays.<Object>asList(null, 1, "a", true, new java.util.Date(0)),
+            sortValues(1, new java.util.Date(0), true, "a", 1, null));
+        assertTrue(MongoDBOrderingComparator.compareValues("z", new BasicDBObject("a", 1)) < 0);
+        assertTrue(MongoDBOrderingComparator.compareValues(new BasicDBObject("a", 1), list(1)) < 0);
+        assertTrue(MongoDBOrderingComparator.compareValues(list(1), new byte[] {1}) < 0);
+    }
+
+    @Test
+    public void testArraySortKeys()
+    {
+        // Ascending sorts an array by its lowest element, descending by its highest, and an empty array before null
+        BasicDBList low = list(1, 10);
+        BasicDBList mid = list(5);
+        BasicDBList empty = list();
+        assertEquals(Arrays.<Object>asList(empty, null, low, mid), sortValues(1, mid, null, low, empty));
+        assertEquals(Arrays.<Object>asList(low, mid, null, empty), sortValues(-1, mid, null, low, empty));
+    }
+
+    @Test
+    public void testEmbeddedDocuments()
+    {
+        BasicDBObject a1 = new BasicDBObject("a", 1);
+        BasicDBObject a2 = new BasicDBObject("a", 2);
+        BasicDBObject a1b1 = new BasicDBObject("a", 1).append("b", 1);
+        BasicDBObject b0 = new BasicDBObject("b", 0);
+        assertTrue(MongoDBOrderingComparator.compareValues(a1, a2) < 0);
+        assertTrue(MongoDBOrderingComparator.compareValues(a1, a1b1) < 0);
+        assertTrue(MongoDBOrderingComparator.compareValues(a2, b0) < 0);
+        assertTrue(MongoDBOrderingComparator.compareValues(new BasicDBObject("a", "x"), new BasicDBObject("a", 5)) > 0);
+        assertEquals(0, MongoDBOrderingComparator.compareValues(new BasicDBObject("a", 1), new BasicDBObject("a", 1L)));
+    }
+
+    @Test
+    public void testArraysInDocuments()
+    {
+        assertTrue(MongoDBOrderingComparator.compareValues(new BasicDBObject("a", list(1, 2)), new BasicDBObject("a", list(1, 3))) < 0);
+        assertTrue(MongoDBOrderingComparator.compareValues(new BasicDBObject("a", list(1)), new BasicDBObject("a", list(1, 0))) < 0);
+    }
+
+    @Test
+    public void testBinaryValues()
+    {
+        assertTrue(MongoDBOrderingComparator.compareValues(new byte[] {9}, new byte[] {0, 0}) < 0);
+        assertTrue(MongoDBOrderingComparator.compareValues(new byte[] {1}, new byte[] {(byte)0x80}) < 0);
+        assertTrue(MongoDBOrderingComparator.compareValues(new Binary((byte)0, new byte[] {5}), new Binary((byte)4, new byte[] {1})) < 0);
+        assertEquals(0, MongoDBOrderingComparator.compareValues(new byte[] {1, 2}, new Binary(new byte[] {1, 2})));
+    }
+
+    @Test
+    public void testMultipleSortKeys()
+    {
+        List<DBObject> docs = new ArrayList<DBObject>();
+        docs.add(new BasicDBObject("a", 1).append("b", 1));
+        docs.add(new BasicDBObject("a", 2).append("b", 0));
+        docs.add(new BasicDBObject("a", 1).append("b", 2));
+        Collections.sort(docs, new MongoDBOrderingComparator(new BasicDBObject("a", 1).append("b", -1)));
+        assertEquals(new BasicDBObject("a", 1).append("b", 2), docs.get(0));
+        assertEquals(new BasicDBObject("a", 1).append("b", 1), docs.get(1));
+        assertEquals(new BasicDBObject("a", 2).append("b", 0), docs.get(2));
+    }
+
+    @Test
+    public void testValueForPath()
+    {
+        BasicDBObject doc = new BasicDBObject("a", new BasicDBObject("b", new BasicDBObject("c", 3)));
+        assertEquals(3, MongoDBOrderingComparator.getValueForPath(doc, "a.b.c"));
+        assertEquals(null, MongoDBOrderingComparator.getValueForPath(doc, "a.x.c"));
+    }
+}
@@ -0,0 +1,112 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the generations, invalidation and eviction of MongoDBQueryResultCache.
+ * Entries are added with no results so that they can be read without an ExecutionContext.
+ */
+public class MongoDBQueryResultCacheTest
+{
+    private MongoDBQueryResultCache cache;
+
+    @Before
+    public void setUp()
+    {
+        cache = new MongoDBQueryResultCache(2, 1024);
+        cache.used = true;
+    }
+
+    private static List<Object> key(String name)
+    {
+        return Arrays.<Object>asList(name);
+    }
+
+    private void put(String name, String... collectionNames)
+    {
+        cache.putResults(key(name), cache.getGenerations(Arrays.asList(collectionNames)), Collections.emptyList(),
+            Collections.<String>emptyList());
+    }
+
+    @Test
+    public void testInvalidateRemovesEntriesReadingCollection()
+    {
+        put("q1", "A");
+        put("q2", "B");
+        cache.invalidate("A");
+        assertNull(cache.getResults(key("q1"), null));
+        assertNotNull(cache.getResults(key("q2"), null));
+    }
+
+    @Test
+    public void testWriteDuringExecutionIsNotCached()
+    {
+        Map<String, Long> generations = cache.getGenerations(Arrays.asList("A", "B"));
+        cache.invalidate("B");
+        cache.putResults(key("q1"), generations, Collections.emptyList(), Collections.<String>emptyList());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testWriteDuringExecutionIsNotCachedAfterClear()
+    {
+        Map<String, Long> generations = cache.getGenerations(Arrays.asList("A"));
+        cache.invalidate("A");
+        cache.clear();
+        cache.putResults(key("q1"), generations, Collections.emptyList(), Collections.<String>emptyList());
+        assertEquals(0, cache.size());
+
+        // A query started after the clear is cached
+        put("q2", "A");
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted()
+    {
+        put("q1", "A");
+        put("q2", "A");
+        cache.getResults(key("q1"), null);
+        put("q3", "A");
+        assertEquals(2, cache.size());
+        assertNotNull(cache.getResults(key("q1"), null));
+        assertNull(cache.getResults(key("q2"), null));
+        assertNotNull(cache.getResults(key("q3"), null));
+    }
+
+    @Test
+    public void testResultsLargerThanMaxBytesAreNotCached()
+    {
+        List<Object> ids = Collections.<Object>nCopies(100, "0123456789");
+        List<String> classNames = Collections.nCopies(100, "Person");
+        cache.putResults(key("q1"), cache.getGenerations(Arrays.asList("A")), ids, classNames);
+        assertEquals(0, cache.size());
+    }
+}
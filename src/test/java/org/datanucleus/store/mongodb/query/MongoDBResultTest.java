@@ -0,0 +1,91 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.datanucleus.store.mongodb.query.expression.MongoAggregateExpression;
+import org.datanucleus.store.mongodb.query.expression.MongoFieldExpression;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Tests for the result components of MongoDBResult.
+ */
+public class MongoDBResultTest
+{
+    @Test
+    public void testAggregateOnly()
+    {
+        MongoDBResult result = new MongoDBResult();
+        assertFalse(result.isAggregateOnly());
+        result.addComponent(new MongoAggregateExpression("count", null));
+        assertTrue(result.isAggregateOnly());
+        assertFalse(result.isGrouped());
+    }
+
+    @Test
+    public void testGroupedWithHavingAggregate()
+    {
+        MongoFieldExpression deptExpr = new MongoFieldExpression("dept", null, null);
+        MongoDBResult result = new MongoDBResult();
+        result.setGroupingFields(Arrays.asList(deptExpr));
+        result.addComponent(deptExpr);
+        result.addComponent(new MongoAggregateExpression("count", null));
+        assertTrue(result.isGrouped());
+        assertFalse(result.isAggregateOnly());
+
+        // Aggregates only used by the having clause follow those of the result, but aren't components
+        int position = result.addHavingAggregate(new MongoAggregateExpression("max", new MongoFieldExpression("salary", null, null)));
+        assertEquals(1, position);
+        assertEquals(2, result.getComponents().size());
+        assertEquals(2, result.getAggregates().size());
+    }
+
+    @Test
+    public void testClearComponents()
+    {
+        MongoDBResult result = new MongoDBResult();
+        result.setGroupingFields(Arrays.asList(new MongoFieldExpression("dept", null, null)));
+        result.addComponent(new MongoAggregateExpression("count", null));
+        result.setHavingObject(new BasicDBObject("v0", new BasicDBObject("$gt", 1)));
+        result.clearComponents();
+        assertFalse(result.isGrouped());
+        assertNull(result.getAggregates());
+        assertNull(result.getHavingObject());
+    }
+
+    @Test
+    public void testDistinctFieldsAreGrouped()
+    {
+        MongoFieldExpression deptExpr = new MongoFieldExpression("dept", null, null);
+        MongoDBResult result = new MongoDBResult();
+        result.addComponent(deptExpr);
+        result.setGroupingFields(Arrays.asList(deptExpr));
+        result.setDistinct(true);
+        assertTrue(result.isDistinct());
+        assertTrue(result.isGrouped());
+        assertTrue(result.getAggregates().isEmpty());
+    }
+}
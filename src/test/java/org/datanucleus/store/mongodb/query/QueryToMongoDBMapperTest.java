@@ -0,0 +1,212 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.datanucleus.metadata.FieldMetaData;
+import org.datanucleus.query.compiler.QueryCompilation;
+import org.datanucleus.query.expression.DyadicExpression;
+import org.datanucleus.query.expression.Expression;
+import org.datanucleus.query.expression.Literal;
+import org.datanucleus.query.expression.PrimaryExpression;
+import org.datanucleus.query.symbol.PropertySymbol;
+import org.datanucleus.query.symbol.Symbol;
+import org.datanucleus.query.symbol.SymbolTable;
+import org.datanucleus.store.mongodb.query.expression.MongoBooleanExpression;
+import org.datanucleus.store.mongodb.query.expression.MongoFieldExpression;
+import org.datanucleus.store.mongodb.query.expression.MongoLiteral;
+import org.datanucleus.store.mongodb.query.expression.MongoOperator;
+import org.datanucleus.store.mongodb.query.expression.MongoRelationExpression;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Tests for the parts of QueryToMongoDBMapper that don't need the datastore.
+ */
+public class QueryToMongoDBMapperTest
+{
+    private static FieldMetaData member(String name, final Class type)
+    {
+        return new FieldMetaData(null, name)
+        {
+            private static final long serialVersionUID = 1L;
+            {
+                this.type = type;
+            }
+        };
+    }
+
+    /**
+     * Mapper that records the conditions on related objects rather than finding their identities in the datastore,
+     * giving a semi-join on the identities "1" and "2".
+     */
+    private static class SemiJoinRecordingMapper extends QueryToMongoDBMapper
+    {
+        List<BasicDBObject> relatedConditions = new ArrayList<BasicDBObject>();
+
+        SemiJoinRecordingMapper()
+        {
+            super(new QueryCompilation(Object.class, "this", null, null, null, null, null, null, null, null), null, null, null, null);
+        }
+
+        @Override
+        protected MongoBooleanExpression getSemiJoinExpression(MongoRelationExpression relationExpr, MongoBooleanExpression relatedCond)
+        {
+            relatedConditions.add(relatedCond.getDBObject());
+            return new MongoBooleanExpression(relationExpr.getRelationField(), new MongoLiteral(Arrays.asList("1", "2")), MongoOperator.IN);
+        }
+    }
+
+    private static Expression eq(String field, Object value)
+    {
+        return new DyadicExpression(new PrimaryExpression(Arrays.asList(field)), Expression.OP_EQ, new Literal(value));
+    }
+
+    private static Expression primary(String... tuples)
+    {
+        return new PrimaryExpression(Arrays.asList(tuples));
+    }
+
+    private static QueryCompilation subquery(String alias, SymbolTable symtbl, Expression filter)
+    {
+        return new QueryCompilation(Object.class, alias, symtbl, null, null, filter, null, null, null, null);
+    }
+
+    @Test
+    public void testIncrementableForPrimitiveNumbers()
+    {
+        assertTrue(QueryToMongoDBMapper.isIncrementable(member("count", int.class)));
+        assertTrue(QueryToMongoDBMapper.isIncrementable(member("total", Long.class)));
+        assertTrue(QueryToMongoDBMapper.isIncrementable(member("score", double.class)));
+    }
+
+    @Test
+    public void testNotIncrementableForOtherTypes()
+    {
+        // Stored as String, so $inc would fail (or change the stored type)
+        assertFalse(QueryToMongoDBMapper.isIncrementable(member("amount", BigDecimal.class)));
+        assertFalse(QueryToMongoDBMapper.isIncrementable(member("amount", BigInteger.class)));
+        assertFalse(QueryToMongoDBMapper.isIncrementable(member("name", String.class)));
+    }
+
+    @Test
+    public void testConjunctsOfAndChain()
+    {
+        Expression a = eq("a", 1);
+        Expression b = eq("b", 2);
+        Expression c = eq("c", 3);
+        Expression filter = new DyadicExpression(new DyadicExpression(a, Expression.OP_AND, b), Expression.OP_AND, c);
+        List<Expression> conjuncts = new ArrayList<Expression>();
+        QueryToMongoDBMapper.addConjuncts(filter, conjuncts);
+        assertEquals(Arrays.asList(a, b, c), conjuncts);
+    }
+
+    @Test
+    public void testDisjunctionIsSingleConjunct()
+    {
+        // An OR can't be split, since each side alone would exclude results
+        Expression a = eq("a", 1);
+        Expression orExpr = new DyadicExpression(eq("b", 2), Expression.OP_OR, eq("c", 3));
+        List<Expression> conjuncts = new ArrayList<Expression>();
+        QueryToMongoDBMapper.addConjuncts(new DyadicExpression(a, Expression.OP_AND, orExpr), conjuncts);
+        assertEquals(2, conjuncts.size());
+        assertSame(orExpr, conjuncts.get(1));
+    }
+
+    @Test
+    public void testSemiJoinForRelatedField()
+    {
+        // 30 < manager.age
+        SemiJoinRecordingMapper mapper = new SemiJoinRecordingMapper();
+        MongoRelationExpression relationExpr = new MongoRelationExpression(new MongoFieldExpression("manager", null, null), null,
+            new MongoFieldExpression("age", null, null));
+        MongoBooleanExpression expr = (MongoBooleanExpression)mapper.getDerivedComparison(new MongoLiteral(30), relationExpr, MongoOperator.OP_LT);
+
+        assertEquals(Arrays.asList(new BasicDBObject("age", new BasicDBObject("$gt", 30))), mapper.relatedConditions);
+        assertEquals(new BasicDBObject("manager", new BasicDBObject("$in", Arrays.asList("1", "2"))), expr.getDBObject());
+    }
+
+    @Test
+    public void testSemiJoinThroughTwoRelations()
+    {
+        // manager.department.name == "Sales"
+        SemiJoinRecordingMapper mapper = new SemiJoinRecordingMapper();
+        MongoRelationExpression departmentExpr = new MongoRelationExpression(new MongoFieldExpression("department", null, null), null,
+            new MongoFieldExpression("name", null, null));
+        MongoRelationExpression managerExpr = new MongoRelationExpression(new MongoFieldExpression("manager", null, null), null, departmentExpr);
+        MongoBooleanExpression expr = (MongoBooleanExpression)mapper.getDerivedComparison(managerExpr, new MongoLiteral("Sales"), MongoOperator.OP_EQ);
+
+        // Departments are found first, then the managers in those departments
+        assertEquals(2, mapper.relatedConditions.size());
+        assertEquals(new BasicDBObject("name", "Sales"), mapper.relatedConditions.get(0));
+        assertEquals(new BasicDBObject("department", new BasicDBObject("$in", Arrays.asList("1", "2"))), mapper.relatedConditions.get(1));
+        assertEquals(new BasicDBObject("manager", new BasicDBObject("$in", Arrays.asList("1", "2"))), expr.getDBObject());
+    }
+
+    @Test
+    public void testUncorrelatedSubquery()
+    {
+        // SELECT AVG(e2.salary) FROM Employee e2 WHERE e2.grade = 3
+        Set<String> outer = new HashSet<String>(Arrays.asList("e"));
+        QueryCompilation sub = subquery("e2", null, new DyadicExpression(primary("e2", "grade"), Expression.OP_EQ, new Literal(3)));
+        assertFalse(QueryToMongoDBMapper.isCorrelatedSubquery(sub, outer));
+    }
+
+    @Test
+    public void testSubqueryReferringToOuterAlias()
+    {
+        // SELECT AVG(e2.salary) FROM Employee e2 WHERE e2.dept = e.dept
+        Set<String> outer = new HashSet<String>(Arrays.asList("e"));
+        QueryCompilation sub = subquery("e2", null, new DyadicExpression(primary("e2", "dept"), Expression.OP_EQ, primary("e", "dept")));
+        assertTrue(QueryToMongoDBMapper.isCorrelatedSubquery(sub, outer));
+    }
+
+    @Test
+    public void testSubqueryIdentifiersHideOuterIdentifiers()
+    {
+        // Subquery with candidate alias "e" and variable "d", the same names as in the outer query
+        Set<String> outer = new HashSet<String>(Arrays.asList("e", "d"));
+        SymbolTable symtbl = new SymbolTable();
+        PropertySymbol varSymbol = new PropertySymbol("d", Object.class);
+        varSymbol.setType(Symbol.VARIABLE);
+        symtbl.addSymbol(varSymbol);
+        Expression filter = new DyadicExpression(new DyadicExpression(primary("e", "dept"), Expression.OP_EQ, primary("d")),
+            Expression.OP_AND, new DyadicExpression(primary("d", "name"), Expression.OP_EQ, new Literal("Sales")));
+        assertFalse(QueryToMongoDBMapper.isCorrelatedSubquery(subquery("e", symtbl, filter), outer));
+    }
+
+    @Test
+    public void testMissingSubqueryCompilationIsCorrelated()
+    {
+        assertTrue(QueryToMongoDBMapper.isCorrelatedSubquery(null, Collections.<String>emptySet()));
+    }
+}
@@ -0,0 +1,132 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.datanucleus.metadata.FieldMetaData;
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Tests for MongoAggregateExpression, combining the partial values from each DBCollection.
+ */
+public class MongoAggregateExpressionTest
+{
+    private static MongoFieldExpression field(String name, final Class type)
+    {
+        FieldMetaData fmd = new FieldMetaData(null, name)
+        {
+            private static final long serialVersionUID = 1L;
+            {
+                this.type = type;
+            }
+        };
+        return new MongoFieldExpression(name, fmd, null);
+    }
+
+    private static List<DBObject> partials(String name, Object... totalsAndCounts)
+    {
+        List<DBObject> partials = new ArrayList<DBObject>();
+        for (int i=0;i<totalsAndCounts.length;i+=2)
+        {
+            partials.add(new BasicDBObject(name, totalsAndCounts[i]).append(name + "_n", totalsAndCounts[i+1]));
+        }
+        return partials;
+    }
+
+    @Test
+    public void testCountOfDocuments()
+    {
+        MongoAggregateExpression countExpr = new MongoAggregateExpression("COUNT", null);
+        BasicDBObject group = new BasicDBObject();
+        countExpr.addToGroup(group, "agg0");
+        assertEquals(new BasicDBObject("agg0", new BasicDBObject("$sum", 1)), group);
+
+        List<DBObject> partials = new ArrayList<DBObject>();
+        partials.add(new BasicDBObject("agg0", 3));
+        partials.add(new BasicDBObject("agg0", 4L));
+        assertEquals(Long.valueOf(7), countExpr.getResult(partials, "agg0", null));
+    }
+
+    @Test
+    public void testSumGroupsTotalAndCount()
+    {
+        MongoAggregateExpression sumExpr = new MongoAggregateExpression("sum", field("age", int.class));
+        BasicDBObject group = new BasicDBObject();
+        sumExpr.addToGroup(group, "agg0");
+        assertEquals(new BasicDBObject("$sum", "$age"), group.get("agg0"));
+        assertTrue(group.containsField("agg0_n"));
+    }
+
+    @Test
+    public void testSumOfIntegralPartials()
+    {
+        MongoAggregateExpression sumExpr = new MongoAggregateExpression("sum", field("age", int.class));
+        assertEquals(Long.valueOf(60), sumExpr.getResult(partials("agg0", 25, 2, 35L, 1), "agg0", null));
+    }
+
+    @Test
+    public void testAvgIsWeightedByPartialCounts()
+    {
+        // Averaging the averages (10 and 40) would give 25
+        MongoAggregateExpression avgExpr = new MongoAggregateExpression("avg", field("score", double.class));
+        assertEquals(Double.valueOf(17.5), avgExpr.getResult(partials("agg0", 30.0, 3, 40.0, 1), "agg0", null));
+    }
+
+    @Test
+    public void testSumWithNoValuesIsNull()
+    {
+        MongoAggregateExpression sumExpr = new MongoAggregateExpression("sum", field("age", Integer.class));
+        assertNull(sumExpr.getResult(partials("agg0", 0, 0, 0, 0), "agg0", null));
+    }
+
+    @Test
+    public void testAvgValueExpression()
+    {
+        MongoAggregateExpression avgExpr = new MongoAggregateExpression("avg", field("score", double.class));
+        BasicDBList cond = (BasicDBList)((BasicDBObject)avgExpr.getValueExpression("agg0")).get("$cond");
+        assertNull(cond.get(1));
+        BasicDBList divide = (BasicDBList)((BasicDBObject)cond.get(2)).get("$divide");
+        assertEquals("$agg0", divide.get(0));
+        assertEquals("$agg0_n", divide.get(1));
+
+        MongoAggregateExpression maxExpr = new MongoAggregateExpression("max", field("score", double.class));
+        assertEquals("$agg1", maxExpr.getValueExpression("agg1"));
+    }
+
+    @Test
+    public void testSupportedForType()
+    {
+        assertTrue(MongoAggregateExpression.isSupportedForType("sum", Long.class));
+        assertTrue(MongoAggregateExpression.isSupportedForType("avg", float.class));
+        assertFalse(MongoAggregateExpression.isSupportedForType("sum", String.class));
+        assertFalse(MongoAggregateExpression.isSupportedForType("avg", BigDecimal.class));
+        assertTrue(MongoAggregateExpression.isSupportedForType("max", String.class));
+    }
+}
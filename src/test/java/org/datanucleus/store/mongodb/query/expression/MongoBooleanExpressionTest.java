@@ -0,0 +1,110 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Tests for the negation of MongoBooleanExpression.
+ */
+public class MongoBooleanExpressionTest
+{
+    private static MongoBooleanExpression compare(String fieldName, Object value, MongoOperator op)
+    {
+        return new MongoBooleanExpression(new MongoFieldExpression(fieldName, null, null), new MongoLiteral(value), op);
+    }
+
+    private static BasicDBObject not(MongoBooleanExpression expr)
+    {
+        return new MongoBooleanExpression(expr, MongoOperator.OP_NOT).getDBObject();
+    }
+
+    private static BasicDBObject json(String str)
+    {
+        return (BasicDBObject)JSON.parse(str);
+    }
+
+    @Test
+    public void testNegateEquality()
+    {
+        assertEquals(json("{'a' : {'$ne' : 1}}"), not(compare("a", 1, MongoOperator.OP_EQ)));
+        assertEquals(json("{'a' : 1}"), not(compare("a", 1, MongoOperator.OP_NOTEQ)));
+    }
+
+    @Test
+    public void testNegateIn()
+    {
+        assertEquals(json("{'a' : {'$nin' : [1, 2]}}"), not(compare("a", Arrays.asList(1, 2), MongoOperator.IN)));
+        assertEquals(json("{'a' : {'$in' : [1, 2]}}"), not(compare("a", Arrays.asList(1, 2), MongoOperator.NIN)));
+    }
+
+    @Test
+    public void testNegateExists()
+    {
+        assertEquals(json("{'a' : {'$exists' : false}}"), not(compare("a", true, MongoOperator.EXISTS)));
+    }
+
+    @Test
+    public void testNegateRange()
+    {
+        // $not rather than the inverse operator, so that documents without the field also match
+        assertEquals(json("{'a' : {'$not' : {'$gt' : 5}}}"), not(compare("a", 5, MongoOperator.OP_GT)));
+        assertEquals(json("{'a' : {'$not' : {'$lte' : 5}}}"), not(compare("a", 5, MongoOperator.OP_LTEQ)));
+    }
+
+    @Test
+    public void testNegateRegexUsesNor()
+    {
+        BasicDBObject negated = not(compare("a", Pattern.compile("^x"), MongoOperator.OP_EQ));
+        assertEquals(1, negated.size());
+        BasicDBList norOptions = (BasicDBList)negated.get("$nor");
+        assertEquals(1, norOptions.size());
+        assertEquals("^x", ((Pattern)((BasicDBObject)norOptions.get(0)).get("a")).pattern());
+    }
+
+    @Test
+    public void testNegateConjunctionUsesNor()
+    {
+        MongoBooleanExpression andExpr = new MongoBooleanExpression(compare("a", 1, MongoOperator.OP_EQ), compare("b", 2, MongoOperator.OP_EQ),
+            MongoOperator.OP_AND);
+        BasicDBObject negated = not(andExpr);
+        assertTrue(negated.containsField("$nor"));
+        assertEquals(andExpr.getDBObject(), ((BasicDBList)negated.get("$nor")).get(0));
+    }
+
+    @Test
+    public void testNegateParameterEquality()
+    {
+        MongoBooleanExpression expr = new MongoBooleanExpression(new MongoFieldExpression("a", null, null), new MongoLiteral(1, "p"),
+            MongoOperator.OP_EQ);
+        BasicDBObject negated = not(expr);
+        BasicDBObject condition = (BasicDBObject)negated.get("a");
+        assertTrue(condition.get("$ne") instanceof MongoParameter);
+        assertEquals("p", ((MongoParameter)condition.get("$ne")).getKey());
+    }
+}
@@ -0,0 +1,126 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.metadata.FieldMetaData;
+import org.datanucleus.metadata.MetaData;
+import org.datanucleus.store.mongodb.MongoDBStoreManager;
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Tests for the compilation of geospatial functions according to the type of geospatial index.
+ */
+public class MongoGeospatialExpressionTest
+{
+    private static MongoGeospatialExpression location(String indexType)
+    {
+        FieldMetaData fmd = new FieldMetaData(null, "location");
+        if (indexType != null)
+        {
+            fmd.addExtension(MetaData.VENDOR_NAME, MongoDBStoreManager.GEOSPATIAL_INDEX_EXTENSION_NAME, indexType);
+        }
+        return new MongoGeospatialExpression(new MongoFieldExpression("location", fmd, null));
+    }
+
+    private static BasicDBObject json(String str)
+    {
+        return (BasicDBObject)JSON.parse(str);
+    }
+
+    private static List<Object> args(Object... values)
+    {
+        return Arrays.asList(values);
+    }
+
+    @Test
+    public void testNoGeospatialIndex()
+    {
+        try
+        {
+            location(null).getFunctionExpression("near", args(1.0, 2.0));
+            fail("Expected NucleusUserException since the field has no geospatial index");
+        }
+        catch (NucleusUserException nue)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testNearSphere()
+    {
+        BasicDBObject expr = location("2dsphere").getFunctionExpression("near", args(-0.1, 51.5, 500)).getDBObject();
+        assertEquals(json("{'location' : {'$near' : {'$geometry' : {'type' : 'Point', 'coordinates' : [-0.1, 51.5]}, '$maxDistance' : 500.0}}}"), expr);
+    }
+
+    @Test
+    public void testNearFlat()
+    {
+        BasicDBObject expr = location("2d").getFunctionExpression("near", args(1, 2)).getDBObject();
+        assertEquals(json("{'location' : {'$near' : [1.0, 2.0]}}"), expr);
+    }
+
+    @Test
+    public void testWithinBoxFlat()
+    {
+        BasicDBObject expr = location("2d").getFunctionExpression("withinBox", args(0, 0, 10, 5)).getDBObject();
+        assertEquals(json("{'location' : {'$geoWithin' : {'$box' : [[0.0, 0.0], [10.0, 5.0]]}}}"), expr);
+    }
+
+    @Test
+    public void testWithinPolygonSphereClosesRing()
+    {
+        List<Object> points = args(args(0, 0), args(10, 0), args(10, 10));
+        BasicDBObject expr = location("2dsphere").getFunctionExpression("withinPolygon", args(points)).getDBObject();
+        assertEquals(json("{'location' : {'$geoWithin' : {'$geometry' : {'type' : 'Polygon', 'coordinates' : " +
+            "[[[0.0, 0.0], [10.0, 0.0], [10.0, 10.0], [0.0, 0.0]]]}}}}"), expr);
+    }
+
+    @Test
+    public void testWithinRadiusSphereInRadians()
+    {
+        BasicDBObject expr = location("2dsphere").getFunctionExpression("withinRadius", args(0, 0, 6378100.0)).getDBObject();
+        BasicDBList circle = (BasicDBList)((BasicDBObject)((BasicDBObject)expr.get("location")).get("$geoWithin")).get("$centerSphere");
+        assertEquals(1.0, (Double)circle.get(1), 1e-9);
+    }
+
+    @Test
+    public void testWithinPolygonTooFewPoints()
+    {
+        try
+        {
+            location("2d").getFunctionExpression("withinPolygon", args(0, 0, 10, 0));
+            fail("Expected NucleusUserException since a polygon needs at least 3 points");
+        }
+        catch (NucleusUserException nue)
+        {
+            // Expected
+        }
+    }
+}
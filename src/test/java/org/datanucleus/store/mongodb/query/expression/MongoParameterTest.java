@@ -0,0 +1,132 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.api.ApiAdapter;
+import org.datanucleus.store.types.converters.TypeConverter;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Tests for binding the values of parameters into a compiled filter.
+ */
+public class MongoParameterTest
+{
+    private enum Colour {RED, GREEN}
+
+    /**
+     * ExecutionContext where no values are persistable, which is all that binding non-persistable values needs.
+     */
+    private static ExecutionContext ec()
+    {
+        final ApiAdapter api = (ApiAdapter)Proxy.newProxyInstance(ApiAdapter.class.getClassLoader(), new Class[] {ApiAdapter.class},
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    return method.getName().equals("isPersistable") ? Boolean.FALSE : null;
+                }
+            });
+        return (ExecutionContext)Proxy.newProxyInstance(ExecutionContext.class.getClassLoader(), new Class[] {ExecutionContext.class},
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    return method.getName().equals("getApiAdapter") ? api : null;
+                }
+            });
+    }
+
+    @Test
+    public void testBindNestedParameters()
+    {
+        // age > :minAge && (name == :name1 || name == :name2)
+        BasicDBObject[] orOptions = new BasicDBObject[] {new BasicDBObject("name", new MongoParameter("name1", null, false, false)),
+            new BasicDBObject("name", new MongoParameter("name2", null, false, false))};
+        BasicDBObject filter = new BasicDBObject("age", new BasicDBObject("$gt", new MongoParameter("minAge", null, false, false)))
+            .append("$or", orOptions);
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("minAge", 18);
+        params.put("name1", "Fred");
+        params.put("name2", "Wilma");
+        BasicDBObject bound = MongoParameter.bindParameters(filter, params, ec());
+
+        assertEquals(new BasicDBObject("$gt", 18), bound.get("age"));
+        BasicDBObject[] boundOr = (BasicDBObject[])bound.get("$or");
+        assertEquals(new BasicDBObject("name", "Fred"), boundOr[0]);
+        assertEquals(new BasicDBObject("name", "Wilma"), boundOr[1]);
+
+        // The compiled filter still has the slots, so can be bound again
+        assertNotSame(orOptions, boundOr);
+        assertTrue(orOptions[0].get("name") instanceof MongoParameter);
+    }
+
+    @Test
+    public void testBindNullMultiValuedIsEmpty()
+    {
+        BasicDBObject filter = new BasicDBObject("name", new BasicDBObject("$in", new MongoParameter("names", null, false, true)));
+        BasicDBObject bound = MongoParameter.bindParameters(filter, Collections.singletonMap("names", null), ec());
+        assertEquals(new BasicDBObject("$in", Collections.emptyList()), bound.get("name"));
+    }
+
+    @Test
+    public void testBindEnumValues()
+    {
+        MongoParameter ordinalParam = new MongoParameter("colours", null, true, true);
+        assertEquals(Arrays.asList(0, 1), ordinalParam.getValue(Collections.singletonMap("colours", Arrays.asList(Colour.RED, Colour.GREEN)), ec()));
+
+        MongoParameter nameParam = new MongoParameter("colour", null, false, false);
+        assertEquals("GREEN", nameParam.getValue(Collections.singletonMap("colour", Colour.GREEN), ec()));
+    }
+
+    @Test
+    public void testBindConvertedValue()
+    {
+        TypeConverter<Boolean, String> converter = new TypeConverter<Boolean, String>()
+        {
+            private static final long serialVersionUID = 1L;
+
+            public Boolean toMemberType(String datastoreValue)
+            {
+                return "Y".equals(datastoreValue);
+            }
+
+            public String toDatastoreType(Boolean memberValue)
+            {
+                return memberValue ? "Y" : "N";
+            }
+        };
+        MongoParameter param = new MongoParameter("active", converter, false, false);
+        assertEquals("N", param.getValue(Collections.singletonMap("active", Boolean.FALSE), ec()));
+    }
+}
@@ -0,0 +1,86 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.datanucleus.exceptions.NucleusException;
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Tests for MongoSizeExpression.
+ */
+public class MongoSizeExpressionTest
+{
+    @Test
+    public void testSizeIsEmpty()
+    {
+        MongoSizeExpression sizeExpr = new MongoSizeExpression(new MongoFieldExpression("items", null, null));
+        assertEquals(new BasicDBObject("items", new BasicDBObject("$size", 0L)), sizeExpr.getIsEmptyExpression().getDBObject());
+    }
+
+    @Test
+    public void testSizeRangeComparisons()
+    {
+        MongoSizeExpression sizeExpr = new MongoSizeExpression(new MongoFieldExpression("items", null, null));
+
+        // size > 2 : element at position 2 exists
+        assertEquals(new BasicDBObject("items.2", new BasicDBObject("$exists", true)),
+            sizeExpr.getComparisonExpression(MongoOperator.OP_GT, 2).getDBObject());
+
+        // size < 2 : field exists and has no element at position 1
+        BasicDBObject ltObject = sizeExpr.getComparisonExpression(MongoOperator.OP_LT, 2).getDBObject();
+        Object[] andOptions = (Object[])ltObject.get("$and");
+        assertEquals(new BasicDBObject("items", new BasicDBObject("$exists", true)), andOptions[0]);
+        assertEquals(new BasicDBObject("items.1", new BasicDBObject("$exists", false)), andOptions[1]);
+
+        // size >= 0 : field exists
+        assertEquals(new BasicDBObject("items", new BasicDBObject("$exists", true)),
+            sizeExpr.getComparisonExpression(MongoOperator.OP_GTEQ, 0).getDBObject());
+    }
+
+    @Test
+    public void testSizeNeverTrue()
+    {
+        MongoSizeExpression sizeExpr = new MongoSizeExpression(new MongoFieldExpression("items", null, null));
+        try
+        {
+            sizeExpr.getComparisonExpression(MongoOperator.OP_LT, 0);
+            fail("Expected NucleusException since a size can't be negative");
+        }
+        catch (NucleusException ne)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSizeNotEqual()
+    {
+        MongoSizeExpression sizeExpr = new MongoSizeExpression(new MongoFieldExpression("items", null, null));
+        BasicDBObject neObject = sizeExpr.getComparisonExpression(MongoOperator.OP_NOTEQ, 1).getDBObject();
+        Object[] andOptions = (Object[])neObject.get("$and");
+        assertEquals(new BasicDBObject("items", new BasicDBObject("$exists", true)), andOptions[0]);
+        BasicDBList norOptions = (BasicDBList)((BasicDBObject)andOptions[1]).get("$nor");
+        assertEquals(new BasicDBObject("items", new BasicDBObject("$size", 1L)), norOptions.get(0));
+    }
+}
@@ -0,0 +1,143 @@
+/**********************************************************************
+Copyright (c) 2015 Andy Jefferson and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.store.mongodb.query.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.regex.Pattern;
+
+import org.datanucleus.exceptions.NucleusException;
+import org.junit.Test;
+
+/**
+ * Tests for MongoStringExpression.
+ */
+public class MongoStringExpressionTest
+{
+    private static MongoStringExpression str(String fieldName)
+    {
+        return new MongoStringExpression(new MongoFieldExpression(fieldName, null, null));
+    }
+
+    private static Pattern getPattern(MongoBooleanExpression expr, String fieldName)
+    {
+        return (Pattern)expr.getDBObject().get(fieldName);
+    }
+
+    @Test
+    public void testEscapeRegex()
+    {
+        assertEquals("a\\.b\\*c\\(d\\)", MongoStringExpression.escapeRegex("a.b*c(d)"));
+        assertEquals("plain", MongoStringExpression.escapeRegex("plain"));
+    }
+
+    @Test
+    public void testStartsWithIsAnchoredPrefix()
+    {
+        Pattern pattern = getPattern(str("name").getStartsWithExpression("Jo.n"), "name");
+        assertEquals("^Jo\\.n", pattern.pattern());
+        assertEquals(0, pattern.flags());
+    }
+
+    @Test
+    public void testEndsWithAndContains()
+    {
+        assertEquals("son\\z", getPattern(str("name").getEndsWithExpression("son"), "name").pattern());
+        assertEquals("oh", getPattern(str("name").getContainsExpression("oh"), "name").pattern());
+    }
+
+    @Test
+    public void testLowerCaseEqualsIsCaseInsensitive()
+    {
+        Pattern pattern = getPattern(str("name").invoke("toLowerCase").getEqualsExpression("john", false), "name");
+        assertEquals("^john\\z", pattern.pattern());
+        assertEquals(Pattern.CASE_INSENSITIVE, pattern.flags());
+    }
+
+    @Test
+    public void testLowerCaseEqualsUpperCaseValueIsNeverTrue()
+    {
+        try
+        {
+            str("name").invoke("toLowerCase").getEqualsExpression("John", false);
+            fail("Expected NucleusException since the comparison can never be true");
+        }
+        catch (NucleusException ne)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testEndDoesNotMatchBeforeFinalNewline()
+    {
+        assertFalse(getPattern(str("name").getEqualsExpression("john", false), "name").matcher("john\n").find());
+        assertFalse(getPattern(str("name").getEndsWithExpression("son"), "name").matcher("Johnson\n").find());
+        assertFalse(getPattern(str("name").getIsEmptyExpression(), "name").matcher("\n").find());
+        assertTrue(getPattern(str("name").getEqualsExpression("john", false), "name").matcher("john").find());
+    }
+
+    @Test
+    public void testTrimMatchesStringTrim()
+    {
+        Pattern equalsPattern = getPattern(str("name").invoke("trim").getEqualsExpression("x", false), "name");
+        assertEquals("^[\\x00-\\x20]*x[\\x00-\\x20]*\\z", equalsPattern.pattern());
+        String[] values = new String[] {"x", " x ", "\tx\n", "\u0001x\u001f", "\u00a0x", "x\u2003", " y "};
+        for (String value : values)
+        {
+            assertEquals(value, "x".equals(value.trim()), equalsPattern.matcher(value).find());
+        }
+
+        Pattern emptyPattern = getPattern(str("name").invoke("trim").getIsEmptyExpression(), "name");
+        assertTrue(emptyPattern.matcher(" \t\r\n\u0000").find());
+        assertFalse(emptyPattern.matcher(" \u00a0 ").find());
+    }
+
+    @Test
+    public void testLengthComparison()
+    {
+        MongoStringExpression lengthExpr = str("name").invoke("length");
+        assertTrue(lengthExpr.isNumeric());
+        assertEquals("^[\\s\\S]{3}\\z", getPattern(lengthExpr.getComparisonExpression(MongoOperator.OP_EQ, 3), "name").pattern());
+        assertEquals("^[\\s\\S]{4,}\\z", getPattern(lengthExpr.getComparisonExpression(MongoOperator.OP_GT, 3), "name").pattern());
+        assertEquals("^[\\s\\S]{0,2}\\z", getPattern(lengthExpr.getComparisonExpression(MongoOperator.OP_LT, 3), "name").pattern());
+        assertNull(lengthExpr.invoke("trim"));
+    }
+
+    @Test
+    public void testIndexOfComparison()
+    {
+        MongoStringExpression indexOfExpr = str("name").indexOf("x");
+        assertEquals("x", getPattern(indexOfExpr.getComparisonExpression(MongoOperator.OP_GTEQ, 0), "name").pattern());
+        assertEquals("^x", getPattern(indexOfExpr.getComparisonExpression(MongoOperator.OP_EQ, 0), "name").pattern());
+        assertTrue(indexOfExpr.getComparisonExpression(MongoOperator.OP_EQ, -1).getDBObject().containsField("$nor"));
+        try
+        {
+            indexOfExpr.getComparisonExpression(MongoOperator.OP_EQ, 2);
+            fail("Expected NucleusException for a position other than 0/-1");
+        }
+        catch (NucleusException ne)
+        {
+            // Expected
+        }
+    }
+}